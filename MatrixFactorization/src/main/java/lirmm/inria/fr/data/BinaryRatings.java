@@ -0,0 +1,150 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.data;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import lirmm.inria.fr.main.Functions;
+
+/**
+ * Binary ratings file, written once from a text ratings file and then loaded
+ * without any parsing by {@link DataMatrix#createDataMatrixFromBinary(String)}.
+ * <p>
+ * All the numbers are big-endian. The file is made of:</p>
+ * <ul>
+ * <li>a header of {@link #HEADER_SIZE} bytes: the magic number, the version,
+ * the number of rows, the number of columns, the number of ratings (long) and
+ * the maximum rating (double);</li>
+ * <li>the ratings, {@link #RECORD_SIZE} bytes each: the row index (int), the
+ * column index (int) and the rating (float);</li>
+ * <li>the original identifiers of the rows, then of the columns, in the order
+ * of their indices, each written by {@link DataOutputStream#writeUTF}.</li>
+ * </ul>
+ * Rows and columns are numbered in the order they first appear in the text
+ * file, as {@link DataMatrix#createDataMatrix(String)} does.
+ *
+ * @author rbouadjenek
+ */
+public final class BinaryRatings {
+
+    /**
+     * Magic number at the start of the file ("PMFR").
+     */
+    static final int MAGIC = 0x504D4652;
+    /**
+     * Version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+    /**
+     * Size of a rating in bytes.
+     */
+    static final int RECORD_SIZE = 12;
+
+    private BinaryRatings() {
+    }
+
+    /**
+     * Convert a text ratings file into a binary ratings file, in a single pass.
+     * Each line of the text file holds a row identifier, a column identifier
+     * and a rating; empty lines and lines starting with # are skipped.
+     *
+     * @param textFile The text ratings file.
+     * @param binaryFile The binary ratings file to create.
+     * @throws IOException
+     */
+    public static void convert(String textFile, String binaryFile) throws IOException {
+        final Map<String, Integer> rowsMapping = new HashMap<>();
+        final Map<String, Integer> columnsMapping = new HashMap<>();
+        final List<String> rowIds = new ArrayList<>();
+        final List<String> columnIds = new ArrayList<>();
+        long size = 0;
+        double max = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(textFile)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile), 1 << 16))) {
+            // the header is written at the end, once the dimensions are known
+            out.write(new byte[HEADER_SIZE]);
+            String str;
+            while ((str = br.readLine()) != null) {
+                str = str.trim();
+                if (str.startsWith("#")) {
+                    continue;
+                }
+                if (str.length() == 0) {
+                    continue;
+                }
+                StringTokenizer st = new StringTokenizer(str);
+                String row_id = st.nextToken();
+                String column_id = st.nextToken();
+                double rating = Double.parseDouble(st.nextToken());
+                Integer i = rowsMapping.get(row_id);
+                if (i == null) {
+                    i = rowIds.size();
+                    rowsMapping.put(row_id, i);
+                    rowIds.add(row_id);
+                }
+                Integer j = columnsMapping.get(column_id);
+                if (j == null) {
+                    j = columnIds.size();
+                    columnsMapping.put(column_id, j);
+                    columnIds.add(column_id);
+                }
+                if (max < rating) {
+                    max = rating;
+                }
+                out.writeInt(i);
+                out.writeInt(j);
+                out.writeFloat((float) rating);
+                size++;
+            }
+            for (String id : rowIds) {
+                out.writeUTF(id);
+            }
+            for (String id : columnIds) {
+                out.writeUTF(id);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(binaryFile, "rw")) {
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(rowIds.size());
+            raf.writeInt(columnIds.size());
+            raf.writeLong(size);
+            raf.writeDouble(max);
+        }
+    }
+
+    /**
+     * Convert a text ratings file into a binary ratings file.
+     *
+     * @param args The text ratings file and the binary ratings file.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BinaryRatings <text ratings file> <binary ratings file>");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        convert(args[0], args[1]);
+        long end = System.currentTimeMillis();
+        System.err.println("Conversion time: " + Functions.getTimer(end - start) + ".");
+    }
+}
@@ -5,13 +5,22 @@
  */
 package lirmm.inria.fr.data;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -46,27 +55,32 @@ public final class DataMatrix extends BigSparseRealMatrix {
     /**
      * Storage of the test dataset elements.
      */
-    private final OpenLongToDoubleHashMap testSetEntries;
+    private OpenLongToDoubleHashMap testSetEntries;
 
     /**
      * Storage of the validation dataset elements.
      */
-    private final OpenLongToDoubleHashMap validationSetEntries;
+    private OpenLongToDoubleHashMap validationSetEntries;
 
     /**
      * Number of non zero entries in rows of the matrix.
      */
-    private final OpenLongToDoubleHashMap rowNonZeroEntries = new OpenLongToDoubleHashMap(0.0);
+    private final int[] rowNonZeroEntries;
 
     /**
-     * Number of non zero entries in rows of the matrix.
+     * Number of non zero entries in columns of the matrix.
      */
-    private final OpenLongToDoubleHashMap columnNonZeroEntries = new OpenLongToDoubleHashMap(0.0);
+    private final int[] columnNonZeroEntries;
     
     /**
      * Maximum value in the matrix
      */
     private double max;
+
+    /**
+     * Number of ratings of a binary ratings file mapped at once.
+     */
+    private static final int RATINGS_PER_SEGMENT = 1 << 26;
     
     
     private DataMatrix(String file, int rowDimension, int columnDimension, double max) throws NotStrictlyPositiveException, NumberIsTooLargeException {
@@ -77,11 +91,55 @@ public final class DataMatrix extends BigSparseRealMatrix {
         this.columnMeans = new HashMap<>();
         this.testSetEntries = new OpenLongToDoubleHashMap(0.0);
         this.validationSetEntries = new OpenLongToDoubleHashMap(0.0);
+        this.rowNonZeroEntries = new int[rowDimension];
+        this.columnNonZeroEntries = new int[columnDimension];
         this.max=max;
         loadMatrix(file, rowDimension, columnDimension);
 //        normalize();
     }
 
+    private DataMatrix(int rowDimension, int columnDimension, OpenLongToDoubleHashMap entries, double max) throws NotStrictlyPositiveException, NumberIsTooLargeException {
+        super(rowDimension, columnDimension, entries);
+        this.rowsMapping = new HashMap<>(rowDimension * 4 / 3 + 1);
+        this.columnsMapping = new HashMap<>(columnDimension * 4 / 3 + 1);
+        this.columnMeans = new HashMap<>();
+        this.testSetEntries = entries.createMap(0);
+        this.validationSetEntries = entries.createMap(0);
+        this.rowNonZeroEntries = new int[rowDimension];
+        this.columnNonZeroEntries = new int[columnDimension];
+        this.max = max;
+    }
+
+    private DataMatrix(ParallelRatingsReader reader) throws NotStrictlyPositiveException, NumberIsTooLargeException {
+        super(reader.getRowsMapping().size(), reader.getColumnsMapping().size(), (int) reader.getSize());
+        this.rowsMapping = reader.getRowsMapping();
+        this.columnsMapping = reader.getColumnsMapping();
+        this.columnMeans = new HashMap<>();
+        this.testSetEntries = new OpenLongToDoubleHashMap(0.0);
+        this.validationSetEntries = new OpenLongToDoubleHashMap(0.0);
+        this.rowNonZeroEntries = new int[rowsMapping.size()];
+        this.columnNonZeroEntries = new int[columnsMapping.size()];
+        this.max = reader.getMax();
+        final OpenLongToDoubleHashMap entries = getEntries();
+        final long columnDimension = getColumnDimension();
+        reader.forEach((i, j, rating) -> {
+            rowNonZeroEntries[i]++;
+            columnNonZeroEntries[j]++;
+            final long key = i * columnDimension + j;
+            if (rating == 0.0) {
+                entries.remove(key);
+            } else {
+                entries.put(key, rating);
+            }
+        });
+        if (entries.size() != reader.getSize()) {
+            // duplicated or zero ratings were counted more than once
+            Arrays.fill(rowNonZeroEntries, 0);
+            Arrays.fill(columnNonZeroEntries, 0);
+            countNonZeroEntries();
+        }
+    }
+
     protected void loadMatrix(String file, int rowDimension, int columnDimension) {
         FileInputStream fstream;
         try {
@@ -89,14 +147,6 @@ public final class DataMatrix extends BigSparseRealMatrix {
             // Get the object of DataInputStream
             DataInputStream in = new DataInputStream(fstream);
 
-            Set<Integer> cI = new HashSet();
-            for (int i = 0; i < rowDimension; i++) {
-                cI.add(i);
-            }
-            Set<Integer> cJ = new HashSet();
-            for (int j = 0; j < columnDimension; j++) {
-                cJ.add(j);
-            }
             try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
                 String str;
                 int z = 0;
@@ -117,45 +167,44 @@ public final class DataMatrix extends BigSparseRealMatrix {
                     if (rowsMapping.containsKey(row_id)) {
                         i = rowsMapping.get(row_id);
                     } else {
-                        i = cI.iterator().next();
-//                        i = cI.get(0);
-                        cI.remove(i);
+                        i = rowsMapping.size();
                         rowsMapping.put(row_id, i);
                     }
                     if (columnsMapping.containsKey(column_id)) {
                         j = columnsMapping.get(column_id);
                     } else {
-                        j = cJ.iterator().next();
-//                        j = cJ.get(0);
-                        cJ.remove(j);
+                        j = columnsMapping.size();
                         columnsMapping.put(column_id, j);
                     }
                     setEntry(i, j, rating);
                 }
             }
-
-            for (OpenLongToDoubleHashMap.Iterator iterator = getEntries().iterator(); iterator.hasNext();) {
-                iterator.advance();
-                final long key = iterator.key();
-                final int i, j;
-                if (isTransposed()) {
-                    j = (int) (key / getRowDimension());
-                    i = (int) (key % getRowDimension());
-                } else {
-                    i = (int) (key / getColumnDimension());
-                    j = (int) (key % getColumnDimension());
-                }
-                double v = rowNonZeroEntries.get(i);
-                rowNonZeroEntries.put(i, v + 1);
-                v = columnNonZeroEntries.get(j);
-                columnNonZeroEntries.put(j, v + 1);
-            }
-
+            countNonZeroEntries();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Count the non zero entries of each row and each column of the matrix.
+     */
+    private void countNonZeroEntries() {
+        for (OpenLongToDoubleHashMap.Iterator iterator = getEntries().iterator(); iterator.hasNext();) {
+            iterator.advance();
+            final long key = iterator.key();
+            final int i, j;
+            if (isTransposed()) {
+                j = (int) (key / getRowDimension());
+                i = (int) (key % getRowDimension());
+            } else {
+                i = (int) (key / getColumnDimension());
+                j = (int) (key % getColumnDimension());
+            }
+            rowNonZeroEntries[i]++;
+            columnNonZeroEntries[j]++;
+        }
+    }
+
     private void normalize() {
         int[] nbrElements;
         Map<Long, Double> entry = new HashMap();
@@ -201,51 +250,43 @@ public final class DataMatrix extends BigSparseRealMatrix {
     }
 
     public void cutDataSet(double rateTestSet, double rateValidationSet) {
+        cutDataSet(rateTestSet, rateValidationSet, new Random().nextLong());
+    }
+
+    /**
+     * Move random entries of the matrix to the test set and to the validation
+     * set. The entries are copied into arrays and shuffled in a single pass,
+     * then the training, test and validation maps are built at their final
+     * sizes.
+     *
+     * @param rateTestSet Percentage of the entries moved to the test set.
+     * @param rateValidationSet Percentage of the entries moved to the
+     * validation set.
+     * @param seed Seed of the shuffle. For a given matrix and seed, the sets
+     * are always the same.
+     */
+    public void cutDataSet(double rateTestSet, double rateValidationSet, long seed) {
         if (rateTestSet + rateValidationSet > 100) {
             System.err.println("Invalid rates:" + (rateTestSet + rateValidationSet) + " > 100%");
         } else {
             System.err.println("******************************");
             System.err.println("Initiale dataset size= " + getDataSize());
             System.err.println("******************************");
-            int valTestSet = (int) (getDataSize() * rateTestSet / 100);// number of values to remove from the data entry, and put in the test set
-            int valValidationSet = (int) (getDataSize() * rateValidationSet / 100);// number of values to remove from the data entry, and put in the validation set
-            while (valTestSet > 0) {
-                valTestSet--;
-                long key = getEntries().getRandomKey();
-                double value = getEntries().remove(key);
-                testSetEntries.put(key, value);
-                final int i, j;
-                if (isTransposed()) {
-                    j = (int) (key / getRowDimension());
-                    i = (int) (key % getRowDimension());
-                } else {
-                    i = (int) (key / getColumnDimension());
-                    j = (int) (key % getColumnDimension());
-                }
-                double v = rowNonZeroEntries.get(i);
-                rowNonZeroEntries.put(i, v - 1);
-                v = columnNonZeroEntries.get(j);
-                columnNonZeroEntries.put(j, v - 1);
-                
-            }
-            while (valValidationSet > 0) {
-                valValidationSet--;
-                long key = getEntries().getRandomKey();
-                double value = getEntries().remove(key);
-                validationSetEntries.put(key, value);
-                final int i, j;
-                if (isTransposed()) {
-                    j = (int) (key / getRowDimension());
-                    i = (int) (key % getRowDimension());
-                } else {
-                    i = (int) (key / getColumnDimension());
-                    j = (int) (key % getColumnDimension());
-                }
-                double v = rowNonZeroEntries.get(i);
-                rowNonZeroEntries.put(i, v - 1);
-                v = columnNonZeroEntries.get(j);
-                columnNonZeroEntries.put(j, v - 1);
+            final int size = getDataSize();
+            final int valTestSet = (int) (size * rateTestSet / 100);// number of values to remove from the data entry, and put in the test set
+            final int valValidationSet = (int) (size * rateValidationSet / 100);// number of values to remove from the data entry, and put in the validation set
+            final long[] keys = new long[size];
+            final double[] values = new double[size];
+            copyEntries(keys, values);
+            // only the entries moved out need to be drawn
+            shuffle(keys, values, valTestSet + valValidationSet, new Random(seed));
+            testSetEntries = moveEntries(testSetEntries, keys, values, 0, valTestSet);
+            validationSetEntries = moveEntries(validationSetEntries, keys, values, valTestSet, valTestSet + valValidationSet);
+            final OpenLongToDoubleHashMap trainingSetEntries = getEntries().createMap(size - valTestSet - valValidationSet);
+            for (int p = valTestSet + valValidationSet; p < size; p++) {
+                trainingSetEntries.put(keys[p], values[p]);
             }
+            setEntries(trainingSetEntries);
             System.err.println("Training dataset size= " + getDataSize());
             System.err.println("Test dataset size= " + getTestSetSize());
             System.err.println("Validation dataset size= " + getValidationSetSize());
@@ -253,6 +294,87 @@ public final class DataMatrix extends BigSparseRealMatrix {
         }
     }
 
+    /**
+     * Copy the entries of the matrix into arrays, in the order of the hash
+     * storage.
+     */
+    private void copyEntries(long[] keys, double[] values) {
+        int p = 0;
+        for (OpenLongToDoubleHashMap.Iterator iterator = getEntries().iterator(); iterator.hasNext();) {
+            iterator.advance();
+            keys[p] = iterator.key();
+            values[p] = iterator.value();
+            p++;
+        }
+    }
+
+    /**
+     * Shuffle the first n positions of the arrays by a partial Fisher-Yates
+     * shuffle: each of these positions receives an entry drawn uniformly
+     * among the entries not drawn yet.
+     */
+    static void shuffle(long[] keys, double[] values, int n, Random random) {
+        for (int p = 0; p < n; p++) {
+            final int q = p + random.nextInt(keys.length - p);
+            final long key = keys[p];
+            keys[p] = keys[q];
+            keys[q] = key;
+            final double value = values[p];
+            values[p] = values[q];
+            values[q] = value;
+        }
+    }
+
+    /**
+     * Build a map holding the entries of a set and the entries [from, to) of
+     * the arrays, and remove these entries from the non-zero counts.
+     */
+    private OpenLongToDoubleHashMap moveEntries(OpenLongToDoubleHashMap set, long[] keys, double[] values, int from, int to) {
+        final OpenLongToDoubleHashMap out = set.createMap(set.size() + to - from);
+        for (OpenLongToDoubleHashMap.Iterator iterator = set.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            out.put(iterator.key(), iterator.value());
+        }
+        set.release();
+        for (int p = from; p < to; p++) {
+            final long key = keys[p];
+            out.put(key, values[p]);
+            final int i, j;
+            if (isTransposed()) {
+                j = (int) (key / getRowDimension());
+                i = (int) (key % getRowDimension());
+            } else {
+                i = (int) (key / getColumnDimension());
+                j = (int) (key % getColumnDimension());
+            }
+            rowNonZeroEntries[i]--;
+            columnNonZeroEntries[j]--;
+        }
+        return out;
+    }
+
+    /**
+     * Split the entries of the matrix into folds for a cross-validation. The
+     * entries are copied once into arrays, shuffled and cut into k folds of
+     * consecutive entries; the matrix itself is not modified.
+     *
+     * @param k Number of folds.
+     * @param seed Seed of the shuffle. For a given matrix and seed, the folds
+     * are always the same.
+     * @return The folds.
+     */
+    public Folds createFolds(int k, long seed) {
+        final int size = getDataSize();
+        if (k < 2 || k > size) {
+            throw new IllegalArgumentException("The number of folds must be between 2 and " + size + ": " + k);
+        }
+        final long[] keys = new long[size];
+        final double[] values = new double[size];
+        copyEntries(keys, values);
+        shuffle(keys, values, size, new Random(seed));
+        return new Folds(keys, values, k);
+    }
+
     public static DataMatrix createDataMatrix(String file) throws FileNotFoundException, IOException {
         FileInputStream fstream;
         Set<String> listI = new HashSet<>();
@@ -288,6 +410,118 @@ public final class DataMatrix extends BigSparseRealMatrix {
         return new DataMatrix(file, listI.size(), listJ.size(), max);
     }
 
+    /**
+     * Load a matrix from a text ratings file in a single pass, parsing the
+     * file on several threads (see {@link ParallelRatingsReader}). Rows and
+     * columns are numbered as by {@link #createDataMatrix(String)}.
+     *
+     * @param file The text ratings file.
+     * @param numThreads Number of threads parsing the file.
+     * @return The matrix of the ratings.
+     * @throws IOException
+     */
+    public static DataMatrix createDataMatrix(String file, int numThreads) throws IOException {
+        ParallelRatingsReader reader = new ParallelRatingsReader(file, numThreads);
+        reader.read();
+        if (reader.getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Too many ratings in " + file + ": " + reader.getSize());
+        }
+        return new DataMatrix(reader);
+    }
+
+    /**
+     * Load a matrix from a binary ratings file written by
+     * {@link BinaryRatings#convert(String, String)}. The ratings are read
+     * through memory mappings of the file, without any parsing.
+     *
+     * @param file The binary ratings file.
+     * @return The matrix of the ratings.
+     * @throws IOException if the file cannot be read or is not a binary
+     * ratings file.
+     */
+    public static DataMatrix createDataMatrixFromBinary(String file) throws IOException {
+        return createDataMatrixFromBinary(file, false, null);
+    }
+
+    /**
+     * Load a matrix from a binary ratings file, keeping its elements off the
+     * Java heap (see {@link OpenLongToDoubleHashMap#offHeap}): in direct
+     * memory, or in memory-mapped temporary files of a directory. The test and
+     * validation sets cut from the matrix are stored the same way.
+     *
+     * @param file The binary ratings file.
+     * @param directory Directory of the mapped files, or {@code null} to use
+     * direct memory.
+     * @return The matrix of the ratings.
+     * @throws IOException if the file cannot be read or is not a binary
+     * ratings file.
+     */
+    public static DataMatrix createDataMatrixFromBinary(String file, Path directory) throws IOException {
+        return createDataMatrixFromBinary(file, true, directory);
+    }
+
+    private static DataMatrix createDataMatrixFromBinary(String file, boolean offHeap, Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryRatings.HEADER_SIZE);
+            if (header.getInt() != BinaryRatings.MAGIC) {
+                throw new IOException(file + " is not a binary ratings file.");
+            }
+            final int version = header.getInt();
+            if (version != BinaryRatings.VERSION) {
+                throw new IOException("Unsupported binary ratings version: " + version);
+            }
+            final int rowDimension = header.getInt();
+            final int columnDimension = header.getInt();
+            final long size = header.getLong();
+            final double max = header.getDouble();
+            if (size > OpenLongToDoubleHashMap.MAX_SIZE) {
+                throw new IOException("Too many ratings in " + file + ": " + size + ", at most "
+                        + OpenLongToDoubleHashMap.MAX_SIZE + " are supported.");
+            }
+            final OpenLongToDoubleHashMap storage;
+            try {
+                storage = offHeap ? OpenLongToDoubleHashMap.offHeap((int) size, 0.0, directory)
+                        : new OpenLongToDoubleHashMap((int) size, 0.0);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            DataMatrix m = new DataMatrix(rowDimension, columnDimension, storage, max);
+            //--------------------------------------------------------------
+            // Ratings, mapped by segments of at most RATINGS_PER_SEGMENT ratings
+            //--------------------------------------------------------------
+            final OpenLongToDoubleHashMap entries = m.getEntries();
+            for (long first = 0; first < size; first += RATINGS_PER_SEGMENT) {
+                final int count = (int) Math.min(RATINGS_PER_SEGMENT, size - first);
+                final ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                        BinaryRatings.HEADER_SIZE + first * BinaryRatings.RECORD_SIZE, (long) count * BinaryRatings.RECORD_SIZE);
+                for (int p = 0, end = count * BinaryRatings.RECORD_SIZE; p < end; p += BinaryRatings.RECORD_SIZE) {
+                    final int i = segment.getInt(p);
+                    final int j = segment.getInt(p + 4);
+                    final double rating = segment.getFloat(p + 8);
+                    final long key = (long) i * columnDimension + j;
+                    if (rating == 0.0) {
+                        entries.remove(key);
+                    } else {
+                        entries.put(key, rating);
+                    }
+                }
+            }
+            m.countNonZeroEntries();
+            //--------------------------------------------------------------
+            // Original identifiers of the rows and the columns
+            //--------------------------------------------------------------
+            channel.position(BinaryRatings.HEADER_SIZE + size * BinaryRatings.RECORD_SIZE);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            for (int i = 0; i < rowDimension; i++) {
+                m.rowsMapping.put(in.readUTF(), i);
+            }
+            for (int j = 0; j < columnDimension; j++) {
+                m.columnsMapping.put(in.readUTF(), j);
+            }
+            return m;
+        }
+    }
+
     public OpenLongToDoubleHashMap getTestSetEntries() {
         return testSetEntries;
     }
@@ -320,17 +554,17 @@ public final class DataMatrix extends BigSparseRealMatrix {
 
     public int getRowNonZeroEntry(int i) {
         if (isTransposed()) {
-            return (int) columnNonZeroEntries.get(i);
+            return columnNonZeroEntries[i];
         } else {
-            return (int) rowNonZeroEntries.get(i);
+            return rowNonZeroEntries[i];
         }
     }
 
     public int getColumnNonZeroEntry(int j) {
         if (isTransposed()) {
-            return (int) rowNonZeroEntries.get(j);
+            return rowNonZeroEntries[j];
         } else {
-            return (int) columnNonZeroEntries.get(j);
+            return columnNonZeroEntries[j];
         }
     }
 
@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.data;
+
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+
+/**
+ * Folds of a cross-validation, created by {@link DataMatrix#createFolds}. The
+ * entries are held once, shuffled, in two arrays; fold f is the range
+ * [{@link #getFrom(int) getFrom(f)}, {@link #getTo(int) getTo(f)}) of these
+ * arrays, and its training set is made of all the other entries. The keys are
+ * those of the storage of the matrix.
+ *
+ * @author rbouadjenek
+ */
+public final class Folds {
+
+    private final long[] keys; // Key of each entry, ordered by fold
+    private final double[] values; // Value of each entry, ordered by fold
+    private final int[] offsets; // First entry of each fold, followed by the number of entries
+
+    Folds(long[] keys, double[] values, int k) {
+        this.keys = keys;
+        this.values = values;
+        this.offsets = new int[k + 1];
+        for (int f = 0; f <= k; f++) {
+            offsets[f] = (int) ((long) f * keys.length / k);
+        }
+    }
+
+    /**
+     * @return The number of folds.
+     */
+    public int getNumFolds() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return The number of entries of all the folds.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @param fold A fold.
+     * @return The position of the first entry of the fold.
+     */
+    public int getFrom(int fold) {
+        return offsets[fold];
+    }
+
+    /**
+     * @param fold A fold.
+     * @return The position following the last entry of the fold.
+     */
+    public int getTo(int fold) {
+        return offsets[fold + 1];
+    }
+
+    /**
+     * @param fold A fold.
+     * @return The number of entries of the fold.
+     */
+    public int getFoldSize(int fold) {
+        return offsets[fold + 1] - offsets[fold];
+    }
+
+    /**
+     * @param position The position of an entry.
+     * @return The key of the entry.
+     */
+    public long getKey(int position) {
+        return keys[position];
+    }
+
+    /**
+     * @param position The position of an entry.
+     * @return The value of the entry.
+     */
+    public double getValue(int position) {
+        return values[position];
+    }
+
+    /**
+     * Copy the entries of a fold into a map sized for them, e.g. to evaluate
+     * the fold as a test set.
+     *
+     * @param fold A fold.
+     * @return The entries of the fold.
+     */
+    public OpenLongToDoubleHashMap getEntries(int fold) {
+        final OpenLongToDoubleHashMap out = new OpenLongToDoubleHashMap(getFoldSize(fold), 0.0);
+        for (int p = offsets[fold]; p < offsets[fold + 1]; p++) {
+            out.put(keys[p], values[p]);
+        }
+        return out;
+    }
+}
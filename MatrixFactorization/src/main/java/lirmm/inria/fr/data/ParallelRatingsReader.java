@@ -0,0 +1,462 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reader of a text ratings file in a single pass over several threads.
+ * <p>
+ * The file is split into byte ranges (chunks) that are memory-mapped and
+ * parsed independently. Each line holds a row identifier, a column identifier
+ * and a rating; empty lines and lines starting with # are skipped. While
+ * parsing, a chunk numbers the identifiers it meets in a private dictionary
+ * that works on the raw bytes, and stores its ratings in primitive arrays, so
+ * no object is created per line. Once all the chunks are parsed, their
+ * dictionaries are merged in the order of the file: rows and columns are
+ * numbered in the order they first appear in the file, as
+ * {@link DataMatrix#createDataMatrix(String)} does, whatever the number of
+ * threads.</p>
+ *
+ * @author rbouadjenek
+ */
+final class ParallelRatingsReader {
+
+    /**
+     * Maximum number of bytes of a chunk.
+     */
+    private static final long MAX_CHUNK_SIZE = 1 << 30;
+    /**
+     * Number of bytes mapped after the end of a chunk to finish its last line.
+     */
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+
+    private final String file;
+    private final int numThreads;
+    private Chunk[] chunks;
+    private final Map<String, Integer> rowsMapping = new HashMap<>();
+    private final Map<String, Integer> columnsMapping = new HashMap<>();
+    private int[][] rowRemaps; // Global index of the rows of each chunk
+    private int[][] columnRemaps; // Global index of the columns of each chunk
+    private double max;
+    private long size;
+
+    /**
+     * Create a reader of a text ratings file.
+     *
+     * @param file The text ratings file.
+     * @param numThreads Number of threads parsing the file.
+     */
+    ParallelRatingsReader(String file, int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.file = file;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Parse the file, and number its rows and columns.
+     *
+     * @throws IOException
+     */
+    void read() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final int numChunks = (int) Math.max(numThreads, (fileSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            chunks = new Chunk[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                chunks[c] = new Chunk(channel, fileSize, c * fileSize / numChunks, (c + 1) * fileSize / numChunks);
+            }
+            if (numThreads == 1) {
+                for (Chunk chunk : chunks) {
+                    chunk.parse();
+                }
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(numThreads);
+                try {
+                    pool.invoke(new ParseTask(0, numChunks));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        //--------------------------------------------------------------
+        // Number the rows and the columns in the order of the file
+        //--------------------------------------------------------------
+        rowRemaps = new int[chunks.length][];
+        columnRemaps = new int[chunks.length][];
+        max = 0;
+        size = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            rowRemaps[c] = chunks[c].rowIds.merge(rowsMapping);
+            columnRemaps[c] = chunks[c].columnIds.merge(columnsMapping);
+            if (max < chunks[c].max) {
+                max = chunks[c].max;
+            }
+            size += chunks[c].size;
+        }
+    }
+
+    /**
+     * Visit the ratings in the order of the file.
+     *
+     * @param visitor Visitor receiving the row index, column index and value of
+     * each rating.
+     */
+    void forEach(RatingVisitor visitor) {
+        for (int c = 0; c < chunks.length; c++) {
+            final Chunk chunk = chunks[c];
+            final int[] rowRemap = rowRemaps[c];
+            final int[] columnRemap = columnRemaps[c];
+            for (int p = 0; p < chunk.size; p++) {
+                visitor.visit(rowRemap[chunk.rows[p]], columnRemap[chunk.columns[p]], chunk.ratings[p]);
+            }
+        }
+    }
+
+    /**
+     * Receive the ratings of the file.
+     */
+    interface RatingVisitor {
+
+        void visit(int i, int j, double rating);
+    }
+
+    Map<String, Integer> getRowsMapping() {
+        return rowsMapping;
+    }
+
+    Map<String, Integer> getColumnsMapping() {
+        return columnsMapping;
+    }
+
+    /**
+     * @return Number of ratings read, including the duplicates.
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The maximum rating, or 0 if all the ratings are negative.
+     */
+    double getMax() {
+        return max;
+    }
+
+    /**
+     * Parse a range of chunks, splitting it in two until a single chunk is
+     * left.
+     */
+    private final class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        ParseTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    chunks[from].parse();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(from, middle), new ParseTask(middle, to));
+            }
+        }
+    }
+
+    /**
+     * A byte range of the file, holding the lines that start in this range.
+     */
+    private static final class Chunk {
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final long start, end;
+        private final ByteDictionary rowIds = new ByteDictionary();
+        private final ByteDictionary columnIds = new ByteDictionary();
+        private int[] rows; // Local row index of each rating
+        private int[] columns; // Local column index of each rating
+        private double[] ratings; // Value of each rating
+        private int size;
+        private double max;
+
+        Chunk(FileChannel channel, long fileSize, long start, long end) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse() throws IOException {
+            final int capacity = (int) Math.max(16, (end - start) / 16);
+            rows = new int[capacity];
+            columns = new int[capacity];
+            ratings = new double[capacity];
+            if (start == end) {
+                return;
+            }
+            // the preceding byte tells if the first line starts in the previous chunk
+            final long mapStart = start == 0 ? 0 : start - 1;
+            final long mapEnd = Math.min(fileSize, end + MAX_LINE_LENGTH);
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            final int limit = buffer.limit();
+            final int last = (int) (end - mapStart); // lines starting at or after this position belong to the next chunk
+            int p = 0;
+            if (start > 0) {
+                while (p < limit && buffer.get(p) != '\n') {
+                    p++;
+                }
+                p++;
+            }
+            while (p < last) {
+                int eol = p;
+                while (eol < limit && buffer.get(eol) != '\n') {
+                    eol++;
+                }
+                if (eol == limit && mapEnd < fileSize) {
+                    throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes at byte " + (mapStart + p) + " of the file.");
+                }
+                parseLine(buffer, p, eol);
+                p = eol + 1;
+            }
+        }
+
+        /**
+         * Parse the line [from, to) of the buffer.
+         */
+        private void parseLine(MappedByteBuffer buffer, int from, int to) throws IOException {
+            int p = skipSpaces(buffer, from, to);
+            if (p == to || buffer.get(p) == '#') {
+                return;
+            }
+            final int rowStart = p;
+            p = skipToken(buffer, p, to);
+            final int rowEnd = p;
+            p = skipSpaces(buffer, p, to);
+            final int columnStart = p;
+            p = skipToken(buffer, p, to);
+            final int columnEnd = p;
+            p = skipSpaces(buffer, p, to);
+            final int ratingStart = p;
+            p = skipToken(buffer, p, to);
+            if (columnStart == columnEnd || ratingStart == p) {
+                throw new IOException("Malformed line at byte " + from + " of a chunk starting at byte " + start + ".");
+            }
+            final double rating = parseDouble(buffer, ratingStart, p);
+            if (size == rows.length) {
+                final int capacity = size * 2;
+                rows = Arrays.copyOf(rows, capacity);
+                columns = Arrays.copyOf(columns, capacity);
+                ratings = Arrays.copyOf(ratings, capacity);
+            }
+            rows[size] = rowIds.getOrAdd(buffer, rowStart, rowEnd);
+            columns[size] = columnIds.getOrAdd(buffer, columnStart, columnEnd);
+            ratings[size] = rating;
+            size++;
+            if (max < rating) {
+                max = rating;
+            }
+        }
+
+        private static int skipSpaces(MappedByteBuffer buffer, int p, int to) {
+            while (p < to && buffer.get(p) <= ' ' && buffer.get(p) >= 0) {
+                p++;
+            }
+            return p;
+        }
+
+        private static int skipToken(MappedByteBuffer buffer, int p, int to) {
+            while (p < to && (buffer.get(p) > ' ' || buffer.get(p) < 0)) {
+                p++;
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Powers of ten that are exactly represented as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parse a decimal number without creating any object. Numbers of the form
+     * [-+]digits[.digits] with at most 15 significant digits are computed
+     * exactly as one division of two exact doubles, which gives the same
+     * result as {@link Double#parseDouble(String)}. Other numbers are given to
+     * {@link Double#parseDouble(String)}.
+     */
+    static double parseDouble(MappedByteBuffer buffer, int from, int to) {
+        int p = from;
+        boolean negative = false;
+        if (buffer.get(p) == '-' || buffer.get(p) == '+') {
+            negative = buffer.get(p) == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean point = false;
+        boolean anyDigit = false;
+        boolean fast = true;
+        for (; p < to; p++) {
+            final byte b = buffer.get(p);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                anyDigit = true;
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (point) {
+                    decimals++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                fast = false;
+                break;
+            }
+        }
+        if (fast && anyDigit && digits <= 15 && decimals < POWERS_OF_TEN.length) {
+            final double value = mantissa / POWERS_OF_TEN[decimals];
+            return negative ? -value : value;
+        }
+        final byte[] bytes = new byte[to - from];
+        for (int q = 0; q < bytes.length; q++) {
+            bytes[q] = buffer.get(from + q);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Dictionary numbering byte strings in the order they are added. The bytes
+     * of the strings are kept in a single array and looked up by open
+     * addressing, so looking up a known string does not create any object.
+     */
+    private static final class ByteDictionary {
+
+        private byte[] bytes = new byte[1 << 12]; // Bytes of all the strings
+        private int[] offsets = new int[1 << 8]; // Start of each string in bytes, plus the end of the last one
+        private int[] table = new int[1 << 9]; // Index + 1 of the string in each slot, 0 for a free slot
+        private int[] hashes = new int[1 << 8]; // Hash of each string
+        private int count;
+
+        /**
+         * Find the index of a string, adding it if it is not known yet.
+         */
+        int getOrAdd(MappedByteBuffer buffer, int from, int to) {
+            final int length = to - from;
+            int h = 0;
+            for (int p = from; p < to; p++) {
+                h = 31 * h + buffer.get(p);
+            }
+            h ^= h >>> 16;
+            final int mask = table.length - 1;
+            for (int slot = h & mask;; slot = (slot + 1) & mask) {
+                final int id = table[slot] - 1;
+                if (id < 0) {
+                    break;
+                }
+                if (hashes[id] == h && offsets[id + 1] - offsets[id] == length && equals(id, buffer, from)) {
+                    return id;
+                }
+            }
+            //--------------------------------------------------------------
+            // New string
+            //--------------------------------------------------------------
+            final int id = count++;
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2 + 1);
+            }
+            final int offset = offsets[id];
+            if (offset + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, offset + length));
+            }
+            for (int p = 0; p < length; p++) {
+                bytes[offset + p] = buffer.get(from + p);
+            }
+            offsets[id + 1] = offset + length;
+            hashes[id] = h;
+            if (count * 2 > table.length) {
+                rehash();
+            } else {
+                insert(id);
+            }
+            return id;
+        }
+
+        private boolean equals(int id, MappedByteBuffer buffer, int from) {
+            for (int p = offsets[id], q = from; p < offsets[id + 1]; p++, q++) {
+                if (bytes[p] != buffer.get(q)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int id) {
+            final int mask = table.length - 1;
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            for (int id = 0; id < count; id++) {
+                insert(id);
+            }
+        }
+
+        /**
+         * Give the strings of this dictionary their index in a global
+         * mapping, adding those that are not in it yet.
+         *
+         * @param mapping Global mapping of the strings.
+         * @return The global index of each string of this dictionary.
+         */
+        int[] merge(Map<String, Integer> mapping) {
+            final int[] remap = new int[count];
+            for (int id = 0; id < count; id++) {
+                final String s = new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+                Integer index = mapping.get(s);
+                if (index == null) {
+                    index = mapping.size();
+                    mapping.put(s, index);
+                }
+                remap[id] = index;
+            }
+            return remap;
+        }
+    }
+}
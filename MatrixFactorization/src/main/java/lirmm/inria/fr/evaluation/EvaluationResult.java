@@ -0,0 +1,193 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.evaluation;
+
+import java.io.PrintStream;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Errors of a factorization on a test set, computed by
+ * {@link Metrics#evaluate}: the MAE and the RMSE of the predictions and of a
+ * random baseline, overall and by degree of the rows and of the columns, the degree of a row or of a
+ * column being its number of non-zero elements.
+ *
+ * @author rbouadjenek
+ */
+public final class EvaluationResult {
+
+    private long count; // Number of test entries
+    private double absoluteError; // Sum of the absolute errors of the predictions
+    private double squaredError; // Sum of the squared errors of the predictions
+    private double randomAbsoluteError; // Sum of the absolute errors of the random baseline
+    private double randomSquaredError; // Sum of the squared errors of the random baseline
+    private final long[] rowCount; // Number of test entries by degree of their row
+    private final double[] rowAbsoluteError; // Sum of the absolute errors by degree of the row
+    private final double[] rowSquaredError; // Sum of the squared errors by degree of the row
+    private final long[] columnCount; // Number of test entries by degree of their column
+    private final double[] columnAbsoluteError; // Sum of the absolute errors by degree of the column
+    private final double[] columnSquaredError; // Sum of the squared errors by degree of the column
+
+    /**
+     * Create an empty result.
+     *
+     * @param maxRowDegree Maximum degree of a row.
+     * @param maxColumnDegree Maximum degree of a column.
+     */
+    EvaluationResult(int maxRowDegree, int maxColumnDegree) {
+        this.rowCount = new long[maxRowDegree + 1];
+        this.rowAbsoluteError = new double[maxRowDegree + 1];
+        this.rowSquaredError = new double[maxRowDegree + 1];
+        this.columnCount = new long[maxColumnDegree + 1];
+        this.columnAbsoluteError = new double[maxColumnDegree + 1];
+        this.columnSquaredError = new double[maxColumnDegree + 1];
+    }
+
+    /**
+     * Add the errors of a test entry.
+     */
+    void add(int rowDegree, int columnDegree, double error, double randomError) {
+        final double absolute = FastMath.abs(error);
+        final double squared = error * error;
+        count++;
+        absoluteError += absolute;
+        squaredError += squared;
+        randomAbsoluteError += FastMath.abs(randomError);
+        randomSquaredError += randomError * randomError;
+        rowCount[rowDegree]++;
+        rowAbsoluteError[rowDegree] += absolute;
+        rowSquaredError[rowDegree] += squared;
+        columnCount[columnDegree]++;
+        columnAbsoluteError[columnDegree] += absolute;
+        columnSquaredError[columnDegree] += squared;
+    }
+
+    /**
+     * Add the errors of another result, computed on other test entries.
+     */
+    void merge(EvaluationResult other) {
+        count += other.count;
+        absoluteError += other.absoluteError;
+        squaredError += other.squaredError;
+        randomAbsoluteError += other.randomAbsoluteError;
+        randomSquaredError += other.randomSquaredError;
+        for (int d = 0; d < rowCount.length; d++) {
+            rowCount[d] += other.rowCount[d];
+            rowAbsoluteError[d] += other.rowAbsoluteError[d];
+            rowSquaredError[d] += other.rowSquaredError[d];
+        }
+        for (int d = 0; d < columnCount.length; d++) {
+            columnCount[d] += other.columnCount[d];
+            columnAbsoluteError[d] += other.columnAbsoluteError[d];
+            columnSquaredError[d] += other.columnSquaredError[d];
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMAE() {
+        return absoluteError / count;
+    }
+
+    public double getRMSE() {
+        return FastMath.sqrt(squaredError / count);
+    }
+
+    public double getRandomMAE() {
+        return randomAbsoluteError / count;
+    }
+
+    public double getRandomRMSE() {
+        return FastMath.sqrt(randomSquaredError / count);
+    }
+
+    public int getMaxRowDegree() {
+        return rowCount.length - 1;
+    }
+
+    /**
+     * @param degree A degree of a row.
+     * @return The number of test entries whose row has this degree.
+     */
+    public long getRowCount(int degree) {
+        return rowCount[degree];
+    }
+
+    /**
+     * @param degree A degree of a row.
+     * @return The MAE on the test entries whose row has this degree, NaN if
+     * there are none.
+     */
+    public double getRowMAE(int degree) {
+        return rowAbsoluteError[degree] / rowCount[degree];
+    }
+
+    /**
+     * @param degree A degree of a row.
+     * @return The RMSE on the test entries whose row has this degree, NaN if
+     * there are none.
+     */
+    public double getRowRMSE(int degree) {
+        return FastMath.sqrt(rowSquaredError[degree] / rowCount[degree]);
+    }
+
+    public int getMaxColumnDegree() {
+        return columnCount.length - 1;
+    }
+
+    /**
+     * @param degree A degree of a column.
+     * @return The number of test entries whose column has this degree.
+     */
+    public long getColumnCount(int degree) {
+        return columnCount[degree];
+    }
+
+    /**
+     * @param degree A degree of a column.
+     * @return The MAE on the test entries whose column has this degree, NaN if
+     * there are none.
+     */
+    public double getColumnMAE(int degree) {
+        return columnAbsoluteError[degree] / columnCount[degree];
+    }
+
+    /**
+     * @param degree A degree of a column.
+     * @return The RMSE on the test entries whose column has this degree, NaN
+     * if there are none.
+     */
+    public double getColumnRMSE(int degree) {
+        return FastMath.sqrt(columnSquaredError[degree] / columnCount[degree]);
+    }
+
+    /**
+     * Print the errors by degree of the rows, by degree of the columns, then
+     * overall.
+     *
+     * @param out The stream to print to.
+     */
+    public void print(PrintStream out) {
+        out.println("******************************************");
+        for (int d = 0; d < rowCount.length; d++) {
+            if (rowCount[d] != 0) {
+                out.println(d + "\t" + rowCount[d] + "\t" + getRowMAE(d) + "\t" + getRowRMSE(d));
+            }
+        }
+        out.println("******************************************");
+        for (int d = 0; d < columnCount.length; d++) {
+            if (columnCount[d] != 0) {
+                out.println(d + "\t" + columnCount[d] + "\t" + getColumnMAE(d) + "\t" + getColumnRMSE(d));
+            }
+        }
+        out.println("******************************************");
+        out.println("Type\tMAE\tRMSE");
+        out.println("DPMF\t" + getMAE() + "\t" + getRMSE());
+        out.println("Random\t" + getRandomMAE() + "\t" + getRandomRMSE());
+        out.println("******************************************");
+    }
+}
@@ -5,10 +5,12 @@
  */
 package lirmm.inria.fr.evaluation;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import lirmm.inria.fr.data.DataMatrix;
-import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
 import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
-import org.apache.commons.math3.util.FastMath;
 
 /**
  *
@@ -17,86 +19,115 @@ import org.apache.commons.math3.util.FastMath;
 public class Metrics {
 
     /**
-     * This function aims to optimize the dot product
+     * Seed of the random baseline of {@link #evaluate(DataMatrix, DenseFactorMatrix, DenseFactorMatrix)}.
      */
-    private static double getDotProduct(BigSparseRealMatrix U, int col1, BigSparseRealMatrix V, int col2) {
-        double dot = 0;
-        for (int i = 0; i < U.getRowDimension(); i++) {
-            dot += U.getEntry(i, col1) * V.getEntry(i, col2);
-        }
-        return dot;
+    public static final long DEFAULT_SEED = 42;
+
+    public static void evaluate(DataMatrix R, DenseFactorMatrix U, DenseFactorMatrix V) {
+        evaluate(R, U, V, Runtime.getRuntime().availableProcessors(), DEFAULT_SEED).print(System.out);
     }
 
-    public static void evaluate(DataMatrix R, BigSparseRealMatrix U, BigSparseRealMatrix V) {
-        OpenLongToDoubleHashMap rowsMAE = new OpenLongToDoubleHashMap(0.0);
-        OpenLongToDoubleHashMap rowsRMSE = new OpenLongToDoubleHashMap(0.0);
-        OpenLongToDoubleHashMap rowsT = new OpenLongToDoubleHashMap(0.0);
-        //-------------------------------------------------------------------
-        OpenLongToDoubleHashMap columnsMAE = new OpenLongToDoubleHashMap(0.0);
-        OpenLongToDoubleHashMap columnsRMSE = new OpenLongToDoubleHashMap(0.0);
-        OpenLongToDoubleHashMap columnsT = new OpenLongToDoubleHashMap(0.0);
+    /**
+     * Evaluate a factorization on the test set of R. The slots of the test set
+     * are split between the threads, each thread adds the errors of its test
+     * entries to its own arrays indexed by the degree of the rows and of the
+     * columns, and the arrays are merged at the end.
+     *
+     * @param R The matrix whose test set is evaluated.
+     * @param U The user's latent features.
+     * @param V The item's latent features.
+     * @param numThreads Number of threads.
+     * @param seed Seed of the random baseline. For a given seed and number of
+     * threads, the results are always the same.
+     * @return The errors of the factorization.
+     */
+    public static EvaluationResult evaluate(DataMatrix R, DenseFactorMatrix U, DenseFactorMatrix V, int numThreads, long seed) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        int maxRowDegree = 0;
+        for (int i = 0; i < R.getRowDimension(); i++) {
+            maxRowDegree = Math.max(maxRowDegree, R.getRowNonZeroEntry(i));
+        }
+        int maxColumnDegree = 0;
+        for (int j = 0; j < R.getColumnDimension(); j++) {
+            maxColumnDegree = Math.max(maxColumnDegree, R.getColumnNonZeroEntry(j));
+        }
+        final EvaluationResult[] partials = new EvaluationResult[numThreads];
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (int t = 0; t < numThreads; t++) {
+            partials[t] = new EvaluationResult(maxRowDegree, maxColumnDegree);
+        }
+        final EvaluationTask task = new EvaluationTask(R, U, V, partials, random, 0, numThreads);
+        if (numThreads == 1) {
+            task.compute();
+        } else {
+            final ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (int t = 1; t < numThreads; t++) {
+            partials[0].merge(partials[t]);
+        }
+        return partials[0];
+    }
 
-        double RMSE = 0;
-        double MAE = 0;
-        double RMSERand = 0;
-        double MAERand = 0;
-        int k = 0;
-        for (OpenLongToDoubleHashMap.Iterator iterator = R.getTestSetEntries().iterator(); iterator.hasNext();) {
-            k++;
-            iterator.advance();
-            final double value = iterator.value();
-            final long key = iterator.key();
-            final int i, j;
-            i = (int) (key / R.getColumnDimension());
-            j = (int) (key % R.getColumnDimension());
-//            double estimation = U.transpose().getRowVector(j).dotProduct(V.getColumnVector(j));
-            double estimation = getDotProduct(U, i, V, j);
-            RMSE += FastMath.pow(value - estimation, 2);
-            MAE += FastMath.abs(value - estimation);
-            double r = Math.random() * R.getMax();
-            RMSERand += FastMath.pow(value - r, 2);
-            MAERand += FastMath.abs(value - r);
+    /**
+     * Evaluate the test entries of the slots assigned to the threads
+     * [from, to) of the test set.
+     */
+    private static final class EvaluationTask extends RecursiveAction {
 
-            double v = rowsMAE.get(R.getRowNonZeroEntry(i));
-            rowsMAE.put(R.getRowNonZeroEntry(i), v + FastMath.abs(value - estimation));
-            v = rowsRMSE.get(R.getRowNonZeroEntry(i));
-            rowsRMSE.put(R.getRowNonZeroEntry(i), v + FastMath.pow(value - estimation, 2));
-            v = rowsT.get(R.getRowNonZeroEntry(i));
-            rowsT.put(R.getRowNonZeroEntry(i), v + 1);
+        private static final long serialVersionUID = 1L;
+        private final DataMatrix R;
+        private final DenseFactorMatrix U;
+        private final DenseFactorMatrix V;
+        private final EvaluationResult[] partials; // Result of each thread
+        private final SplittableRandom random; // Random generator of the thread from
+        private final int from;
+        private final int to;
 
-            v = columnsMAE.get(R.getColumnNonZeroEntry(j));
-            columnsMAE.put(R.getColumnNonZeroEntry(j), v + FastMath.abs(value - estimation));
-            v = columnsRMSE.get(R.getColumnNonZeroEntry(j));
-            columnsRMSE.put(R.getColumnNonZeroEntry(j), v + FastMath.pow(value - estimation, 2));
-            v = columnsT.get(R.getColumnNonZeroEntry(j));
-            columnsT.put(R.getColumnNonZeroEntry(j), v + 1);
-        }
-        System.out.println("******************************************");
-        for (OpenLongToDoubleHashMap.Iterator iterator = rowsMAE.iterator(); iterator.hasNext();) {
-            iterator.advance();
-            final long key = iterator.key();
-            double localMAE = rowsMAE.get(key) / rowsT.get(key);
-            double localRMSE = FastMath.sqrt(rowsRMSE.get(key) / rowsT.get(key));
-            System.out.println(key + "\t" + (int) rowsT.get(key) + "\t" + localMAE + "\t" + localRMSE);
+        EvaluationTask(DataMatrix R, DenseFactorMatrix U, DenseFactorMatrix V, EvaluationResult[] partials,
+                SplittableRandom random, int from, int to) {
+            this.R = R;
+            this.U = U;
+            this.V = V;
+            this.partials = partials;
+            this.random = random;
+            this.from = from;
+            this.to = to;
         }
-        System.out.println("******************************************");
-        for (OpenLongToDoubleHashMap.Iterator iterator = columnsMAE.iterator(); iterator.hasNext();) {
-            iterator.advance();
-            final long key = iterator.key();
-            double localMAE = columnsMAE.get(key) / columnsT.get(key);
-            double localRMSE = FastMath.sqrt(columnsRMSE.get(key) / columnsT.get(key));
-            System.out.println(key + "\t" + (int) columnsT.get(key) + "\t" + localMAE + "\t" + localRMSE);
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                // split the generator before forking, so that each thread draws the same numbers whatever the scheduling
+                final SplittableRandom second = random.split();
+                invokeAll(new EvaluationTask(R, U, V, partials, random, from, middle),
+                        new EvaluationTask(R, U, V, partials, second, middle, to));
+                return;
+            }
+            final OpenLongToDoubleHashMap test = R.getTestSetEntries();
+            final long slots = test.capacity();
+            final OpenLongToDoubleHashMap.Iterator iterator = test.iterator(
+                    (int) (from * slots / partials.length), (int) (to * slots / partials.length));
+            final EvaluationResult result = partials[from];
+            final long columnDimension = R.getColumnDimension();
+            final double max = R.getMax();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                final double value = iterator.value();
+                final long key = iterator.key();
+                final int i = (int) (key / columnDimension);
+                final int j = (int) (key % columnDimension);
+                double estimation = U.dotProduct(i, V, j);
+                result.add(R.getRowNonZeroEntry(i), R.getColumnNonZeroEntry(j),
+                        value - estimation, value - random.nextDouble() * max);
+            }
         }
-        RMSE /= k;
-        MAE /= k;
-        RMSE = FastMath.sqrt(RMSE);
-        RMSERand /= k;
-        MAERand /= k;
-        RMSERand = FastMath.sqrt(RMSERand);
-        System.out.println("******************************************");
-        System.out.println("Type\tMAE\tRMSE");
-        System.out.println("DPMF\t" + MAE + "\t" + RMSE);
-        System.out.println("Random\t" + MAERand + "\t" + RMSERand);
-        System.out.println("******************************************");
     }
 }
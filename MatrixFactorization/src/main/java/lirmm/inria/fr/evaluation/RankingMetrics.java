@@ -0,0 +1,154 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.evaluation;
+
+import java.util.Arrays;
+import lirmm.inria.fr.data.DataMatrix;
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+import lirmm.inria.fr.recommendation.pmf.Point;
+import lirmm.inria.fr.recommendation.pmf.TopNRecommender;
+
+/**
+ * Ranking metrics of a factorization. The relevant items of a user are the
+ * items of the test set the user rated at least a given threshold. Each user
+ * gets the top max(K) items among those not in the training set, by
+ * {@link TopNRecommender}, and the metrics of all the cutoffs K are computed
+ * in a single walk down this list: the hits, the DCG and the sum of the
+ * precisions at the hits are accumulated once and read at each cutoff.
+ *
+ * @author rbouadjenek
+ */
+public class RankingMetrics {
+
+    /**
+     * Number of users whose lists are held at once.
+     */
+    private static final int USERS_PER_BATCH = 1 << 14;
+
+    /**
+     * Evaluate the ranking quality of a factorization on the test set of R.
+     * The users are scored in parallel.
+     *
+     * @param R The matrix whose training entries are not recommended and
+     * whose test set holds the relevant items.
+     * @param point The latent features of the users and of the items.
+     * @param ks The cutoffs K.
+     * @param threshold Minimum rating of a relevant item.
+     * @param numThreads Number of threads.
+     * @return The metrics, averaged over the users having relevant items.
+     */
+    public static RankingResult evaluate(DataMatrix R, Point point, int[] ks, double threshold, int numThreads) {
+        final int[] cutoffs = ks.clone();
+        Arrays.sort(cutoffs);
+        if (cutoffs.length == 0 || cutoffs[0] < 1) {
+            throw new IllegalArgumentException("The cutoffs must be positive: " + Arrays.toString(ks));
+        }
+        for (int c = 1; c < cutoffs.length; c++) {
+            if (cutoffs[c] == cutoffs[c - 1]) {
+                throw new IllegalArgumentException("The cutoffs must be distinct: " + Arrays.toString(ks));
+            }
+        }
+        final int maxK = cutoffs[cutoffs.length - 1];
+        //--------------------------------------------------------------
+        // Relevant items of each user, grouped and sorted
+        //--------------------------------------------------------------
+        final int rowDimension = R.getRowDimension();
+        final long columnDimension = R.getColumnDimension();
+        final int[] pointers = new int[rowDimension + 1];
+        final OpenLongToDoubleHashMap test = R.getTestSetEntries();
+        for (OpenLongToDoubleHashMap.Iterator iterator = test.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            if (iterator.value() >= threshold) {
+                pointers[(int) (iterator.key() / columnDimension) + 1]++;
+            }
+        }
+        int numUsers = 0;
+        for (int i = 0; i < rowDimension; i++) {
+            if (pointers[i + 1] != 0) {
+                numUsers++;
+            }
+            pointers[i + 1] += pointers[i];
+        }
+        final int[] relevant = new int[pointers[rowDimension]];
+        final int[] next = Arrays.copyOf(pointers, rowDimension);
+        for (OpenLongToDoubleHashMap.Iterator iterator = test.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            if (iterator.value() >= threshold) {
+                relevant[next[(int) (iterator.key() / columnDimension)]++] = (int) (iterator.key() % columnDimension);
+            }
+        }
+        final int[] users = new int[numUsers];
+        for (int i = 0, u = 0; i < rowDimension; i++) {
+            if (pointers[i + 1] != pointers[i]) {
+                Arrays.sort(relevant, pointers[i], pointers[i + 1]);
+                users[u++] = i;
+            }
+        }
+        //--------------------------------------------------------------
+        // Ideal DCG of the first n ranks
+        //--------------------------------------------------------------
+        final double[] idcg = new double[maxK + 1];
+        for (int n = 1; n <= maxK; n++) {
+            idcg[n] = idcg[n - 1] + discount(n);
+        }
+        //--------------------------------------------------------------
+        // Top max(K) items of the users, batch by batch
+        //--------------------------------------------------------------
+        final TopNRecommender recommender = new TopNRecommender(point, R);
+        recommender.setNumThreads(numThreads);
+        final double[] precision = new double[cutoffs.length];
+        final double[] recall = new double[cutoffs.length];
+        final double[] ndcg = new double[cutoffs.length];
+        final double[] map = new double[cutoffs.length];
+        try {
+            for (int first = 0; first < numUsers; first += USERS_PER_BATCH) {
+                final int[] batch = Arrays.copyOfRange(users, first, Math.min(numUsers, first + USERS_PER_BATCH));
+                final int[][] lists = recommender.recommend(batch, maxK);
+                for (int b = 0; b < batch.length; b++) {
+                    final int from = pointers[batch[b]];
+                    final int to = pointers[batch[b] + 1];
+                    final int numRelevant = to - from;
+                    final int[] list = lists[b];
+                    int hits = 0;
+                    double dcg = 0;
+                    double sumPrecision = 0;
+                    int c = 0;
+                    for (int rank = 1; rank <= maxK; rank++) {
+                        if (rank <= list.length && Arrays.binarySearch(relevant, from, to, list[rank - 1]) >= 0) {
+                            hits++;
+                            dcg += discount(rank);
+                            sumPrecision += (double) hits / rank;
+                        }
+                        while (c < cutoffs.length && cutoffs[c] == rank) {
+                            final int ideal = Math.min(rank, numRelevant);
+                            precision[c] += (double) hits / rank;
+                            recall[c] += (double) hits / numRelevant;
+                            ndcg[c] += dcg / idcg[ideal];
+                            map[c] += sumPrecision / ideal;
+                            c++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            recommender.close();
+        }
+        for (int c = 0; c < cutoffs.length; c++) {
+            precision[c] /= numUsers;
+            recall[c] /= numUsers;
+            ndcg[c] /= numUsers;
+            map[c] /= numUsers;
+        }
+        return new RankingResult(cutoffs, numUsers, precision, recall, ndcg, map);
+    }
+
+    /**
+     * Discount of the rank of an item in the DCG.
+     */
+    private static double discount(int rank) {
+        return 1 / (Math.log(rank + 1) / Math.log(2));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.evaluation;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Ranking quality of a factorization on a test set, computed by
+ * {@link RankingMetrics#evaluate}: the Precision, the Recall, the NDCG and the
+ * MAP at several cutoffs K, averaged over the users having relevant test
+ * items.
+ *
+ * @author rbouadjenek
+ */
+public final class RankingResult {
+
+    private final int[] ks; // Cutoffs, in increasing order
+    private final int numUsers; // Number of users evaluated
+    private final double[] precision; // Mean Precision@K for each cutoff
+    private final double[] recall; // Mean Recall@K for each cutoff
+    private final double[] ndcg; // Mean NDCG@K for each cutoff
+    private final double[] map; // MAP@K for each cutoff
+
+    RankingResult(int[] ks, int numUsers, double[] precision, double[] recall, double[] ndcg, double[] map) {
+        this.ks = ks;
+        this.numUsers = numUsers;
+        this.precision = precision;
+        this.recall = recall;
+        this.ndcg = ndcg;
+        this.map = map;
+    }
+
+    /**
+     * @return The cutoffs, in increasing order.
+     */
+    public int[] getKs() {
+        return ks.clone();
+    }
+
+    /**
+     * @return The number of users having relevant test items, over which the
+     * metrics are averaged.
+     */
+    public int getNumUsers() {
+        return numUsers;
+    }
+
+    public double getPrecision(int K) {
+        return precision[indexOf(K)];
+    }
+
+    public double getRecall(int K) {
+        return recall[indexOf(K)];
+    }
+
+    public double getNDCG(int K) {
+        return ndcg[indexOf(K)];
+    }
+
+    public double getMAP(int K) {
+        return map[indexOf(K)];
+    }
+
+    private int indexOf(int K) {
+        final int index = Arrays.binarySearch(ks, K);
+        if (index < 0) {
+            throw new IllegalArgumentException("The cutoff " + K + " was not evaluated: " + Arrays.toString(ks));
+        }
+        return index;
+    }
+
+    /**
+     * Print the metrics, one line per cutoff.
+     *
+     * @param out The stream to print to.
+     */
+    public void print(PrintStream out) {
+        out.println("******************************************");
+        out.println("K\tP@K\tR@K\tNDCG@K\tMAP@K");
+        for (int c = 0; c < ks.length; c++) {
+            out.println(ks[c] + "\t" + precision[c] + "\t" + recall[c] + "\t" + ndcg[c] + "\t" + map[c]);
+        }
+        out.println("******************************************");
+    }
+}
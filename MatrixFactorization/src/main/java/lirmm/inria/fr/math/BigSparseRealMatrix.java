@@ -9,8 +9,11 @@ import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 //import lirmm.inria.fr.peersim.dpmf.Mapping;
 import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
 import org.apache.commons.math3.exception.NoDataException;
 import org.apache.commons.math3.exception.NotStrictlyPositiveException;
 import org.apache.commons.math3.exception.NumberIsTooLargeException;
@@ -53,9 +56,23 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
      */
     private final int columns;
     /**
-     * Storage for (sparse) matrix elements.
+     * Storage for (sparse) matrix elements, or {@code null} once the matrix
+     * has been compressed.
      */
-    private final OpenLongToDoubleHashMap entries;
+    private OpenLongToDoubleHashMap entries;
+
+    /**
+     * Read-only compressed storage for the matrix elements, or {@code null}
+     * while the matrix is backed by {@link #entries}.
+     */
+    private CompressedSparseStorage compressed;
+
+    /**
+     * Number of matrices using {@link #entries}, shared by all of them, or
+     * {@code null} if only this matrix uses it. A shared storage is copied
+     * before being modified, unless the other matrices stopped using it.
+     */
+    private AtomicInteger entryOwners;
 
     /**
      * Indicate if the matrix is transposed.
@@ -85,6 +102,45 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         this.entries = new OpenLongToDoubleHashMap(0.0);
     }
 
+    /**
+     * Build a sparse matrix whose storage is sized upfront for a known number
+     * of non-zero elements, so that it is not resized while being filled.
+     *
+     * @param rowDimension Number of rows of the matrix.
+     * @param columnDimension Number of columns of the matrix.
+     * @param expectedSize Expected number of non-zero elements.
+     * @throws NotStrictlyPositiveException if i or column dimension is not
+     * positive.
+     * @throws NumberIsTooLargeException if the total number of entries of the
+     * matrix is larger than {@code Integer.MAX_VALUE}.
+     */
+    protected BigSparseRealMatrix(int rowDimension, int columnDimension, int expectedSize)
+            throws NotStrictlyPositiveException, NumberIsTooLargeException {
+        this(rowDimension, columnDimension);
+        this.entries = new OpenLongToDoubleHashMap(expectedSize, 0.0);
+    }
+
+    /**
+     * Build a sparse matrix on top of a given hash storage, e.g. a map stored
+     * off the heap by {@link OpenLongToDoubleHashMap#offHeap}. The matrix
+     * reads and writes its elements through the map, and the copies of the
+     * matrix are stored like it, until the matrix is compressed: the
+     * compressed storage read by the solvers is on the heap (see
+     * {@link #compress()}).
+     *
+     * @param rowDimension Number of rows of the matrix.
+     * @param columnDimension Number of columns of the matrix.
+     * @param entries Elements of the matrix, whose keys are computed as
+     * {@code row * columnDimension + column}; usually an empty map.
+     * @throws NotStrictlyPositiveException if i or column dimension is not
+     * positive.
+     */
+    public BigSparseRealMatrix(int rowDimension, int columnDimension, OpenLongToDoubleHashMap entries)
+            throws NotStrictlyPositiveException {
+        this(rowDimension, columnDimension);
+        this.entries = entries;
+    }
+
     /**
      * Build a matrix by copying another one.
      *
@@ -94,7 +150,30 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         this.rows = matrix.rows;
         this.columns = matrix.columns;
         this.isTransposed = matrix.isTransposed;
-        this.entries = new OpenLongToDoubleHashMap(matrix.entries);
+        if (matrix.compressed != null) {
+            // the compressed storage is read-only, it can be shared
+            this.compressed = matrix.compressed;
+        } else {
+            this.entries = new OpenLongToDoubleHashMap(matrix.entries);
+        }
+    }
+
+    /**
+     * Build a matrix on top of existing elements.
+     *
+     * @param rows Number of rows of the storage.
+     * @param columns Number of columns of the storage.
+     * @param entries Hash storage of the elements, or {@code null}.
+     * @param compressed Compressed storage of the elements, or {@code null}.
+     * @param isTransposed Indicate if the matrix is transposed.
+     */
+    private BigSparseRealMatrix(int rows, int columns, OpenLongToDoubleHashMap entries,
+            CompressedSparseStorage compressed, boolean isTransposed) {
+        this.rows = rows;
+        this.columns = columns;
+        this.entries = entries;
+        this.compressed = compressed;
+        this.isTransposed = isTransposed;
     }
 
     /**
@@ -185,6 +264,9 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         }
         MatrixUtils.checkRowIndex(this, row);
         MatrixUtils.checkColumnIndex(this, column);
+        if (compressed != null) {
+            return compressed.get(rowIndex, columnIndex);
+        }
         return entries.get(computeKey(rowIndex, columnIndex));
     }
 
@@ -204,6 +286,7 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         }
 //        MatrixUtils.checkRowIndex(this, row);
         MatrixUtils.checkColumnIndex(this, column);
+        prepareWrite();
         if (value == 0.0) {
             entries.remove(computeKey(rowIndex, columnIndex));
         } else {
@@ -211,11 +294,171 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The transpose is a view sharing the storage of this matrix, nothing is
+     * copied. If either matrix is modified afterwards, its elements are first
+     * copied so that the other one is left untouched.</p>
+     */
     @Override
     public BigSparseRealMatrix transpose() {
-        //need to be improved! tool complexe method!
-        BigSparseRealMatrix out = this.copy();
-        out.isTransposed = !out.isTransposed;
+        final BigSparseRealMatrix out = new BigSparseRealMatrix(rows, columns, entries, compressed, !isTransposed);
+        if (compressed == null) {
+            if (entryOwners == null) {
+                entryOwners = new AtomicInteger(1);
+            }
+            entryOwners.incrementAndGet();
+            out.entryOwners = entryOwners;
+        }
+        return out;
+    }
+
+    /**
+     * Switch the matrix to a read-only compressed sparse row/column storage.
+     * The hash storage is released, so that each non-zero element only costs
+     * its value, its row and column indices and its position in the CSC order.
+     * Once compressed, the matrix can no longer be modified, but row and
+     * column scans run sequentially over contiguous arrays. A hash storage
+     * kept off the heap is released, unless a transposed view still uses it;
+     * the compressed storage is always on the heap. This method does nothing if the matrix is already compressed.
+     */
+    public void compress() {
+        if (compressed == null) {
+            compressed = new CompressedSparseStorage(rows, columns, entries);
+            if (detachEntries()) {
+                entries.release();
+            }
+            entries = null;
+        }
+    }
+
+    /**
+     * Indicate if the matrix uses the read-only compressed storage.
+     *
+     * @return true if the matrix has been compressed.
+     */
+    public boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * Return the compressed storage of the matrix. Rows and columns of the
+     * storage are those of the untransposed matrix.
+     *
+     * @return The compressed storage, or {@code null} if the matrix is not
+     * compressed.
+     */
+    public CompressedSparseStorage getCompressedStorage() {
+        return compressed;
+    }
+
+    /**
+     * Return a compressed storage of the current elements of the matrix,
+     * without compressing the matrix itself. If the matrix is already
+     * compressed, its storage is returned and nothing is copied; otherwise a
+     * snapshot is built, and later changes of the matrix are not seen by it.
+     * Rows and columns of the storage are those of the untransposed matrix.
+     * <p>
+     * The solvers and the recommenders read their matrix through this
+     * method. A matrix compressed beforehand with {@link #compress()} is
+     * shared by all of them, whereas each of them keeps its own copy of the
+     * elements of an uncompressed matrix, in addition to its hash storage.</p>
+     *
+     * @return The compressed storage of the elements.
+     */
+    public CompressedSparseStorage toCompressedStorage() {
+        if (compressed != null) {
+            return compressed;
+        }
+        return new CompressedSparseStorage(rows, columns, entries);
+    }
+
+    /**
+     * Return a read-only compressed view of the current elements of the
+     * matrix, leaving the matrix itself modifiable. The storage of the view
+     * is the one of {@link #toCompressedStorage()}, so it is only shared with
+     * the matrix if the matrix is compressed.
+     *
+     * @return The compressed view.
+     */
+    public BigSparseRealMatrix compressedView() {
+        return new BigSparseRealMatrix(rows, columns, null, toCompressedStorage(), isTransposed);
+    }
+
+    /**
+     * Check that the matrix can be modified.
+     *
+     * @throws MathUnsupportedOperationException if the matrix is compressed.
+     */
+    private void checkMutable() throws MathUnsupportedOperationException {
+        if (compressed != null) {
+            throw new MathUnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Make sure the hash storage can be modified: it must not be compressed,
+     * and it is copied if it is shared with another matrix.
+     *
+     * @throws MathUnsupportedOperationException if the matrix is compressed.
+     */
+    private void prepareWrite() throws MathUnsupportedOperationException {
+        checkMutable();
+        if (entryOwners != null && !detachEntries()) {
+            entries = new OpenLongToDoubleHashMap(entries);
+        }
+    }
+
+    /**
+     * Stop sharing the hash storage with the other matrices using it.
+     *
+     * @return true if no other matrix uses the storage any more, so that it
+     * can be modified in place or released.
+     */
+    private boolean detachEntries() {
+        final boolean last = entryOwners == null || entryOwners.decrementAndGet() == 0;
+        entryOwners = null;
+        return last;
+    }
+
+    /**
+     * Replace the elements of the matrix, e.g. by a map sized for them. A
+     * previous hash storage kept off the heap is released, unless a
+     * transposed view still uses it.
+     *
+     * @param entries The new hash storage of the elements, whose keys are
+     * computed as by this matrix.
+     * @throws MathUnsupportedOperationException if the matrix is compressed.
+     */
+    protected void setEntries(OpenLongToDoubleHashMap entries) throws MathUnsupportedOperationException {
+        checkMutable();
+        if (this.entries != entries) {
+            if (detachEntries()) {
+                this.entries.release();
+            }
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Return a modifiable copy of the elements of the matrix.
+     *
+     * @return A new hash storage holding the elements of the matrix.
+     */
+    private OpenLongToDoubleHashMap copyEntries() {
+        if (compressed == null) {
+            return new OpenLongToDoubleHashMap(entries);
+        }
+        final OpenLongToDoubleHashMap out = new OpenLongToDoubleHashMap(compressed.getDataSize(), 0.0);
+        final int[] rowPointers = compressed.getRowPointers();
+        final int[] columnIndices = compressed.getColumnIndices();
+        final double[] values = compressed.getValues();
+        for (int i = 0; i < rows; i++) {
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                out.put(computeKey(i, columnIndices[p]), values[p]);
+            }
+        }
         return out;
     }
 
@@ -301,15 +544,21 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
      * @return Number of non-zero elements in the Matrix.
      */
     public int getDataSize() {
+        if (compressed != null) {
+            return compressed.getDataSize();
+        }
         return entries.size();
     }
 
     /**
-     * Return the entries of the Matrix
+     * Return the entries of the Matrix. As the caller may modify them, they
+     * are copied first if they are shared with a transposed view.
      *
      * @return Entries of the matrix.
+     * @throws MathUnsupportedOperationException if the matrix is compressed.
      */
-    public OpenLongToDoubleHashMap getEntries() {
+    public OpenLongToDoubleHashMap getEntries() throws MathUnsupportedOperationException {
+        prepareWrite();
         return entries;
     }
 
@@ -324,7 +573,26 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
     public BigSparseRealMatrix add(BigSparseRealMatrix m)
             throws MatrixDimensionMismatchException {
         MatrixUtils.checkAdditionCompatible(this, m);
-        final BigSparseRealMatrix out = new BigSparseRealMatrix(this);
+        final BigSparseRealMatrix out = new BigSparseRealMatrix(rows, columns, copyEntries(), null, isTransposed);
+        if (m.compressed != null) {
+            final int[] rowPointers = m.compressed.getRowPointers();
+            final int[] columnIndices = m.compressed.getColumnIndices();
+            final double[] values = m.compressed.getValues();
+            for (int i = 0; i < m.rows; i++) {
+                for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                    final int row, col;
+                    if (m.isTransposed) {
+                        row = columnIndices[p];
+                        col = i;
+                    } else {
+                        row = i;
+                        col = columnIndices[p];
+                    }
+                    out.setEntry(row, col, getEntry(row, col) + values[p]);
+                }
+            }
+            return out;
+        }
         for (OpenLongToDoubleHashMap.Iterator iterator = m.entries.iterator(); iterator.hasNext();) {
             iterator.advance();
             final int row, col;
@@ -348,6 +616,7 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
             throws OutOfRangeException {
         MatrixUtils.checkRowIndex(this, row);
         MatrixUtils.checkColumnIndex(this, column);
+        prepareWrite();
         int rowIndex, columnIndex;
         if (isTransposed) {
             rowIndex = column;
@@ -368,6 +637,13 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
     @Override
     public double getFrobeniusNorm() {
         double v = 0;
+        if (compressed != null) {
+            final double[] values = compressed.getValues();
+            for (int p = 0; p < values.length; p++) {
+                v += values[p] * values[p];
+            }
+            return FastMath.sqrt(v);
+        }
         for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
             iterator.advance();
             final double value = iterator.value();
@@ -378,6 +654,14 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
 
     @Override
     public BigSparseRealMatrix scalarMultiply(double d) {
+        if (compressed != null) {
+            final double[] values = compressed.getValues();
+            final double[] outValues = new double[values.length];
+            for (int p = 0; p < values.length; p++) {
+                outValues[p] = values[p] * d;
+            }
+            return new BigSparseRealMatrix(rows, columns, null, compressed.withValues(outValues), isTransposed);
+        }
         BigSparseRealMatrix out = new BigSparseRealMatrix(rows, columns);
         out.isTransposed = isTransposed;
         for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
@@ -421,7 +705,26 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
     public BigSparseRealMatrix subtract(BigSparseRealMatrix m)
             throws MatrixDimensionMismatchException {
         MatrixUtils.checkAdditionCompatible(this, m);
-        final BigSparseRealMatrix out = new BigSparseRealMatrix(this);
+        final BigSparseRealMatrix out = new BigSparseRealMatrix(rows, columns, copyEntries(), null, isTransposed);
+        if (m.compressed != null) {
+            final int[] rowPointers = m.compressed.getRowPointers();
+            final int[] columnIndices = m.compressed.getColumnIndices();
+            final double[] values = m.compressed.getValues();
+            for (int i = 0; i < m.rows; i++) {
+                for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                    final int row, col;
+                    if (m.isTransposed) {
+                        row = columnIndices[p];
+                        col = i;
+                    } else {
+                        row = i;
+                        col = columnIndices[p];
+                    }
+                    out.setEntry(row, col, getEntry(row, col) - values[p]);
+                }
+            }
+            return out;
+        }
         for (OpenLongToDoubleHashMap.Iterator iterator = m.entries.iterator(); iterator.hasNext();) {
             iterator.advance();
             final int row, col;
@@ -453,6 +756,21 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         MatrixUtils.checkMultiplicationCompatible(this, m);
         final int outCols = m.getColumnDimension();
         BigSparseRealMatrix out = new BigSparseRealMatrix(getRowDimension(), outCols);
+        if (compressed != null) {
+            final int[] rowPointers = compressed.getRowPointers();
+            final int[] columnIndices = compressed.getColumnIndices();
+            final double[] values = compressed.getValues();
+            for (int r = 0; r < rows; r++) {
+                for (int p = rowPointers[r]; p < rowPointers[r + 1]; p++) {
+                    if (isTransposed) {
+                        out.addScaledRow(columnIndices[p], values[p], m, r);
+                    } else {
+                        out.addScaledRow(r, values[p], m, columnIndices[p]);
+                    }
+                }
+            }
+            return out;
+        }
         for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
             iterator.advance();
             final double value = iterator.value();
@@ -465,26 +783,68 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
                 i = (int) (key / columns);
                 k = (int) (key % columns);
             }
-            for (int j = 0; j < outCols; ++j) {
-                final long rightKey;
-                if (m.isTransposed) {
-                    rightKey = m.computeKey(j, k);
-                } else {
-                    rightKey = m.computeKey(k, j);
+            out.addScaledRow(i, value, m, k);
+        }
+        return out;
+    }
+
+    /**
+     * Add {@code value} times the row {@code k} of {@code m} to the row
+     * {@code i} of this matrix. This matrix must not be transposed nor
+     * compressed.
+     *
+     * @param i Row of this matrix to update.
+     * @param value Scaling factor.
+     * @param m Matrix whose row is added.
+     * @param k Row of {@code m} to add.
+     */
+    private void addScaledRow(int i, double value, BigSparseRealMatrix m, int k) {
+        if (m.compressed != null) {
+            final double[] values = m.compressed.getValues();
+            if (m.isTransposed) {
+                // the row k of m is the column k of its storage
+                final int[] columnPointers = m.compressed.getColumnPointers();
+                final int[] rowIndices = m.compressed.getRowIndices();
+                final int[] columnPositions = m.compressed.getColumnPositions();
+                for (int q = columnPointers[k]; q < columnPointers[k + 1]; q++) {
+                    addToStoredEntry(computeKey(i, rowIndices[q]), value * values[columnPositions[q]]);
                 }
-                if (m.entries.containsKey(rightKey)) {
-                    final long outKey = out.computeKey(i, j);
-                    final double outValue
-                            = out.entries.get(outKey) + value * m.entries.get(rightKey);
-                    if (outValue == 0.0) {
-                        out.entries.remove(outKey);
-                    } else {
-                        out.entries.put(outKey, outValue);
-                    }
+            } else {
+                final int[] rowPointers = m.compressed.getRowPointers();
+                final int[] columnIndices = m.compressed.getColumnIndices();
+                for (int p = rowPointers[k]; p < rowPointers[k + 1]; p++) {
+                    addToStoredEntry(computeKey(i, columnIndices[p]), value * values[p]);
                 }
             }
+            return;
+        }
+        final int outCols = m.getColumnDimension();
+        for (int j = 0; j < outCols; ++j) {
+            final long rightKey;
+            if (m.isTransposed) {
+                rightKey = m.computeKey(j, k);
+            } else {
+                rightKey = m.computeKey(k, j);
+            }
+            if (m.entries.containsKey(rightKey)) {
+                addToStoredEntry(computeKey(i, j), value * m.entries.get(rightKey));
+            }
+        }
+    }
+
+    /**
+     * Add an increment to an element of the hash storage.
+     *
+     * @param key Key of the element.
+     * @param increment Value to add.
+     */
+    private void addToStoredEntry(long key, double increment) {
+        final double value = entries.get(key) + increment;
+        if (value == 0.0) {
+            entries.remove(key);
+        } else {
+            entries.put(key, value);
         }
-        return out;
     }
 
     /**
@@ -502,7 +862,28 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
         } catch (ClassCastException cce) {
             MatrixUtils.checkMultiplicationCompatible(this, m);
             final int outCols = m.getColumnDimension();
-            final BigSparseRealMatrix out = new BigSparseRealMatrix(rows, outCols);
+            final BigSparseRealMatrix out = new BigSparseRealMatrix(getRowDimension(), outCols);
+            if (compressed != null) {
+                final int[] rowPointers = compressed.getRowPointers();
+                final int[] columnIndices = compressed.getColumnIndices();
+                final double[] values = compressed.getValues();
+                for (int r = 0; r < rows; r++) {
+                    for (int p = rowPointers[r]; p < rowPointers[r + 1]; p++) {
+                        final int i, k;
+                        if (isTransposed) {
+                            i = columnIndices[p];
+                            k = r;
+                        } else {
+                            i = r;
+                            k = columnIndices[p];
+                        }
+                        for (int j = 0; j < outCols; ++j) {
+                            out.addToEntry(i, j, values[p] * m.getEntry(k, j));
+                        }
+                    }
+                }
+                return out;
+            }
             for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
                 iterator.advance();
                 final double value = iterator.value();
@@ -531,6 +912,7 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
             throws OutOfRangeException {
         MatrixUtils.checkRowIndex(this, row);
         MatrixUtils.checkColumnIndex(this, column);
+        prepareWrite();
         int rowIndex, columnIndex;
         if (isTransposed) {
             rowIndex = column;
@@ -558,6 +940,27 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
     public BigSparseRealMatrix specialOperation(BigSparseRealMatrix A, BigSparseRealMatrix B) {
         MatrixUtils.checkMultiplicationCompatible(A, B);
         MatrixUtils.checkAdditionCompatible(this, new BigSparseRealMatrix(A.getRowDimension(), B.getColumnDimension()));
+        if (compressed != null) {
+            // the result has the same non-zero elements as this matrix
+            final int[] rowPointers = compressed.getRowPointers();
+            final int[] columnIndices = compressed.getColumnIndices();
+            final double[] values = compressed.getValues();
+            final double[] outValues = new double[values.length];
+            for (int r = 0; r < rows; r++) {
+                for (int p = rowPointers[r]; p < rowPointers[r + 1]; p++) {
+                    final int i, j;
+                    if (isTransposed) {
+                        i = columnIndices[p];
+                        j = r;
+                    } else {
+                        i = r;
+                        j = columnIndices[p];
+                    }
+                    outValues[p] = values[p] - dotProduct(A, i, B, j);
+                }
+            }
+            return new BigSparseRealMatrix(rows, columns, null, compressed.withValues(outValues), isTransposed);
+        }
         BigSparseRealMatrix out = new BigSparseRealMatrix(getRowDimension(), getColumnDimension());
         for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
             iterator.advance();
@@ -571,17 +974,243 @@ public class BigSparseRealMatrix extends AbstractRealMatrix
                 i = (int) (key / columns);
                 j = (int) (key % columns);
             }
-            double v = value - A.getRowVector(i).dotProduct(B.getColumnVector(j));
+            double v = value - dotProduct(A, i, B, j);
             out.setEntry(i, j, v);
         }
         return out;
     }
 
+    /**
+     * Compute the dot product of the row {@code i} of {@code A} and the column
+     * {@code j} of {@code B} without extracting them as vectors.
+     */
+    private static double dotProduct(RealMatrix A, int i, RealMatrix B, int j) {
+        double dot = 0;
+        final int n = A.getColumnDimension();
+        for (int k = 0; k < n; k++) {
+            dot += A.getEntry(i, k) * B.getEntry(k, j);
+        }
+        return dot;
+    }
+
+    /**
+     * Postmultiply this matrix by a dense factor matrix.
+     *
+     * @param m Matrix to postmultiply by.
+     * @return {@code this} * {@code m}.
+     * @throws DimensionMismatchException if the number of rows of {@code m}
+     * differ from the number of columns of {@code this} matrix.
+     */
+    public DenseFactorMatrix multiply(DenseFactorMatrix m)
+            throws DimensionMismatchException {
+        MatrixUtils.checkMultiplicationCompatible(this, m);
+        final int latentDimension = m.getLatentDimension();
+        final DenseFactorMatrix out = new DenseFactorMatrix(getRowDimension(), latentDimension);
+        if (compressed != null) {
+            final int[] rowPointers = compressed.getRowPointers();
+            final int[] columnIndices = compressed.getColumnIndices();
+            final double[] values = compressed.getValues();
+            for (int r = 0; r < rows; r++) {
+                for (int p = rowPointers[r]; p < rowPointers[r + 1]; p++) {
+                    final int i, k;
+                    if (isTransposed) {
+                        i = columnIndices[p];
+                        k = r;
+                    } else {
+                        i = r;
+                        k = columnIndices[p];
+                    }
+                    addScaled(out, i, values[p], m, k);
+                }
+            }
+            return out;
+        }
+        for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            final double value = iterator.value();
+            final long key = iterator.key();
+            final int i, k;
+            if (isTransposed) {
+                k = (int) (key / columns);
+                i = (int) (key % columns);
+            } else {
+                i = (int) (key / columns);
+                k = (int) (key % columns);
+            }
+            addScaled(out, i, value, m, k);
+        }
+        return out;
+    }
+
+    /**
+     * Add {@code value} times the row {@code rowB} of {@code b} to the row
+     * {@code rowA} of {@code a}, which is in double precision.
+     */
+    private static void addScaled(DenseFactorMatrix a, int rowA, double value, DenseFactorMatrix b, int rowB) {
+        if (b.isSinglePrecision()) {
+            addScaled(a.getRowData(rowA), a.getRowOffset(rowA), value, b.getFloatRowData(rowB), b.getRowOffset(rowB), a.getLatentDimension());
+        } else {
+            addScaled(a.getRowData(rowA), a.getRowOffset(rowA), value, b.getRowData(rowB), b.getRowOffset(rowB), a.getLatentDimension());
+        }
+    }
+
+    /**
+     * Add {@code value} times {@code length} elements of {@code b} to
+     * {@code a}.
+     */
+    private static void addScaled(double[] a, int offsetA, double value, double[] b, int offsetB, int length) {
+        for (int f = 0; f < length; f++) {
+            a[offsetA + f] += value * b[offsetB + f];
+        }
+    }
+
+    /**
+     * Add {@code value} times {@code length} elements of {@code b}, stored in
+     * single precision, to {@code a}.
+     */
+    private static void addScaled(double[] a, int offsetA, double value, float[] b, int offsetB, int length) {
+        for (int f = 0; f < length; f++) {
+            a[offsetA + f] += value * b[offsetB + f];
+        }
+    }
+
+    /**
+     * Subtract {@code A*B'} from this matrix, only for the non-zero elements
+     * of this matrix.
+     *
+     * @param A Latent feature matrix of the rows of this matrix.
+     * @param B Latent feature matrix of the columns of this matrix.
+     * @return {@code this} - {@code A} * {@code B'}, restricted to the non-zero
+     * elements of {@code this}.
+     */
+    public BigSparseRealMatrix specialOperation(DenseFactorMatrix A, DenseFactorMatrix B) {
+        if (A.getRowDimension() != getRowDimension()) {
+            throw new DimensionMismatchException(A.getRowDimension(), getRowDimension());
+        }
+        if (B.getRowDimension() != getColumnDimension()) {
+            throw new DimensionMismatchException(B.getRowDimension(), getColumnDimension());
+        }
+        if (A.getLatentDimension() != B.getLatentDimension()) {
+            throw new DimensionMismatchException(B.getLatentDimension(), A.getLatentDimension());
+        }
+        if (compressed != null) {
+            final BigSparseRealMatrix out = createResidualBuffer();
+            specialOperation(A, B, out);
+            return out;
+        }
+        BigSparseRealMatrix out = new BigSparseRealMatrix(getRowDimension(), getColumnDimension());
+        for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            final long key = iterator.key();
+            final int i, j;
+            if (isTransposed) {
+                j = (int) (key / columns);
+                i = (int) (key % columns);
+            } else {
+                i = (int) (key / columns);
+                j = (int) (key % columns);
+            }
+            out.setEntry(i, j, iterator.value() - A.dotProduct(i, B, j));
+        }
+        return out;
+    }
+
+    /**
+     * Subtract {@code A*B'} from this matrix, only for the non-zero elements
+     * of this matrix, and write the result into {@code out}. Nothing is
+     * allocated, so the same buffer can be reused at each iteration of an
+     * algorithm.
+     *
+     * @param A Latent feature matrix of the rows of this matrix.
+     * @param B Latent feature matrix of the columns of this matrix.
+     * @param out Buffer created by {@link #createResidualBuffer()} on this
+     * matrix (or on a matrix sharing its storage).
+     * @throws MathIllegalStateException if this matrix is not compressed.
+     * @throws DimensionMismatchException if {@code out} does not have the same
+     * non-zero elements as this matrix.
+     */
+    public void specialOperation(DenseFactorMatrix A, DenseFactorMatrix B, BigSparseRealMatrix out)
+            throws MathIllegalStateException, DimensionMismatchException {
+        if (compressed == null) {
+            throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE, "the matrix is not compressed");
+        }
+        if (out.compressed == null || !compressed.hasSameStructure(out.compressed)) {
+            throw new DimensionMismatchException(out.getDataSize(), getDataSize());
+        }
+        final int latentDimension = A.getLatentDimension();
+        if (B.getLatentDimension() != latentDimension) {
+            throw new DimensionMismatchException(B.getLatentDimension(), latentDimension);
+        }
+        // rows and columns of the storage are those of the untransposed matrix
+        final DenseFactorMatrix rowFactors = isTransposed ? B : A;
+        final DenseFactorMatrix columnFactors = isTransposed ? A : B;
+        if (rowFactors.getRowDimension() != rows) {
+            throw new DimensionMismatchException(rowFactors.getRowDimension(), rows);
+        }
+        if (columnFactors.getRowDimension() != columns) {
+            throw new DimensionMismatchException(columnFactors.getRowDimension(), columns);
+        }
+        // single precision features use the float kernel, mixed ones dotProduct
+        final boolean doubles = !rowFactors.isSinglePrecision() && !columnFactors.isSinglePrecision();
+        final boolean floats = rowFactors.isSinglePrecision() && columnFactors.isSinglePrecision();
+        final int[] rowPointers = compressed.getRowPointers();
+        final int[] columnIndices = compressed.getColumnIndices();
+        final double[] values = compressed.getValues();
+        final double[] outValues = out.compressed.getValues();
+        for (int i = 0; i < rows; i++) {
+            final double[] rowData = doubles ? rowFactors.getRowData(i) : null;
+            final float[] rowFloats = floats ? rowFactors.getFloatRowData(i) : null;
+            final int rowOffset = rowFactors.getRowOffset(i);
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                final int j = columnIndices[p];
+                final int columnOffset = columnFactors.getRowOffset(j);
+                final double dot;
+                if (doubles) {
+                    dot = Kernels.dot(rowData, rowOffset, columnFactors.getRowData(j), columnOffset, latentDimension);
+                } else if (floats) {
+                    dot = Kernels.dot(rowFloats, rowOffset, columnFactors.getFloatRowData(j), columnOffset, latentDimension);
+                } else {
+                    dot = rowFactors.dotProduct(i, columnFactors, j);
+                }
+                outValues[p] = values[p] - dot;
+            }
+        }
+    }
+
+    /**
+     * Create a buffer with the same non-zero elements as this compressed
+     * matrix, to receive the result of
+     * {@link #specialOperation(DenseFactorMatrix, DenseFactorMatrix, BigSparseRealMatrix)}.
+     * The buffer shares the structure of this matrix and only allocates its
+     * values.
+     *
+     * @return A compressed matrix with the same sparsity pattern as this one.
+     * @throws MathIllegalStateException if this matrix is not compressed.
+     */
+    public BigSparseRealMatrix createResidualBuffer() throws MathIllegalStateException {
+        if (compressed == null) {
+            throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE, "the matrix is not compressed");
+        }
+        return new BigSparseRealMatrix(rows, columns, null,
+                compressed.withValues(new double[compressed.getDataSize()]), isTransposed);
+    }
+
     public boolean isTransposed() {
         return isTransposed;
     }
 
     public void print() {
+        if (compressed != null) {
+            final int[] rowPointers = compressed.getRowPointers();
+            final int[] columnIndices = compressed.getColumnIndices();
+            final double[] values = compressed.getValues();
+            for (int i = 0; i < rows; i++) {
+                for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                    System.out.println(i + "\t" + columnIndices[p] + "\t" + values[p]);
+                }
+            }
+            return;
+        }
         for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
             iterator.advance();
             final double value = iterator.value();
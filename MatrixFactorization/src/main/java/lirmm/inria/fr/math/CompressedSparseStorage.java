@@ -0,0 +1,320 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Read-only compressed storage of a sparse matrix.
+ * <p>
+ * The non-zero elements are kept twice in contiguous arrays: once in
+ * compressed sparse row (CSR) order and once in compressed sparse column (CSC)
+ * order. The CSC part does not duplicate the values, it only stores for each
+ * entry its position in the CSR value array. Inside a row (resp. a column) the
+ * column (resp. row) indices are sorted in increasing order, so a single
+ * element can be located by a binary search, and a full row or column scan is
+ * a sequential walk over the arrays.</p>
+ * <p>
+ * Instances are immutable as far as their structure is concerned and can be
+ * shared freely between matrices. Several storages may also share the same
+ * structure with different values (see {@link #withValues(double[])}).</p>
+ *
+ * @author rbouadjenek
+ */
+public final class CompressedSparseStorage implements Serializable {
+
+    /**
+     * Serializable version identifier.
+     */
+    private static final long serialVersionUID = 2398460312376520841L;
+    /**
+     * Number of rows of the matrix.
+     */
+    private final int rows;
+    /**
+     * Number of columns of the matrix.
+     */
+    private final int columns;
+    /**
+     * Start of each row in {@link #columnIndices} and {@link #values} (CSR),
+     * of length {@code rows + 1}.
+     */
+    private final int[] rowPointers;
+    /**
+     * Column index of each non-zero element, in CSR order.
+     */
+    private final int[] columnIndices;
+    /**
+     * Value of each non-zero element, in CSR order.
+     */
+    private final double[] values;
+    /**
+     * Start of each column in {@link #rowIndices} and
+     * {@link #columnPositions} (CSC), of length {@code columns + 1}.
+     */
+    private final int[] columnPointers;
+    /**
+     * Row index of each non-zero element, in CSC order.
+     */
+    private final int[] rowIndices;
+    /**
+     * Position in {@link #values} of each non-zero element, in CSC order.
+     */
+    private final int[] columnPositions;
+
+    /**
+     * Build the compressed storage of the elements of a map. Keys of the map
+     * are expected to be computed as {@code row * columns + column}.
+     *
+     * @param rows Number of rows of the matrix.
+     * @param columns Number of columns of the matrix.
+     * @param entries Elements of the matrix.
+     */
+    public CompressedSparseStorage(int rows, int columns, OpenLongToDoubleHashMap entries) {
+        this.rows = rows;
+        this.columns = columns;
+        final int size = entries.size();
+        //--------------------------------------------------------------
+        // 1. Bucket the map elements by column (unsorted inside a column)
+        //--------------------------------------------------------------
+        int[] byColumnPointers = new int[columns + 1];
+        for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            byColumnPointers[(int) (iterator.key() % columns) + 1]++;
+        }
+        prefixSum(byColumnPointers);
+        int[] byColumnRows = new int[size];
+        double[] byColumnValues = new double[size];
+        int[] next = Arrays.copyOf(byColumnPointers, columns);
+        for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            final long key = iterator.key();
+            final int p = next[(int) (key % columns)]++;
+            byColumnRows[p] = (int) (key / columns);
+            byColumnValues[p] = iterator.value();
+        }
+        //--------------------------------------------------------------
+        // 2. Scatter by row, visiting the columns in increasing order
+        //--------------------------------------------------------------
+        rowPointers = new int[rows + 1];
+        for (int p = 0; p < size; p++) {
+            rowPointers[byColumnRows[p] + 1]++;
+        }
+        prefixSum(rowPointers);
+        columnIndices = new int[size];
+        values = new double[size];
+        next = Arrays.copyOf(rowPointers, rows);
+        for (int j = 0; j < columns; j++) {
+            for (int p = byColumnPointers[j]; p < byColumnPointers[j + 1]; p++) {
+                final int q = next[byColumnRows[p]]++;
+                columnIndices[q] = j;
+                values[q] = byColumnValues[p];
+            }
+        }
+        //--------------------------------------------------------------
+        // 3. Rebuild the columns from the rows, visiting the rows in increasing order
+        //--------------------------------------------------------------
+        columnPointers = byColumnPointers;
+        rowIndices = byColumnRows;
+        columnPositions = new int[size];
+        next = Arrays.copyOf(columnPointers, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                final int q = next[columnIndices[p]]++;
+                rowIndices[q] = i;
+                columnPositions[q] = p;
+            }
+        }
+    }
+
+    /**
+     * Build a storage sharing the structure of another one.
+     *
+     * @param structure Storage whose structure is shared.
+     * @param values Values of the non-zero elements, in CSR order.
+     */
+    private CompressedSparseStorage(CompressedSparseStorage structure, double[] values) {
+        this.rows = structure.rows;
+        this.columns = structure.columns;
+        this.rowPointers = structure.rowPointers;
+        this.columnIndices = structure.columnIndices;
+        this.columnPointers = structure.columnPointers;
+        this.rowIndices = structure.rowIndices;
+        this.columnPositions = structure.columnPositions;
+        this.values = values;
+    }
+
+    /**
+     * Replace each element of the array by the sum of the elements before it.
+     */
+    private static void prefixSum(int[] a) {
+        for (int i = 1; i < a.length; i++) {
+            a[i] += a[i - 1];
+        }
+    }
+
+    /**
+     * Create a storage with the same structure as this one but different
+     * values.
+     *
+     * @param values Values of the non-zero elements, in CSR order.
+     * @return A storage sharing the structure of this one.
+     */
+    public CompressedSparseStorage withValues(double[] values) {
+        if (values.length != this.values.length) {
+            throw new IllegalArgumentException("Expected " + this.values.length + " values, got " + values.length + ".");
+        }
+        return new CompressedSparseStorage(this, values);
+    }
+
+    /**
+     * Check if another storage shares the structure of this one.
+     *
+     * @param other Storage to compare.
+     * @return true if both storages have the same non-zero elements positions.
+     */
+    public boolean hasSameStructure(CompressedSparseStorage other) {
+        return rowPointers == other.rowPointers && columnIndices == other.columnIndices;
+    }
+
+    /**
+     * Find the position in the value array of an element.
+     *
+     * @param row Row index of the element.
+     * @param column Column index of the element.
+     * @return The position of the element, or a negative value if it is zero.
+     */
+    public int find(int row, int column) {
+        final int p = Arrays.binarySearch(columnIndices, rowPointers[row], rowPointers[row + 1], column);
+        return p < 0 ? -1 : p;
+    }
+
+    /**
+     * Get an element of the matrix.
+     *
+     * @param row Row index of the element.
+     * @param column Column index of the element.
+     * @return The value of the element.
+     */
+    public double get(int row, int column) {
+        final int p = find(row, column);
+        return p < 0 ? 0.0 : values[p];
+    }
+
+    /**
+     * Split the rows of the matrix into contiguous ranges holding about the
+     * same number of non-zero elements.
+     *
+     * @param parts Number of ranges.
+     * @return The bounds of the ranges: the range {@code s} holds the rows
+     * {@code [bounds[s], bounds[s + 1])}.
+     */
+    public int[] partitionRows(int parts) {
+        return partition(rowPointers, rows, parts);
+    }
+
+    /**
+     * Split the columns of the matrix into contiguous ranges holding about the
+     * same number of non-zero elements.
+     *
+     * @param parts Number of ranges.
+     * @return The bounds of the ranges: the range {@code s} holds the columns
+     * {@code [bounds[s], bounds[s + 1])}.
+     */
+    public int[] partitionColumns(int parts) {
+        return partition(columnPointers, columns, parts);
+    }
+
+    /**
+     * Split {@code n} rows (or columns) into ranges holding about the same
+     * number of non-zero elements.
+     */
+    private static int[] partition(int[] pointers, int n, int parts) {
+        final int[] bounds = new int[parts + 1];
+        final long size = pointers[n];
+        for (int s = 1; s < parts; s++) {
+            // first row starting after the s-th fraction of the non-zero elements
+            final int target = (int) (s * size / parts);
+            int row = Arrays.binarySearch(pointers, 0, n, target);
+            if (row < 0) {
+                row = -row - 1;
+            }
+            while (row > 0 && pointers[row - 1] == target) {
+                row--;
+            }
+            bounds[s] = Math.max(row, bounds[s - 1]);
+        }
+        bounds[parts] = n;
+        return bounds;
+    }
+
+    /**
+     * @return Number of rows of the matrix.
+     */
+    public int getRowDimension() {
+        return rows;
+    }
+
+    /**
+     * @return Number of columns of the matrix.
+     */
+    public int getColumnDimension() {
+        return columns;
+    }
+
+    /**
+     * @return Number of non-zero elements of the matrix.
+     */
+    public int getDataSize() {
+        return values.length;
+    }
+
+    /**
+     * @return Start of each row in the CSR arrays ({@code rows + 1} elements).
+     */
+    public int[] getRowPointers() {
+        return rowPointers;
+    }
+
+    /**
+     * @return Column index of each non-zero element, in CSR order.
+     */
+    public int[] getColumnIndices() {
+        return columnIndices;
+    }
+
+    /**
+     * @return Value of each non-zero element, in CSR order. This is a
+     * reference to the internal array.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return Start of each column in the CSC arrays ({@code columns + 1}
+     * elements).
+     */
+    public int[] getColumnPointers() {
+        return columnPointers;
+    }
+
+    /**
+     * @return Row index of each non-zero element, in CSC order.
+     */
+    public int[] getRowIndices() {
+        return rowIndices;
+    }
+
+    /**
+     * @return Position in the value array of each non-zero element, in CSC
+     * order.
+     */
+    public int[] getColumnPositions() {
+        return columnPositions;
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+import java.io.Serializable;
+import java.util.Random;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Dense matrix of latent features.
+ * <p>
+ * Each row holds the {@code latentDimension} features of one user or one
+ * item. The elements are stored in row-major order in blocks of
+ * {@link #getRowsPerBlock()} rows, so the features of a user (or an item) are
+ * contiguous in memory and a dot product between two rows is a plain loop
+ * over two array slices. A block holds at most {@code 2^27} elements, so the
+ * matrix can hold more than {@code Integer.MAX_VALUE} elements. The system
+ * property {@code lirmm.inria.fr.blockSize} lowers the maximum number of
+ * elements of a block, to exercise several blocks on small matrices. The features
+ * of the row {@code i} start at {@link #getRowOffset(int) getRowOffset(i)} in
+ * the array returned by {@link #getRowData(int) getRowData(i)}. Two matrices
+ * with the same latent dimension have the same number of rows per block, so
+ * a row has the same offset in both of them.</p>
+ * <p>
+ * The elements can be stored in single precision, which halves the memory
+ * of the matrix. They are then widened to doubles by every computation, so
+ * only the storage loses precision. The arrays of a matrix in single
+ * precision are returned by {@link #getFloatRowData(int)} and
+ * {@link #getFloatBlock(int)}, and {@link #getRowData(int)} and
+ * {@link #getBlock(int)} may not be called.</p>
+ *
+ * @author rbouadjenek
+ */
+public class DenseFactorMatrix extends AbstractRealMatrix implements Serializable {
+
+    /**
+     * Serializable version identifier.
+     */
+    private static final long serialVersionUID = -1842773418120958264L;
+    /**
+     * Maximum number of elements of a block.
+     */
+    private static final int MAX_BLOCK_SIZE = 1 << 27;
+    /**
+     * Number of rows of the matrix (users or items).
+     */
+    private final int rows;
+    /**
+     * Number of columns of the matrix (latent dimensions).
+     */
+    private final int latentDimension;
+    /**
+     * Base 2 logarithm of the number of rows of a block.
+     */
+    private final int blockShift;
+    /**
+     * Blocks of rows of the matrix in row-major order, null in single
+     * precision.
+     */
+    private final double[][] data;
+    /**
+     * Blocks of rows of the matrix in row-major order, null in double
+     * precision.
+     */
+    private final float[][] floats;
+
+    /**
+     * Build a matrix filled with zeros.
+     *
+     * @param rowDimension Number of users or items.
+     * @param latentDimension Number of latent dimensions.
+     * @throws NotStrictlyPositiveException if a dimension is not positive.
+     */
+    public DenseFactorMatrix(int rowDimension, int latentDimension)
+            throws NotStrictlyPositiveException {
+        this(rowDimension, latentDimension, false);
+    }
+
+    /**
+     * Build a matrix filled with zeros.
+     *
+     * @param rowDimension Number of users or items.
+     * @param latentDimension Number of latent dimensions.
+     * @param singlePrecision true to store the elements as floats.
+     * @throws NotStrictlyPositiveException if a dimension is not positive.
+     */
+    public DenseFactorMatrix(int rowDimension, int latentDimension, boolean singlePrecision)
+            throws NotStrictlyPositiveException {
+        this(rowDimension, latentDimension, singlePrecision,
+                Math.min(MAX_BLOCK_SIZE, Integer.getInteger("lirmm.inria.fr.blockSize", MAX_BLOCK_SIZE)));
+    }
+
+    /**
+     * Build a matrix filled with zeros, whose blocks hold at most a given
+     * number of elements.
+     */
+    private DenseFactorMatrix(int rowDimension, int latentDimension, boolean singlePrecision, int maxBlockSize)
+            throws NotStrictlyPositiveException {
+        super(rowDimension, latentDimension);
+        this.rows = rowDimension;
+        this.latentDimension = latentDimension;
+        // the largest power of two of rows fitting in a block, at least one
+        int shift = 0;
+        while (shift < 30 && (2L << shift) * latentDimension <= maxBlockSize) {
+            shift++;
+        }
+        this.blockShift = shift;
+        final int numBlocks = (int) ((rowDimension + (1L << shift) - 1) >>> shift);
+        this.data = singlePrecision ? null : new double[numBlocks][];
+        this.floats = singlePrecision ? new float[numBlocks][] : null;
+        for (int b = 0; b < numBlocks; b++) {
+            final int blockRows = Math.min(1 << shift, rowDimension - (b << shift));
+            if (singlePrecision) {
+                floats[b] = new float[blockRows * latentDimension];
+            } else {
+                data[b] = new double[blockRows * latentDimension];
+            }
+        }
+    }
+
+    /**
+     * Build a matrix by copying another one.
+     *
+     * @param matrix matrix to copy.
+     */
+    public DenseFactorMatrix(DenseFactorMatrix matrix) {
+        this(matrix.rows, matrix.latentDimension, matrix.isSinglePrecision(), matrix.getRowsPerBlock() * matrix.latentDimension);
+        setData(matrix);
+    }
+
+    /**
+     * Build a matrix by copying another one in a given precision.
+     *
+     * @param matrix matrix to copy.
+     * @param singlePrecision true to store the elements as floats.
+     */
+    public DenseFactorMatrix(DenseFactorMatrix matrix, boolean singlePrecision) {
+        this(matrix.rows, matrix.latentDimension, singlePrecision, matrix.getRowsPerBlock() * matrix.latentDimension);
+        setData(matrix);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getRowDimension() {
+        return rows;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getColumnDimension() {
+        return latentDimension;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DenseFactorMatrix createMatrix(int rowDimension, int columnDimension)
+            throws NotStrictlyPositiveException {
+        return new DenseFactorMatrix(rowDimension, columnDimension);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DenseFactorMatrix copy() {
+        return new DenseFactorMatrix(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getEntry(int row, int column) throws OutOfRangeException {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        return get(row >>> blockShift, getRowOffset(row) + column);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEntry(int row, int column, double value) throws OutOfRangeException {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        set(row >>> blockShift, getRowOffset(row) + column, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addToEntry(int row, int column, double increment) throws OutOfRangeException {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        final int b = row >>> blockShift;
+        final int p = getRowOffset(row) + column;
+        set(b, p, get(b, p) + increment);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void multiplyEntry(int row, int column, double factor) throws OutOfRangeException {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        final int b = row >>> blockShift;
+        final int p = getRowOffset(row) + column;
+        set(b, p, get(b, p) * factor);
+    }
+
+    /**
+     * Return the number of latent dimensions, i.e. the length of a row.
+     *
+     * @return Number of latent dimensions.
+     */
+    public int getLatentDimension() {
+        return latentDimension;
+    }
+
+    /**
+     * Tell whether the elements are stored as floats.
+     *
+     * @return true if the matrix is stored in single precision.
+     */
+    public boolean isSinglePrecision() {
+        return floats != null;
+    }
+
+    /**
+     * Return the number of rows of a block. The row {@code i} is in the block
+     * {@code i / getRowsPerBlock()}. It only depends on the latent dimension.
+     *
+     * @return The number of rows of a block, a power of two.
+     */
+    public int getRowsPerBlock() {
+        return 1 << blockShift;
+    }
+
+    /**
+     * @return The number of blocks of rows.
+     */
+    public int getNumBlocks() {
+        return data != null ? data.length : floats.length;
+    }
+
+    /**
+     * Return a reference to a block of rows.
+     *
+     * @param block Index of the block.
+     * @return The elements of the rows of the block, in row-major order.
+     * @throws IllegalStateException if the matrix is stored in single
+     * precision.
+     */
+    public double[] getBlock(int block) {
+        if (data == null) {
+            throw new IllegalStateException("The matrix is stored in single precision.");
+        }
+        return data[block];
+    }
+
+    /**
+     * Return a reference to a block of rows of a matrix stored in single
+     * precision.
+     *
+     * @param block Index of the block.
+     * @return The elements of the rows of the block, in row-major order.
+     * @throws IllegalStateException if the matrix is stored in double
+     * precision.
+     */
+    public float[] getFloatBlock(int block) {
+        if (floats == null) {
+            throw new IllegalStateException("The matrix is stored in double precision.");
+        }
+        return floats[block];
+    }
+
+    /**
+     * Return a reference to the block holding a row. The features of the row
+     * start at {@link #getRowOffset(int)} in it.
+     *
+     * @param row The row.
+     * @return The block of the row.
+     * @throws IllegalStateException if the matrix is stored in single
+     * precision.
+     */
+    public double[] getRowData(int row) {
+        return getBlock(row >>> blockShift);
+    }
+
+    /**
+     * Return a reference to the block holding a row of a matrix stored in
+     * single precision. The features of the row start at
+     * {@link #getRowOffset(int)} in it.
+     *
+     * @param row The row.
+     * @return The block of the row.
+     * @throws IllegalStateException if the matrix is stored in double
+     * precision.
+     */
+    public float[] getFloatRowData(int row) {
+        return getFloatBlock(row >>> blockShift);
+    }
+
+    /**
+     * Return the offset of a row in its block.
+     *
+     * @param row The row.
+     * @return The index of the first feature of the row in its block.
+     */
+    public int getRowOffset(int row) {
+        return (row & ((1 << blockShift) - 1)) * latentDimension;
+    }
+
+    private double get(int block, int p) {
+        return data != null ? data[block][p] : floats[block][p];
+    }
+
+    private void set(int block, int p, double value) {
+        if (data != null) {
+            data[block][p] = value;
+        } else {
+            floats[block][p] = (float) value;
+        }
+    }
+
+    private int blockSize(int block) {
+        return data != null ? data[block].length : floats[block].length;
+    }
+
+    /**
+     * Compute the dot product between a row of this matrix and a row of
+     * {@code m}.
+     *
+     * @param row Row of this matrix.
+     * @param m Other factor matrix, with the same latent dimension.
+     * @param mRow Row of {@code m}.
+     * @return The dot product of the two rows.
+     */
+    public double dotProduct(int row, DenseFactorMatrix m, int mRow) {
+        final int block = row >>> blockShift;
+        final int mBlock = mRow >>> m.blockShift;
+        final int offset = getRowOffset(row);
+        final int mOffset = m.getRowOffset(mRow);
+        if (data != null && m.data != null) {
+            return Kernels.dot(data[block], offset, m.data[mBlock], mOffset, latentDimension);
+        } else if (floats != null && m.floats != null) {
+            return Kernels.dot(floats[block], offset, m.floats[mBlock], mOffset, latentDimension);
+        }
+        double dot = 0;
+        for (int f = 0; f < latentDimension; f++) {
+            dot += get(block, offset + f) * m.get(mBlock, mOffset + f);
+        }
+        return dot;
+    }
+
+    /**
+     * Compute the sum of this matrix and {@code m}.
+     *
+     * @param m Matrix to be added.
+     * @return {@code this} + {@code m}.
+     * @throws MatrixDimensionMismatchException if {@code m} is not the same
+     * size as {@code this}.
+     */
+    public DenseFactorMatrix add(DenseFactorMatrix m)
+            throws MatrixDimensionMismatchException {
+        MatrixUtils.checkAdditionCompatible(this, m);
+        return combine(m, 1);
+    }
+
+    /**
+     * Subtract {@code m} from this matrix.
+     *
+     * @param m Matrix to be subtracted.
+     * @return {@code this} - {@code m}.
+     * @throws MatrixDimensionMismatchException if {@code m} is not the same
+     * size as {@code this}.
+     */
+    public DenseFactorMatrix subtract(DenseFactorMatrix m)
+            throws MatrixDimensionMismatchException {
+        MatrixUtils.checkAdditionCompatible(this, m);
+        return combine(m, -1);
+    }
+
+    /**
+     * Compute {@code this + sign * m}, in the precision and the blocks of this
+     * matrix.
+     */
+    private DenseFactorMatrix combine(DenseFactorMatrix m, double sign) {
+        final DenseFactorMatrix out = new DenseFactorMatrix(rows, latentDimension, isSinglePrecision(), getRowsPerBlock() * latentDimension);
+        if (m.blockShift == blockShift) {
+            for (int b = 0; b < getNumBlocks(); b++) {
+                for (int p = 0; p < blockSize(b); p++) {
+                    out.set(b, p, get(b, p) + sign * m.get(b, p));
+                }
+            }
+            return out;
+        }
+        for (int i = 0; i < rows; i++) {
+            final int b = i >>> blockShift;
+            final int mb = i >>> m.blockShift;
+            for (int f = 0; f < latentDimension; f++) {
+                out.set(b, getRowOffset(i) + f, get(b, getRowOffset(i) + f) + sign * m.get(mb, m.getRowOffset(i) + f));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DenseFactorMatrix scalarMultiply(double d) {
+        final DenseFactorMatrix out = new DenseFactorMatrix(rows, latentDimension, isSinglePrecision(), getRowsPerBlock() * latentDimension);
+        for (int b = 0; b < getNumBlocks(); b++) {
+            for (int p = 0; p < blockSize(b); p++) {
+                out.set(b, p, get(b, p) * d);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getFrobeniusNorm() {
+        double v = 0;
+        for (int b = 0; b < getNumBlocks(); b++) {
+            for (int p = 0; p < blockSize(b); p++) {
+                v += get(b, p) * get(b, p);
+            }
+        }
+        return FastMath.sqrt(v);
+    }
+
+    /**
+     * Copy the elements of {@code m} into this matrix, rounding them if this
+     * matrix is in single precision and not {@code m}.
+     *
+     * @param m Matrix to copy.
+     * @throws DimensionMismatchException if {@code m} is not the same size as
+     * {@code this}.
+     */
+    public void setData(DenseFactorMatrix m) throws DimensionMismatchException {
+        if (m.rows != rows) {
+            throw new DimensionMismatchException(m.rows, rows);
+        }
+        if (m.latentDimension != latentDimension) {
+            throw new DimensionMismatchException(m.latentDimension, latentDimension);
+        }
+        if (m.blockShift != blockShift) {
+            for (int i = 0; i < rows; i++) {
+                for (int f = 0; f < latentDimension; f++) {
+                    set(i >>> blockShift, getRowOffset(i) + f, m.get(i >>> m.blockShift, m.getRowOffset(i) + f));
+                }
+            }
+            return;
+        }
+        for (int b = 0; b < getNumBlocks(); b++) {
+            if (data != null && m.data != null) {
+                System.arraycopy(m.data[b], 0, data[b], 0, data[b].length);
+            } else if (floats != null && m.floats != null) {
+                System.arraycopy(m.floats[b], 0, floats[b], 0, floats[b].length);
+            } else {
+                for (int p = 0; p < blockSize(b); p++) {
+                    set(b, p, m.get(b, p));
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate a matrix of random values.
+     *
+     * @param rowDimension Number of users or items.
+     * @param latentDimension Number of latent dimensions.
+     * @return An instance of DenseFactorMatrix.
+     */
+    public static DenseFactorMatrix randomGenerateMatrix(int rowDimension, int latentDimension) {
+        return randomGenerateMatrix(rowDimension, latentDimension, false);
+    }
+
+    /**
+     * Generate a matrix of random values.
+     *
+     * @param rowDimension Number of users or items.
+     * @param latentDimension Number of latent dimensions.
+     * @param singlePrecision true to store the elements as floats.
+     * @return An instance of DenseFactorMatrix.
+     */
+    public static DenseFactorMatrix randomGenerateMatrix(int rowDimension, int latentDimension, boolean singlePrecision) {
+        DenseFactorMatrix m = new DenseFactorMatrix(rowDimension, latentDimension, singlePrecision);
+        m.randomFill(1);
+        return m;
+    }
+
+    /**
+     * Fill the matrix, in place, with random values drawn uniformly between 0
+     * and {@code scale}.
+     *
+     * @param scale Upper bound of the values.
+     */
+    public void randomFill(double scale) {
+        Random r = new Random();
+        for (int b = 0; b < getNumBlocks(); b++) {
+            for (int p = 0; p < blockSize(b); p++) {
+                set(b, p, r.nextDouble() * scale);
+            }
+        }
+    }
+}
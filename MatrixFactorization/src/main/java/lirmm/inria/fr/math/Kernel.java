@@ -0,0 +1,24 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+/**
+ * Implementation of the kernels of {@link Kernels}.
+ *
+ * @author rbouadjenek
+ */
+interface Kernel {
+
+    double dot(double[] a, int offsetA, double[] b, int offsetB, int length);
+
+    void axpy(double alpha, double[] x, int offsetX, double[] y, int offsetY, int length);
+
+    double dot(float[] a, int offsetA, float[] b, int offsetB, int length);
+
+    void axpy(double alpha, float[] x, int offsetX, double[] y, int offsetY, int length);
+
+    void axpy(double alpha, double[] x, int offsetX, float[] y, int offsetY, int length);
+}
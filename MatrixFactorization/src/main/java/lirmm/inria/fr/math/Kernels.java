@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+/**
+ * Kernels of the dense factor computations: the dot product of two rows of
+ * latent features and the update y=y+alpha*x.
+ * <p>
+ * The implementation is chosen once, when this class is loaded. When the
+ * project is built with a JDK 17 or later, it includes an implementation
+ * based on the incubating Vector API ({@code jdk.incubator.vector}), which is
+ * used if the module is available at run time (the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}) and if the processor has SIMD
+ * registers of at least 256 bits. Otherwise plain loops are used. The system
+ * property {@code lirmm.inria.fr.kernels=scalar} forces the plain loops. The
+ * two implementations do not add the products in the same order, so their
+ * results may differ in the last bits.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class Kernels {
+
+    private static final Kernel KERNEL = select();
+
+    private Kernels() {
+    }
+
+    private static Kernel select() {
+        if (!"scalar".equals(System.getProperty("lirmm.inria.fr.kernels"))) {
+            try {
+                // compiled from src/main/java17, absent from the builds made with an older JDK
+                return (Kernel) Class.forName("lirmm.inria.fr.math.VectorKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+                // no Vector API, or no SIMD registers: fall back to plain loops
+            }
+        }
+        return new ScalarKernel();
+    }
+
+    /**
+     * @return The name of the implementation in use, "vector" or "scalar".
+     */
+    public static String getImplementation() {
+        return KERNEL instanceof ScalarKernel ? "scalar" : "vector";
+    }
+
+    /**
+     * Compute the dot product of two vectors stored in arrays.
+     *
+     * @param a Array of the first vector.
+     * @param offsetA Position of the first vector in a.
+     * @param b Array of the second vector.
+     * @param offsetB Position of the second vector in b.
+     * @param length Length of the vectors.
+     * @return The dot product.
+     */
+    public static double dot(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        return KERNEL.dot(a, offsetA, b, offsetB, length);
+    }
+
+    /**
+     * Add alpha*x to y.
+     *
+     * @param alpha The factor of x.
+     * @param x Array of the vector x.
+     * @param offsetX Position of x in its array.
+     * @param y Array of the vector y, which is updated.
+     * @param offsetY Position of y in its array.
+     * @param length Length of the vectors.
+     */
+    public static void axpy(double alpha, double[] x, int offsetX, double[] y, int offsetY, int length) {
+        KERNEL.axpy(alpha, x, offsetX, y, offsetY, length);
+    }
+
+    /**
+     * Compute the dot product of two vectors of floats, in double precision.
+     *
+     * @param a Array of the first vector.
+     * @param offsetA Position of the first vector in a.
+     * @param b Array of the second vector.
+     * @param offsetB Position of the second vector in b.
+     * @param length Length of the vectors.
+     * @return The dot product.
+     */
+    public static double dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        return KERNEL.dot(a, offsetA, b, offsetB, length);
+    }
+
+    /**
+     * Add alpha*x to y, where x is a vector of floats.
+     *
+     * @param alpha The factor of x.
+     * @param x Array of the vector x.
+     * @param offsetX Position of x in its array.
+     * @param y Array of the vector y, which is updated.
+     * @param offsetY Position of y in its array.
+     * @param length Length of the vectors.
+     */
+    public static void axpy(double alpha, float[] x, int offsetX, double[] y, int offsetY, int length) {
+        KERNEL.axpy(alpha, x, offsetX, y, offsetY, length);
+    }
+
+    /**
+     * Add alpha*x to y, where y is a vector of floats. The sum is computed in
+     * double precision and rounded to a float.
+     *
+     * @param alpha The factor of x.
+     * @param x Array of the vector x.
+     * @param offsetX Position of x in its array.
+     * @param y Array of the vector y, which is updated.
+     * @param offsetY Position of y in its array.
+     * @param length Length of the vectors.
+     */
+    public static void axpy(double alpha, double[] x, int offsetX, float[] y, int offsetY, int length) {
+        KERNEL.axpy(alpha, x, offsetX, y, offsetY, length);
+    }
+}
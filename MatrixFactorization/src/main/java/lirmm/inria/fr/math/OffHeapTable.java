@@ -0,0 +1,237 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tables of keys, values and states of an {@link OpenLongToDoubleHashMap},
+ * stored outside of the Java heap.
+ * <p>
+ * Each table is split into segments of {@link #SLOTS_PER_SEGMENT} slots, so
+ * that no buffer exceeds 2 GB. The segments are either allocated in direct
+ * memory, or mapped from a temporary file of a directory. A file is deleted as
+ * soon as it is mapped, its pages staying reachable through the mappings
+ * only, so that the operating system can write them back to the disk when the
+ * physical memory runs short. The slots are indexed by ints, and the
+ * {@link OpenLongToDoubleHashMap} using the tables never grows them past
+ * {@code 2^30} slots.</p>
+ * <p>
+ * The memory is released by {@link #release()}, or otherwise when the
+ * buffers are garbage collected.</p>
+ *
+ * @author rbouadjenek
+ */
+final class OffHeapTable {
+
+    /**
+     * Number of bits of the position of a slot inside its segment.
+     */
+    private static final int SHIFT = 24;
+    /**
+     * Number of slots of a segment (128 MB of keys).
+     */
+    private static final int SLOTS_PER_SEGMENT = 1 << SHIFT;
+    /**
+     * Bit mask of the position of a slot inside its segment.
+     */
+    private static final int MASK = SLOTS_PER_SEGMENT - 1;
+    /**
+     * Releases the memory of a buffer without waiting for the garbage
+     * collector (sun.misc.Unsafe#invokeCleaner), null if unavailable.
+     */
+    private static final Method CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method cleaner = null;
+        Object unsafe = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // before Java 9: the memory is released by the garbage collector
+        }
+        CLEANER = cleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final int length; // Number of slots
+    private final Path directory; // Directory of the mapped files, null for direct memory
+    private final ByteBuffer[] keys; // Segments of the keys table
+    private final ByteBuffer[] values; // Segments of the values table
+    private final ByteBuffer[] states; // Segments of the states table
+
+    /**
+     * Allocate tables filled with zeros.
+     *
+     * @param length Number of slots.
+     * @param directory Directory of the temporary files mapped, or
+     * {@code null} to allocate direct memory.
+     * @throws UncheckedIOException if the files cannot be created or mapped.
+     */
+    OffHeapTable(int length, Path directory) {
+        this.length = length;
+        this.directory = directory;
+        final int numSegments = (length + SLOTS_PER_SEGMENT - 1) >>> SHIFT;
+        keys = new ByteBuffer[numSegments];
+        values = new ByteBuffer[numSegments];
+        states = new ByteBuffer[numSegments];
+        try {
+            if (directory == null) {
+                for (int s = 0; s < numSegments; s++) {
+                    final int slots = segmentLength(s);
+                    keys[s] = ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder());
+                    values[s] = ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder());
+                    states[s] = ByteBuffer.allocateDirect(slots);
+                }
+            } else {
+                final Path file = Files.createTempFile(directory, "table", ".bin");
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // keys, then values, then states; a new file reads as zeros
+                    long position = 0;
+                    for (int s = 0; s < numSegments; s++) {
+                        keys[s] = map(channel, position, segmentLength(s) * 8L);
+                        position += segmentLength(s) * 8L;
+                    }
+                    for (int s = 0; s < numSegments; s++) {
+                        values[s] = map(channel, position, segmentLength(s) * 8L);
+                        position += segmentLength(s) * 8L;
+                    }
+                    for (int s = 0; s < numSegments; s++) {
+                        states[s] = map(channel, position, segmentLength(s));
+                        position += segmentLength(s);
+                    }
+                } finally {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException ex) {
+                        // the file cannot be deleted while it is mapped on some systems
+                        file.toFile().deleteOnExit();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            release();
+            throw new UncheckedIOException(ex);
+        } catch (OutOfMemoryError ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, position, size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return Number of slots of the segment {@code s}.
+     */
+    private int segmentLength(int s) {
+        return Math.min(SLOTS_PER_SEGMENT, length - (s << SHIFT));
+    }
+
+    /**
+     * Allocate empty tables stored as these ones.
+     *
+     * @param length Number of slots.
+     * @return New tables in the same kind of memory.
+     */
+    OffHeapTable create(int length) {
+        return new OffHeapTable(length, directory);
+    }
+
+    /**
+     * Copy these tables.
+     *
+     * @return New tables in the same kind of memory, with the same content.
+     */
+    OffHeapTable copy() {
+        final OffHeapTable out = create(length);
+        for (int s = 0; s < keys.length; s++) {
+            out.keys[s].put(keys[s].duplicate());
+            out.values[s].put(values[s].duplicate());
+            out.states[s].put(states[s].duplicate());
+            out.keys[s].clear();
+            out.values[s].clear();
+            out.states[s].clear();
+        }
+        return out;
+    }
+
+    /**
+     * @return Number of slots.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return The directory of the mapped files, null for direct memory.
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    long key(int index) {
+        return keys[index >>> SHIFT].getLong((index & MASK) << 3);
+    }
+
+    void key(int index, long key) {
+        keys[index >>> SHIFT].putLong((index & MASK) << 3, key);
+    }
+
+    double value(int index) {
+        return values[index >>> SHIFT].getDouble((index & MASK) << 3);
+    }
+
+    void value(int index, double value) {
+        values[index >>> SHIFT].putDouble((index & MASK) << 3, value);
+    }
+
+    byte state(int index) {
+        return states[index >>> SHIFT].get(index & MASK);
+    }
+
+    void state(int index, byte state) {
+        states[index >>> SHIFT].put(index & MASK, state);
+    }
+
+    /**
+     * Release the memory of the tables, which must no longer be used.
+     */
+    void release() {
+        release(keys);
+        release(values);
+        release(states);
+    }
+
+    private static void release(ByteBuffer[] segments) {
+        for (int s = 0; s < segments.length; s++) {
+            if (segments[s] != null && CLEANER != null) {
+                try {
+                    CLEANER.invoke(UNSAFE, segments[s]);
+                } catch (ReflectiveOperationException | RuntimeException ex) {
+                    // left to the garbage collector
+                }
+            }
+            // a later access fails instead of reading released memory
+            segments[s] = null;
+        }
+    }
+}
@@ -6,11 +6,17 @@
 package lirmm.inria.fr.math;
 
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.NumberIsTooLargeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
 import org.apache.commons.math3.util.FastMath;
 
 /**
@@ -23,6 +29,20 @@ import org.apache.commons.math3.util.FastMath;
  * {@link #iterator()} are fail-fast: they throw a
  * <code>ConcurrentModificationException</code> when they detect the map has
  * been modified during iteration.</p>
+ * <p>
+ * The tables of the map are normally arrays of the Java heap. A map created
+ * by {@link #offHeap(int, double, Path)} stores them outside of the heap
+ * instead, in direct memory or in memory-mapped files, so that very large
+ * maps neither fill the heap nor slow down the garbage collector. Such a map
+ * cannot be serialized, and its memory can be released early by
+ * {@link #release()}. It holds the elements of a
+ * {@link BigSparseRealMatrix} wherever the matrix reads them from its hash
+ * storage, but {@link BigSparseRealMatrix#compress()} copies them into a
+ * {@link CompressedSparseStorage} on the heap, which is what the solvers and
+ * the recommenders read.</p>
+ * <p>
+ * The slots of the tables are indexed by ints, so a map holds at most
+ * {@link #MAX_SIZE} elements, on or off the heap.</p>
  *
  * @version $Id: OpenIntToDoubleHashMap.java 1421448 2012-12-13 19:45:57Z tn $
  * @since 2.0
@@ -54,6 +74,17 @@ public class OpenLongToDoubleHashMap implements Serializable {
      */
     private static final float LOAD_FACTOR = 0.5f;
 
+    /**
+     * Largest number of slots of the tables, the largest power of two of an
+     * int.
+     */
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * Largest number of elements of a map.
+     */
+    public static final int MAX_SIZE = (int) (MAX_CAPACITY * LOAD_FACTOR);
+
     /**
      * Default starting size.
      * <p>
@@ -89,6 +120,12 @@ public class OpenLongToDoubleHashMap implements Serializable {
      */
     private byte[] states;
 
+    /**
+     * Keys, values and states tables stored off the heap, null if the arrays
+     * above are used.
+     */
+    private transient OffHeapTable table;
+
     /**
      * Return value for missing entries.
      */
@@ -156,29 +193,104 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @param source map to copy
      */
     public OpenLongToDoubleHashMap(final OpenLongToDoubleHashMap source) {
-        final int length = source.keys.length;
-        keys = new long[length];
-        System.arraycopy(source.keys, 0, keys, 0, length);
-        values = new double[length];
-        System.arraycopy(source.values, 0, values, 0, length);
-        states = new byte[length];
-        System.arraycopy(source.states, 0, states, 0, length);
+        if (source.table != null) {
+            table = source.table.copy();
+        } else {
+            final int length = source.keys.length;
+            keys = new long[length];
+            System.arraycopy(source.keys, 0, keys, 0, length);
+            values = new double[length];
+            System.arraycopy(source.values, 0, values, 0, length);
+            states = new byte[length];
+            System.arraycopy(source.states, 0, states, 0, length);
+        }
         missingEntries = source.missingEntries;
         size = source.size;
         mask = source.mask;
         count = source.count;
     }
 
+    /**
+     * Build an empty map whose tables are stored off the heap.
+     *
+     * @param missingEntries value to return when a missing entry is fetched
+     * @param table empty tables, whose length is a power of two
+     */
+    private OpenLongToDoubleHashMap(final double missingEntries, final OffHeapTable table) {
+        this.table = table;
+        this.missingEntries = missingEntries;
+        mask = table.length() - 1;
+    }
+
+    /**
+     * Build an empty map whose tables are stored off the heap: in direct
+     * memory (bounded by {@code -XX:MaxDirectMemorySize}), or in temporary
+     * files of a directory mapped in memory, which can grow past the physical
+     * memory.
+     *
+     * @param expectedSize expected number of elements in the map
+     * @param missingEntries value to return when a missing entry is fetched
+     * @param directory directory of the mapped files, or {@code null} to use
+     * direct memory
+     * @return an empty map
+     * @throws java.io.UncheckedIOException if the files cannot be created or
+     * mapped
+     */
+    public static OpenLongToDoubleHashMap offHeap(final int expectedSize, final double missingEntries,
+            final Path directory) {
+        return new OpenLongToDoubleHashMap(missingEntries, new OffHeapTable(computeCapacity(expectedSize), directory));
+    }
+
+    /**
+     * Build an empty map stored like this one, on or off the heap, and
+     * returning the same value for missing entries.
+     *
+     * @param expectedSize expected number of elements in the map
+     * @return an empty map
+     */
+    public OpenLongToDoubleHashMap createMap(final int expectedSize) {
+        if (table == null) {
+            return new OpenLongToDoubleHashMap(expectedSize, missingEntries);
+        }
+        return new OpenLongToDoubleHashMap(missingEntries, table.create(computeCapacity(expectedSize)));
+    }
+
+    /**
+     * Indicate if the tables of the map are stored off the heap.
+     *
+     * @return true if the map was created by
+     * {@link #offHeap(int, double, Path)}
+     */
+    public boolean isOffHeap() {
+        return table != null;
+    }
+
+    /**
+     * Release the memory of a map stored off the heap, without waiting for
+     * the garbage collector. The map must no longer be used afterwards. This
+     * method does nothing for a map stored on the heap.
+     */
+    public void release() {
+        if (table != null) {
+            table.release();
+        }
+    }
+
     /**
      * Compute the capacity needed for a given size.
      *
      * @param expectedSize expected size of the map
      * @return capacity to use for the specified size
+     * @throws NumberIsTooLargeException if the expected size is larger than
+     * {@link #MAX_SIZE}
      */
     private static int computeCapacity(final int expectedSize) {
         if (expectedSize == 0) {
             return 1;
         }
+        if (expectedSize > MAX_SIZE) {
+            throw new NumberIsTooLargeException(expectedSize, MAX_SIZE, true);
+        }
         final int capacity = (int) FastMath.ceil(expectedSize / LOAD_FACTOR);
         final int powerOfTwo = Integer.highestOneBit(capacity);
         if (powerOfTwo == capacity) {
@@ -197,6 +309,33 @@ public class OpenLongToDoubleHashMap implements Serializable {
         return Integer.highestOneBit(i) << 1;
     }
 
+    private long keyAt(final int index) {
+        return table == null ? keys[index] : table.key(index);
+    }
+
+    private double valueAt(final int index) {
+        return table == null ? values[index] : table.value(index);
+    }
+
+    private byte stateAt(final int index) {
+        return table == null ? states[index] : table.state(index);
+    }
+
+    /**
+     * Fill a slot of the tables.
+     */
+    private void setSlot(final int index, final long key, final double value, final byte state) {
+        if (table == null) {
+            keys[index] = key;
+            values[index] = value;
+            states[index] = state;
+        } else {
+            table.key(index, key);
+            table.value(index, value);
+            table.state(index, state);
+        }
+    }
+
     /**
      * Get the stored value associated with the given key
      *
@@ -208,17 +347,17 @@ public class OpenLongToDoubleHashMap implements Serializable {
         final int hash = hashOf(key);
         int index = hash & mask;
         if (containsKey(key, index)) {
-            return values[index];
+            return valueAt(index);
         }
-        if (states[index] == FREE) {
+        if (stateAt(index) == FREE) {
             return missingEntries;
         }
         int j = index;
-        for (int perturb = perturb(hash); states[index] != FREE; perturb >>= PERTURB_SHIFT) {
+        for (int perturb = perturb(hash); stateAt(index) != FREE; perturb >>= PERTURB_SHIFT) {
             j = probe(perturb, j);
             index = j & mask;
             if (containsKey(key, index)) {
-                return values[index];
+                return valueAt(index);
             }
         }
         return missingEntries;
@@ -238,12 +377,12 @@ public class OpenLongToDoubleHashMap implements Serializable {
             return true;
         }
 
-        if (states[index] == FREE) {
+        if (stateAt(index) == FREE) {
             return false;
         }
 
         int j = index;
-        for (int perturb = perturb(hash); states[index] != FREE; perturb >>= PERTURB_SHIFT) {
+        for (int perturb = perturb(hash); stateAt(index) != FREE; perturb >>= PERTURB_SHIFT) {
             j = probe(perturb, j);
             index = j & mask;
             if (containsKey(key, index)) {
@@ -265,7 +404,33 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @return iterator over the map elements
      */
     public Iterator iterator() {
-        return new Iterator();
+        return new Iterator(0, mask + 1);
+    }
+
+    /**
+     * Get an iterator over the map elements stored in a range of slots of the
+     * table, so that several threads can iterate over disjoint parts of the
+     * map. The ranges [0, a), [a, b), ..., [z, {@link #capacity()}) cover each
+     * element once.
+     *
+     * @param from first slot of the range
+     * @param to slot following the range
+     * @return iterator over the map elements of the range
+     */
+    public Iterator iterator(final int from, final int to) {
+        if (from < 0 || to > mask + 1 || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") of " + (mask + 1) + " slots");
+        }
+        return new Iterator(from, to);
+    }
+
+    /**
+     * Get the number of slots of the table.
+     *
+     * @return number of slots of the table
+     */
+    public int capacity() {
+        return mask + 1;
     }
 
     /**
@@ -285,45 +450,31 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @return index at which key should be inserted
      */
     private int findInsertionIndex(final long key) {
-        return findInsertionIndex(keys, states, key, mask);
-    }
-
-    /**
-     * Find the index at which a key should be inserted
-     *
-     * @param keys keys table
-     * @param states states table
-     * @param key key to lookup
-     * @param mask bit mask for hash values
-     * @return index at which key should be inserted
-     */
-    private static int findInsertionIndex(final long[] keys, final byte[] states,
-            final long key, final int mask) {
         final int hash = hashOf(key);
         int index = hash & mask;
-        if (states[index] == FREE) {
+        if (stateAt(index) == FREE) {
             return index;
-        } else if (states[index] == FULL && keys[index] == key) {
+        } else if (stateAt(index) == FULL && keyAt(index) == key) {
             return changeIndexSign(index);
         }
 
         int perturb = perturb(hash);
         int j = index;
-        if (states[index] == FULL) {
+        if (stateAt(index) == FULL) {
             while (true) {
                 j = probe(perturb, j);
                 index = j & mask;
                 perturb >>= PERTURB_SHIFT;
 
-                if (states[index] != FULL || keys[index] == key) {
+                if (stateAt(index) != FULL || keyAt(index) == key) {
                     break;
                 }
             }
         }
 
-        if (states[index] == FREE) {
+        if (stateAt(index) == FREE) {
             return index;
-        } else if (states[index] == FULL) {
+        } else if (stateAt(index) == FULL) {
             // due to the loop exit condition,
             // if (states[index] == FULL) then keys[index] == key
             return changeIndexSign(index);
@@ -334,9 +485,9 @@ public class OpenLongToDoubleHashMap implements Serializable {
             j = probe(perturb, j);
             index = j & mask;
 
-            if (states[index] == FREE) {
+            if (stateAt(index) == FREE) {
                 return firstRemoved;
-            } else if (states[index] == FULL && keys[index] == key) {
+            } else if (stateAt(index) == FULL && keyAt(index) == key) {
                 return changeIndexSign(index);
             }
 
@@ -346,6 +497,45 @@ public class OpenLongToDoubleHashMap implements Serializable {
 
     }
 
+    /**
+     * Find the index at which a key is inserted in tables being filled by
+     * {@link #growTable()}, which hold no removed slot and no copy of the key.
+     *
+     * @param states states table
+     * @param key key to insert
+     * @param mask bit mask for hash values
+     * @return first free index of the probe sequence of the key
+     */
+    private static int findFreeIndex(final byte[] states, final long key, final int mask) {
+        final int hash = hashOf(key);
+        int index = hash & mask;
+        int perturb = perturb(hash);
+        int j = index;
+        while (states[index] != FREE) {
+            j = probe(perturb, j);
+            index = j & mask;
+            perturb >>= PERTURB_SHIFT;
+        }
+        return index;
+    }
+
+    /**
+     * Same as {@link #findFreeIndex(byte[], long, int)}, for tables stored
+     * off the heap.
+     */
+    private static int findFreeIndex(final OffHeapTable table, final long key, final int mask) {
+        final int hash = hashOf(key);
+        int index = hash & mask;
+        int perturb = perturb(hash);
+        int j = index;
+        while (table.state(index) != FREE) {
+            j = probe(perturb, j);
+            index = j & mask;
+            perturb >>= PERTURB_SHIFT;
+        }
+        return index;
+    }
+
     /**
      * Compute next probe for collision resolution
      *
@@ -390,12 +580,12 @@ public class OpenLongToDoubleHashMap implements Serializable {
             return doRemove(index);
         }
 
-        if (states[index] == FREE) {
+        if (stateAt(index) == FREE) {
             return missingEntries;
         }
 
         int j = index;
-        for (int perturb = perturb(hash); states[index] != FREE; perturb >>= PERTURB_SHIFT) {
+        for (int perturb = perturb(hash); stateAt(index) != FREE; perturb >>= PERTURB_SHIFT) {
             j = probe(perturb, j);
             index = j & mask;
             if (containsKey(key, index)) {
@@ -416,7 +606,7 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @return true if an element is associated with key at index
      */
     private boolean containsKey(final long key, final int index) {
-        return (key != 0 || states[index] == FULL) && keys[index] == key;
+        return (key != 0 || stateAt(index) == FULL) && keyAt(index) == key;
     }
 
     /**
@@ -426,10 +616,8 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @return removed value
      */
     private double doRemove(int index) {
-        keys[index] = 0;
-        states[index] = REMOVED;
-        final double previous = values[index];
-        values[index] = missingEntries;
+        final double previous = valueAt(index);
+        setSlot(index, 0, missingEntries, REMOVED);
         --size;
         ++count;
         return previous;
@@ -441,6 +629,8 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * @param key key to which value is associated
      * @param value value to put in the map
      * @return previous value associated with the key
+     * @throws MathIllegalStateException if the key is new and the map already
+     * holds {@link #MAX_SIZE} elements
      */
     public double put(final long key, final double value) {
         int index = findInsertionIndex(key);
@@ -448,12 +638,14 @@ public class OpenLongToDoubleHashMap implements Serializable {
         boolean newMapping = true;
         if (index < 0) {
             index = changeIndexSign(index);
-            previous = values[index];
+            previous = valueAt(index);
             newMapping = false;
+        } else if (size == MAX_SIZE) {
+            // the tables would grow past MAX_CAPACITY slots
+            throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE,
+                    "the map cannot hold more than " + MAX_SIZE + " elements");
         }
-        keys[index] = key;
-        states[index] = FULL;
-        values[index] = value;
+        setSlot(index, key, value, FULL);
         if (newMapping) {
             ++size;
             if (shouldGrowTable()) {
@@ -469,6 +661,10 @@ public class OpenLongToDoubleHashMap implements Serializable {
      * Grow the tables.
      */
     private void growTable() {
+        if (table != null) {
+            growOffHeapTable();
+            return;
+        }
 
         final int oldLength = states.length;
         final long[] oldKeys = keys;
@@ -483,7 +679,7 @@ public class OpenLongToDoubleHashMap implements Serializable {
         for (int i = 0; i < oldLength; ++i) {
             if (oldStates[i] == FULL) {
                 final long key = oldKeys[i];
-                final int index = findInsertionIndex(newKeys, newStates, key, newMask);
+                final int index = findFreeIndex(newStates, key, newMask);
                 newKeys[index] = key;
                 newValues[index] = oldValues[i];
                 newStates[index] = FULL;
@@ -497,6 +693,28 @@ public class OpenLongToDoubleHashMap implements Serializable {
 
     }
 
+    /**
+     * Grow the tables stored off the heap, releasing the previous ones.
+     */
+    private void growOffHeapTable() {
+        final OffHeapTable oldTable = table;
+        final int oldLength = oldTable.length();
+        final OffHeapTable newTable = oldTable.create(RESIZE_MULTIPLIER * oldLength);
+        final int newMask = newTable.length() - 1;
+        for (int i = 0; i < oldLength; ++i) {
+            if (oldTable.state(i) == FULL) {
+                final long key = oldTable.key(i);
+                final int index = findFreeIndex(newTable, key, newMask);
+                newTable.key(index, key);
+                newTable.value(index, oldTable.value(i));
+                newTable.state(index, FULL);
+            }
+        }
+        mask = newMask;
+        table = newTable;
+        oldTable.release();
+    }
+
     /**
      * Check if tables should grow due to increased size.
      *
@@ -538,13 +756,25 @@ public class OpenLongToDoubleHashMap implements Serializable {
          */
         private int next;
 
+        /**
+         * First slot of the iteration.
+         */
+        private final int start;
+
+        /**
+         * Slot following the iteration.
+         */
+        private final int end;
+
         /**
          * Simple constructor.
          */
-        private Iterator() {
+        private Iterator(final int start, final int end) {
 
             // preserve the modification count of the map to detect concurrent modifications later
             referenceCount = count;
+            this.start = start;
+            this.end = end;
 
             // initialize current index
             next = -1;
@@ -582,7 +812,7 @@ public class OpenLongToDoubleHashMap implements Serializable {
             if (current < 0) {
                 throw new NoSuchElementException();
             }
-            return keys[current];
+            return keyAt(current);
         }
 
         /**
@@ -602,7 +832,7 @@ public class OpenLongToDoubleHashMap implements Serializable {
             if (current < 0) {
                 throw new NoSuchElementException();
             }
-            return values[current];
+            return valueAt(current);
         }
 
         /**
@@ -624,21 +854,35 @@ public class OpenLongToDoubleHashMap implements Serializable {
             current = next;
 
             // prepare next step
-            try {
-                while (states[++next] != FULL) { // NOPMD
-                    // nothing to do
-                }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                next = -2;
-                if (current < 0) {
-                    throw new NoSuchElementException();
+            if (next != -2) {
+                int p = next < 0 ? start : next + 1;
+                while (p < end && stateAt(p) != FULL) { // NOPMD
+                    p++;
                 }
+                next = p < end ? p : -2;
+            }
+            if (next == -2 && current < 0) {
+                throw new NoSuchElementException();
             }
 
         }
 
     }
 
+    /**
+     * Write a serialized object.
+     *
+     * @param stream output stream
+     * @throws IOException if object cannot be written, e.g. because the map
+     * is stored off the heap
+     */
+    private void writeObject(final ObjectOutputStream stream) throws IOException {
+        if (table != null) {
+            throw new NotSerializableException("A map stored off the heap cannot be serialized.");
+        }
+        stream.defaultWriteObject();
+    }
+
     /**
      * Read a serialized object.
      *
@@ -655,10 +899,10 @@ public class OpenLongToDoubleHashMap implements Serializable {
 
     public long getRandomKey() {
         Random r = new Random();
-        int i = r.nextInt(keys.length);
-        while (states[i] != FULL) { // NOPMD
-            i = r.nextInt(keys.length);
+        int i = r.nextInt(mask + 1);
+        while (stateAt(i) != FULL) { // NOPMD
+            i = r.nextInt(mask + 1);
         }
-        return keys[i];
+        return keyAt(i);
     }
 }
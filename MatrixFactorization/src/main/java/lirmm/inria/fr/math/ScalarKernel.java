@@ -0,0 +1,53 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+/**
+ * Kernels written as plain loops, left to the auto-vectorization of the JIT.
+ *
+ * @author rbouadjenek
+ */
+final class ScalarKernel implements Kernel {
+
+    @Override
+    public double dot(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        double dot = 0;
+        for (int f = 0; f < length; f++) {
+            dot += a[offsetA + f] * b[offsetB + f];
+        }
+        return dot;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int offsetX, double[] y, int offsetY, int length) {
+        for (int f = 0; f < length; f++) {
+            y[offsetY + f] += alpha * x[offsetX + f];
+        }
+    }
+
+    @Override
+    public double dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        double dot = 0;
+        for (int f = 0; f < length; f++) {
+            dot += (double) a[offsetA + f] * b[offsetB + f];
+        }
+        return dot;
+    }
+
+    @Override
+    public void axpy(double alpha, float[] x, int offsetX, double[] y, int offsetY, int length) {
+        for (int f = 0; f < length; f++) {
+            y[offsetY + f] += alpha * x[offsetX + f];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int offsetX, float[] y, int offsetY, int length) {
+        for (int f = 0; f < length; f++) {
+            y[offsetY + f] = (float) (y[offsetY + f] + alpha * x[offsetX + f]);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class represents the alternating least squares algorithm. Each sweep
+ * first fixes V and computes, for each user, the features that minimize the
+ * objective function J: they are the solution of the k x k ridge regression
+ * (V'*V + lambda*I)*u = V'*r restricted to the items rated by the user. Then
+ * it fixes U and does the same for each item.
+ * <p>
+ * Users (resp. items) are independent of each other, so they are split into
+ * ranges holding about the same number of ratings and solved in parallel. Each
+ * range reuses its own Gram matrix and right-hand side buffers, and the Gram
+ * matrix is factorized in place by a Cholesky decomposition. Since each
+ * sweep can only decrease J, no step size is needed.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class AlternatingLeastSquares implements Optimizer {
+
+    private final int maxNumSweeps;// maximum number of sweeps over the users and the items
+    final double lambda; // Lambda for the regularization terms
+    final int latentDimension; // Number of latent dimension
+    private final Point currentPoint;
+    private final BigSparseRealMatrix R;
+    private final CompressedSparseStorage storage; // Read-only storage of R scanned by the updates
+    private int numEvaluations;
+    private final double epsilone = 0.000005; // Stop creteria for the algorithm
+    private int numThreads = 1;// The number of threads solving the least squares problems.
+
+    /**
+     * Create a structure that represent the problem of matrix factorization.
+     *
+     * @param R The matrix to factorize, read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
+     * @param latentDimension Number of latent dimensions used in the
+     * factorization process.
+     * @param numSweeps Maximum number of sweeps.
+     * @param lambda Weight for the regularization terms, must be positive.
+     * @throws Exception
+     */
+    public AlternatingLeastSquares(BigSparseRealMatrix R, int latentDimension, int numSweeps, double lambda) throws Exception {
+        if (R.getRowDimension() == 0 || R.getColumnDimension() == 0) {
+            throw new Exception("Check the rows and the columns of the matrix R.");
+        }
+        if (lambda <= 0) {
+            throw new Exception("Lambda must be positive for the least squares problems to be well posed.");
+        }
+        this.maxNumSweeps = numSweeps;
+        this.numEvaluations = 0;
+        this.lambda = lambda;
+        this.latentDimension = latentDimension;
+        this.R = R;
+        this.storage = R.toCompressedStorage();
+        this.currentPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension);
+        this.currentPoint.initialize();
+    }
+
+    /**
+     * Set the number of threads solving the least squares problems.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Solve the least squares problems of a range of rows (or columns) of R.
+     *
+     * @param from First row to solve.
+     * @param to Last row to solve (excluded).
+     * @param pointers Start of each row in {@code indices}.
+     * @param indices Index of the fixed features of each rating.
+     * @param positions Position of each rating in the value array, or
+     * {@code null} if the ratings are in the order of the value array.
+     * @param solved Features being computed.
+     * @param fixed Features being fixed.
+     * @param gram Buffer of k x k elements for the Gram matrix.
+     * @param rhs Buffer of k elements for the right-hand side.
+     */
+    private void solveRange(int from, int to, int[] pointers, int[] indices, int[] positions,
+            DenseFactorMatrix solved, DenseFactorMatrix fixed, double[] gram, double[] rhs) {
+        final double[] values = storage.getValues();
+        final int k = latentDimension;
+        for (int i = from; i < to; i++) {
+            Arrays.fill(gram, 0);
+            Arrays.fill(rhs, 0);
+            for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                final double[] features = fixed.getRowData(indices[p]);
+                final int offset = fixed.getRowOffset(indices[p]);
+                final double r = values[positions == null ? p : positions[p]];
+                for (int a = 0; a < k; a++) {
+                    final double va = features[offset + a];
+                    rhs[a] += r * va;// V'*r
+                    for (int b = 0; b <= a; b++) {
+                        gram[a * k + b] += va * features[offset + b];// V'*V, lower triangle
+                    }
+                }
+            }
+            for (int a = 0; a < k; a++) {
+                gram[a * k + a] += lambda;// V'*V+lambda*I
+            }
+            choleskySolve(gram, rhs, k);
+            System.arraycopy(rhs, 0, solved.getRowData(i), solved.getRowOffset(i), k);
+        }
+    }
+
+    /**
+     * Solve A*x=b for a symmetric positive definite matrix A, in place. Only
+     * the lower triangle of A is read; it is overwritten by the Cholesky
+     * factor L (A=L*L'), and b is overwritten by x.
+     *
+     * @param a The k x k matrix A, in row-major order.
+     * @param b The vector b.
+     * @param k The dimension of the system.
+     */
+    private static void choleskySolve(double[] a, double[] b, int k) {
+        for (int j = 0; j < k; j++) {
+            double d = a[j * k + j];
+            for (int m = 0; m < j; m++) {
+                d -= a[j * k + m] * a[j * k + m];
+            }
+            d = FastMath.sqrt(d);
+            a[j * k + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                double s = a[i * k + j];
+                for (int m = 0; m < j; m++) {
+                    s -= a[i * k + m] * a[j * k + m];
+                }
+                a[i * k + j] = s / d;
+            }
+        }
+        // L*y=b
+        for (int i = 0; i < k; i++) {
+            double s = b[i];
+            for (int m = 0; m < i; m++) {
+                s -= a[i * k + m] * b[m];
+            }
+            b[i] = s / a[i * k + i];
+        }
+        // L'*x=y
+        for (int i = k - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int m = i + 1; m < k; m++) {
+                s -= a[m * k + i] * b[m];
+            }
+            b[i] = s / a[i * k + i];
+        }
+    }
+
+    /**
+     * Solve all the rows (or all the columns) of R, one range per thread.
+     */
+    private void solveAll(ForkJoinPool pool, int[] bounds, int[] pointers, int[] indices, int[] positions,
+            DenseFactorMatrix solved, DenseFactorMatrix fixed) {
+        if (pool == null) {
+            final int k = latentDimension;
+            solveRange(bounds[0], bounds[1], pointers, indices, positions, solved, fixed, new double[k * k], new double[k]);
+        } else {
+            pool.invoke(new SolveTask(0, bounds.length - 1, bounds, pointers, indices, positions, solved, fixed));
+        }
+    }
+
+    /**
+     * This is the main optimisation routine. Each sweep solves the users and
+     * then the items, and evaluates the objective function. The algorithm
+     * stops after the maximum number of sweeps, or when the objective function
+     * no longer decreases significantly.
+     */
+    @Override
+    public void findMinimum() {
+        final DecimalFormat df = GradientDescent.createProgressFormat();
+        // rows and columns of the storage are those of the untransposed R
+        final DenseFactorMatrix rowData, columnData;
+        if (R.isTransposed()) {
+            rowData = currentPoint.getV();
+            columnData = currentPoint.getU();
+        } else {
+            rowData = currentPoint.getU();
+            columnData = currentPoint.getV();
+        }
+        final ForkJoinPool pool = numThreads == 1 ? null : new ForkJoinPool(numThreads);
+        final GradientEvaluator evaluator = new GradientEvaluator(storage, latentDimension, lambda, pool);
+        final int[] rowBounds = storage.partitionRows(numThreads);
+        final int[] columnBounds = storage.partitionColumns(numThreads);
+        try {
+            currentPoint.setJ(evaluator.evaluate(rowData, columnData, null, null));
+            System.err.println("*********** Initial J ***********");
+            System.err.println("J= " + currentPoint.getJ());
+            System.err.println("*********************************");
+            while (numEvaluations < maxNumSweeps) {
+                //------------ Compute the new values of U with V fixed ------------
+                solveAll(pool, rowBounds, storage.getRowPointers(), storage.getColumnIndices(), null, rowData, columnData);
+                //------------ Compute the new values of V with U fixed ------------
+                solveAll(pool, columnBounds, storage.getColumnPointers(), storage.getRowIndices(), storage.getColumnPositions(), columnData, rowData);
+                numEvaluations++;
+                final double previousJ = currentPoint.getJ();
+                currentPoint.setJ(evaluator.evaluate(rowData, columnData, null, null));
+                double decrease = (previousJ - currentPoint.getJ()) * 100 / previousJ;
+                System.err.println("J= " + df.format(currentPoint.getJ()) + " (rate: " + df.format(decrease) + "%)");
+                System.err.println("******************" + numEvaluations + "******************");
+                if (decrease < epsilone) {
+                    break;
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Solve a range of row ranges, splitting it in two until a single range is
+     * left. Each leaf allocates its buffers once for all its rows.
+     */
+    private final class SolveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final int[] bounds, pointers, indices, positions;
+        private final DenseFactorMatrix solved, fixed;
+
+        SolveTask(int from, int to, int[] bounds, int[] pointers, int[] indices, int[] positions,
+                DenseFactorMatrix solved, DenseFactorMatrix fixed) {
+            this.from = from;
+            this.to = to;
+            this.bounds = bounds;
+            this.pointers = pointers;
+            this.indices = indices;
+            this.positions = positions;
+            this.solved = solved;
+            this.fixed = fixed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final int k = latentDimension;
+                solveRange(bounds[from], bounds[to], pointers, indices, positions, solved, fixed, new double[k * k], new double[k]);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new SolveTask(from, middle, bounds, pointers, indices, positions, solved, fixed),
+                        new SolveTask(middle, to, bounds, pointers, indices, positions, solved, fixed));
+            }
+        }
+    }
+
+    /**
+     * This method return the current point of the Algorithm.
+     *
+     * @return The current point of the Algorithm.
+     */
+    @Override
+    public Point getCurrentPoint() {
+        return currentPoint;
+    }
+
+    /**
+     * This is the main matrix to factorize.
+     *
+     * @return The current matrix to factorize.
+     */
+    @Override
+    public BigSparseRealMatrix getR() {
+        return R;
+    }
+
+    /**
+     * The number of sweeps run so far.
+     *
+     * @return The current sweep of the algorithm.
+     */
+    @Override
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+
+/**
+ * Binary checkpoint of the state of a {@link GradientDescent}, written by
+ * {@link GradientDescent#setCheckpoint(String, int)} and read back by
+ * {@link GradientDescent#restore(String)}.
+ * <p>
+ * All the numbers are big-endian. The file is made of:</p>
+ * <ul>
+ * <li>a header of {@link #HEADER_SIZE} bytes: the magic number, the version,
+ * the number of users, the number of items, the number of latent dimensions,
+ * the number of evaluations, the step size (double) and J (double);</li>
+ * <li>the latent features of the users, row by row (doubles);</li>
+ * <li>the latent features of the items, row by row (doubles).</li>
+ * </ul>
+ * A checkpoint is first written to a temporary file, which then replaces the
+ * previous checkpoint, so a crash while writing never loses the last one.
+ * The latent features are always written as doubles, so a point stored in
+ * single precision can be restored in double precision and conversely.
+ *
+ * @author rbouadjenek
+ */
+final class Checkpoint {
+
+    /**
+     * Magic number at the start of the file ("PMFC").
+     */
+    static final int MAGIC = 0x504D4643;
+    /**
+     * Version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 40;
+    /**
+     * Maximum number of doubles mapped at once, so that a mapping never
+     * exceeds 2 GB.
+     */
+    private static final int DOUBLES_PER_SEGMENT = 1 << 27;
+
+    private final Path file; // The checkpoint file
+    private final Point snapshot; // Copy of the point being written, so that training goes on meanwhile
+    private final ExecutorService writer; // Thread writing the checkpoints
+    private Future<?> pending; // Last checkpoint submitted, null if none
+
+    /**
+     * Create a writer of asynchronous checkpoints.
+     *
+     * @param file The checkpoint file.
+     * @param numUsers Number of users.
+     * @param numItems Number of items.
+     * @param latentDimension Number of latent dimensions.
+     * @param singlePrecision true if the points are stored as floats.
+     */
+    Checkpoint(String file, int numUsers, int numItems, int latentDimension, boolean singlePrecision) {
+        this.file = Paths.get(file);
+        this.snapshot = new Point(numUsers, numItems, latentDimension, singlePrecision);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-" + file);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Copy a point and write it in the background. If the previous checkpoint
+     * is still being written, nothing is done.
+     *
+     * @param point The point to save.
+     * @param stepSize The step size to resume with.
+     * @param numEvaluations The number of evaluations done so far.
+     * @return true if the checkpoint was submitted.
+     */
+    boolean submit(Point point, final double stepSize, final int numEvaluations) {
+        if (pending != null && !pending.isDone()) {
+            return false;
+        }
+        report();
+        point.copy(snapshot);
+        pending = writer.submit(() -> {
+            write(file, snapshot, stepSize, numEvaluations);
+            return null;
+        });
+        return true;
+    }
+
+    /**
+     * Wait for the last checkpoint to be written.
+     */
+    void await() {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                // reported below
+            }
+            report();
+        }
+    }
+
+    /**
+     * Wait for the last checkpoint to be written, and stop the thread writing
+     * the checkpoints. No checkpoint can be submitted afterwards.
+     */
+    void close() {
+        await();
+        writer.shutdown();
+    }
+
+    /**
+     * Print the failure of the last checkpoint, if any. Training goes on, the
+     * previous checkpoint being still valid.
+     */
+    private void report() {
+        if (pending != null && pending.isDone()) {
+            try {
+                pending.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                System.err.println("The checkpoint " + file + " could not be written: " + ex.getCause());
+            }
+            pending = null;
+        }
+    }
+
+    /**
+     * Write a checkpoint.
+     *
+     * @param file The checkpoint file.
+     * @param point The point to save.
+     * @param stepSize The step size to resume with.
+     * @param numEvaluations The number of evaluations done so far.
+     * @throws IOException
+     */
+    static void write(Path file, Point point, double stepSize, int numEvaluations) throws IOException {
+        final DenseFactorMatrix U = point.getU();
+        final DenseFactorMatrix V = point.getV();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(U.getRowDimension());
+            buffer.putInt(V.getRowDimension());
+            buffer.putInt(U.getLatentDimension());
+            buffer.putInt(numEvaluations);
+            buffer.putDouble(stepSize);
+            buffer.putDouble(point.getJ());
+            write(channel, buffer, U);
+            write(channel, buffer, V);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Append the elements of a matrix as doubles.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, DenseFactorMatrix m) throws IOException {
+        for (int b = 0; b < m.getNumBlocks(); b++) {
+            if (!m.isSinglePrecision()) {
+                write(channel, buffer, m.getBlock(b));
+                continue;
+            }
+            for (float value : m.getFloatBlock(b)) {
+                if (buffer.remaining() < 8) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                buffer.putDouble(value);
+            }
+        }
+    }
+
+    /**
+     * Append doubles through a buffer, flushing it to the channel each time
+     * it is full.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, double[] data) throws IOException {
+        int p = 0;
+        while (p < data.length) {
+            final int count = Math.min(buffer.remaining() / 8, data.length - p);
+            buffer.asDoubleBuffer().put(data, p, count);
+            buffer.position(buffer.position() + count * 8);
+            p += count;
+            if (buffer.remaining() < 8) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Read a checkpoint into a point, which must have the dimensions of the
+     * checkpoint.
+     *
+     * @param file The checkpoint file.
+     * @param point The point to fill, including J.
+     * @return The step size and the number of evaluations of the checkpoint.
+     * @throws IOException if the file is not a checkpoint of a point of these
+     * dimensions.
+     */
+    static double[] read(String file, Point point) throws IOException {
+        final DenseFactorMatrix U = point.getU();
+        final DenseFactorMatrix V = point.getV();
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint file.");
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version: " + version);
+            }
+            final int numUsers = header.getInt();
+            final int numItems = header.getInt();
+            final int latentDimension = header.getInt();
+            if (numUsers != U.getRowDimension() || numItems != V.getRowDimension()
+                    || latentDimension != U.getLatentDimension()) {
+                throw new IOException("The checkpoint " + file + " has " + numUsers + " users, " + numItems
+                        + " items and " + latentDimension + " latent dimensions, expected " + U.getRowDimension()
+                        + ", " + V.getRowDimension() + " and " + U.getLatentDimension() + ".");
+            }
+            final int numEvaluations = header.getInt();
+            final double stepSize = header.getDouble();
+            point.setJ(header.getDouble());
+            long position = read(channel, HEADER_SIZE, U);
+            read(channel, position, V);
+            return new double[]{stepSize, numEvaluations};
+        }
+    }
+
+    /**
+     * Read the elements of a matrix, block by block, by mapping segments of
+     * at most DOUBLES_PER_SEGMENT doubles, rounding them if the matrix is in
+     * single precision.
+     *
+     * @return The position following the doubles read.
+     */
+    private static long read(FileChannel channel, long position, DenseFactorMatrix m) throws IOException {
+        if (position + (long) m.getRowDimension() * m.getLatentDimension() * 8 > channel.size()) {
+            throw new IOException("Truncated checkpoint.");
+        }
+        for (int b = 0; b < m.getNumBlocks(); b++) {
+            final double[] data = m.isSinglePrecision() ? null : m.getBlock(b);
+            final float[] floats = m.isSinglePrecision() ? m.getFloatBlock(b) : null;
+            final int length = data != null ? data.length : floats.length;
+            for (int p = 0; p < length; p += DOUBLES_PER_SEGMENT) {
+                final int count = Math.min(DOUBLES_PER_SEGMENT, length - p);
+                final DoubleBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * 8).asDoubleBuffer();
+                if (data != null) {
+                    segment.get(data, p, count);
+                } else {
+                    for (int q = 0; q < count; q++) {
+                        floats[p + q] = (float) segment.get(q);
+                    }
+                }
+                position += (long) count * 8;
+            }
+        }
+        return position;
+    }
+}
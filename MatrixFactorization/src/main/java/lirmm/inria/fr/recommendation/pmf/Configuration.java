@@ -0,0 +1,55 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * Hyperparameters of a {@link GradientDescent}, tried by a
+ * {@link HyperparameterSearch}.
+ *
+ * @author rbouadjenek
+ */
+public final class Configuration {
+
+    private final int latentDimension; // Number of latent dimensions
+    private final double lambda; // Weight for the regularization terms
+    private final double stepSize; // Initial step size
+    private final double increasedCostPercentage; // Growth of the step size after a step that decreases J
+    private final double decreasedCostPercentage; // Factor of the step size after a step that increases J
+
+    public Configuration(int latentDimension, double lambda, double stepSize, double increasedCostPercentage,
+            double decreasedCostPercentage) {
+        this.latentDimension = latentDimension;
+        this.lambda = lambda;
+        this.stepSize = stepSize;
+        this.increasedCostPercentage = increasedCostPercentage;
+        this.decreasedCostPercentage = decreasedCostPercentage;
+    }
+
+    public int getLatentDimension() {
+        return latentDimension;
+    }
+
+    public double getLambda() {
+        return lambda;
+    }
+
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    public double getIncreasedCostPercentage() {
+        return increasedCostPercentage;
+    }
+
+    public double getDecreasedCostPercentage() {
+        return decreasedCostPercentage;
+    }
+
+    @Override
+    public String toString() {
+        return "k=" + latentDimension + ", lambda=" + lambda + ", stepSize=" + stepSize
+                + ", increase=" + increasedCostPercentage + ", decrease=" + decreasedCostPercentage;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.data.DataMatrix;
+import lirmm.inria.fr.data.Folds;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class runs a k-fold cross-validation of the gradient descent on a
+ * matrix loaded once. A compressed view of the matrix is shared, read-only,
+ * by all the folds: each non-zero element is labelled with its fold, and the training
+ * of a fold skips the elements of that fold, which are then used to measure
+ * the MAE and the RMSE. The memory used is one matrix plus one set of factors
+ * per fold being trained. Folds are trained in parallel.
+ *
+ * @author rbouadjenek
+ */
+public final class CrossValidation {
+
+    private final BigSparseRealMatrix R; // Compressed view of the matrix, shared by all the folds
+    private final Folds folds; // Entries of each fold
+    private final byte[] foldOfEntries; // Fold of each non-zero element, in the order of the values of the storage of R
+    private int numThreads = 1; // Number of folds trained at once
+
+    /**
+     * Split the entries of a matrix into folds.
+     *
+     * @param R The matrix. Its entries must have been split into training and
+     * test sets before. The folds share it through
+     * {@link BigSparseRealMatrix#compressedView()}.
+     * @param numFolds Number of folds.
+     * @param seed Seed of the split.
+     */
+    public CrossValidation(DataMatrix R, int numFolds, long seed) {
+        if (numFolds > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many folds: " + numFolds);
+        }
+        this.folds = R.createFolds(numFolds, seed);
+        this.R = R.compressedView();
+        final CompressedSparseStorage storage = this.R.getCompressedStorage();
+        final long columnDimension = storage.getColumnDimension();
+        this.foldOfEntries = new byte[storage.getDataSize()];
+        for (int f = 0; f < numFolds; f++) {
+            for (int p = folds.getFrom(f); p < folds.getTo(f); p++) {
+                final long key = folds.getKey(p);
+                foldOfEntries[storage.find((int) (key / columnDimension), (int) (key % columnDimension))] = (byte) f;
+            }
+        }
+    }
+
+    /**
+     * Set the number of folds trained at once.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @return The folds.
+     */
+    public Folds getFolds() {
+        return folds;
+    }
+
+    /**
+     * Train the gradient descent on each fold and measure its errors on the
+     * elements held out.
+     *
+     * @param latentDimension Number of latent dimensions.
+     * @param numEvaluations Maximum number of evaluations of each training.
+     * @param lambda Weight for the regularization terms.
+     * @return The errors of the folds.
+     */
+    public CrossValidationResult run(int latentDimension, int numEvaluations, double lambda) {
+        final int numFolds = folds.getNumFolds();
+        final double[] mae = new double[numFolds];
+        final double[] rmse = new double[numFolds];
+        final int[] evaluations = new int[numFolds];
+        final FoldTask task = new FoldTask(0, numFolds, latentDimension, numEvaluations, lambda, mae, rmse, evaluations);
+        if (numThreads == 1) {
+            task.compute();
+        } else {
+            final ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return new CrossValidationResult(mae, rmse, evaluations);
+    }
+
+    /**
+     * Create a gradient descent trained on all the folds but one.
+     *
+     * @param fold The fold held out.
+     * @param latentDimension Number of latent dimensions.
+     * @param numEvaluations Maximum number of evaluations.
+     * @param lambda Weight for the regularization terms.
+     * @return The gradient descent, not trained yet.
+     */
+    GradientDescent createGradientDescent(int fold, int latentDimension, int numEvaluations, double lambda) {
+        final GradientDescent gd;
+        try {
+            gd = new GradientDescent(R, latentDimension, numEvaluations, lambda);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        gd.holdOut(foldOfEntries, fold);
+        return gd;
+    }
+
+    /**
+     * Measure the errors of a point on the elements of a fold.
+     *
+     * @return The MAE and the RMSE.
+     */
+    double[] measure(int fold, Point point) {
+        final DenseFactorMatrix U = point.getU();
+        final DenseFactorMatrix V = point.getV();
+        final long columnDimension = R.getCompressedStorage().getColumnDimension();
+        double absolute = 0;
+        double squared = 0;
+        for (int p = folds.getFrom(fold); p < folds.getTo(fold); p++) {
+            final long key = folds.getKey(p);
+            final int row = (int) (key / columnDimension);
+            final int column = (int) (key % columnDimension);
+            // rows and columns of the storage are those of the untransposed R
+            double estimation = R.isTransposed() ? U.dotProduct(column, V, row) : U.dotProduct(row, V, column);
+            final double error = folds.getValue(p) - estimation;
+            absolute += FastMath.abs(error);
+            squared += error * error;
+        }
+        final int size = folds.getFoldSize(fold);
+        return new double[]{absolute / size, FastMath.sqrt(squared / size)};
+    }
+
+    /**
+     * Train and measure a range of folds, splitting it in two until a single
+     * fold is left.
+     */
+    private final class FoldTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final int latentDimension, numEvaluations;
+        private final double lambda;
+        private final double[] mae, rmse;
+        private final int[] evaluations;
+
+        FoldTask(int from, int to, int latentDimension, int numEvaluations, double lambda,
+                double[] mae, double[] rmse, int[] evaluations) {
+            this.from = from;
+            this.to = to;
+            this.latentDimension = latentDimension;
+            this.numEvaluations = numEvaluations;
+            this.lambda = lambda;
+            this.mae = mae;
+            this.rmse = rmse;
+            this.evaluations = evaluations;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final GradientDescent gd = createGradientDescent(from, latentDimension, numEvaluations, lambda);
+                try {
+                    gd.findMinimum();
+                    final double[] errors = measure(from, gd.getCurrentPoint());
+                    mae[from] = errors[0];
+                    rmse[from] = errors[1];
+                    evaluations[from] = gd.getNumEvaluations();
+                } finally {
+                    gd.close();
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new FoldTask(from, middle, latentDimension, numEvaluations, lambda, mae, rmse, evaluations),
+                        new FoldTask(middle, to, latentDimension, numEvaluations, lambda, mae, rmse, evaluations));
+            }
+        }
+    }
+}
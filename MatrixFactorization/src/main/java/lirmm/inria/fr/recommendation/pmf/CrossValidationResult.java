@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.io.PrintStream;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Errors of a cross-validation, computed by {@link CrossValidation}: the MAE
+ * and the RMSE of each fold, and their mean and variance across the folds.
+ *
+ * @author rbouadjenek
+ */
+public final class CrossValidationResult {
+
+    private final double[] mae; // MAE of each fold
+    private final double[] rmse; // RMSE of each fold
+    private final int[] numEvaluations; // Number of evaluations of the training of each fold
+
+    CrossValidationResult(double[] mae, double[] rmse, int[] numEvaluations) {
+        this.mae = mae;
+        this.rmse = rmse;
+        this.numEvaluations = numEvaluations;
+    }
+
+    public int getNumFolds() {
+        return mae.length;
+    }
+
+    public double getMAE(int fold) {
+        return mae[fold];
+    }
+
+    public double getRMSE(int fold) {
+        return rmse[fold];
+    }
+
+    public int getNumEvaluations(int fold) {
+        return numEvaluations[fold];
+    }
+
+    public double getMeanMAE() {
+        return mean(mae);
+    }
+
+    /**
+     * @return The unbiased variance of the MAE across the folds.
+     */
+    public double getMAEVariance() {
+        return variance(mae);
+    }
+
+    public double getMeanRMSE() {
+        return mean(rmse);
+    }
+
+    /**
+     * @return The unbiased variance of the RMSE across the folds.
+     */
+    public double getRMSEVariance() {
+        return variance(rmse);
+    }
+
+    private static double mean(double[] x) {
+        double sum = 0;
+        for (double v : x) {
+            sum += v;
+        }
+        return sum / x.length;
+    }
+
+    private static double variance(double[] x) {
+        if (x.length < 2) {
+            return 0;
+        }
+        final double mean = mean(x);
+        double sum = 0;
+        for (double v : x) {
+            sum += (v - mean) * (v - mean);
+        }
+        return sum / (x.length - 1);
+    }
+
+    /**
+     * Print the errors of each fold, then their mean and standard deviation.
+     *
+     * @param out The stream to print to.
+     */
+    public void print(PrintStream out) {
+        out.println("******************************************");
+        out.println("Fold\tMAE\tRMSE\tEvaluations");
+        for (int f = 0; f < mae.length; f++) {
+            out.println(f + "\t" + mae[f] + "\t" + rmse[f] + "\t" + numEvaluations[f]);
+        }
+        out.println("******************************************");
+        out.println("Mean\t" + getMeanMAE() + "\t" + getMeanRMSE());
+        out.println("Std\t" + FastMath.sqrt(getMAEVariance()) + "\t" + FastMath.sqrt(getRMSEVariance()));
+        out.println("******************************************");
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Listener writing the statistics of each iteration as a line of a CSV file.
+ * Each line is flushed, so the file can be followed while the job runs.
+ *
+ * @author rbouadjenek
+ */
+public final class CsvIterationLogger implements IterationListener, Closeable {
+
+    private final PrintWriter writer;
+
+    /**
+     * Create a CSV file and write its header.
+     *
+     * @param file The CSV file.
+     * @throws IOException if the file cannot be created.
+     */
+    public CsvIterationLogger(String file) throws IOException {
+        this.writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        writer.println("iteration,J,bestJ,stepSize,accepted,updateMillis,evaluationMillis,nonZerosPerSecond,allocatedBytes");
+        writer.flush();
+    }
+
+    @Override
+    public void iterationCompleted(IterationStatistics s) {
+        writer.println(s.getIteration() + "," + s.getJ() + "," + s.getBestJ() + "," + s.getStepSize() + ","
+                + s.isAccepted() + "," + s.getUpdateNanos() / 1e6 + "," + s.getEvaluationNanos() / 1e6 + ","
+                + s.getNonZerosPerSecond() + "," + s.getAllocatedBytes());
+        writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
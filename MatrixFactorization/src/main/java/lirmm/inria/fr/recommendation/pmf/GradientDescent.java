@@ -4,9 +4,20 @@
  */
 package lirmm.inria.fr.recommendation.pmf;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import lirmm.inria.fr.math.BigSparseRealMatrix;
-import org.apache.commons.math3.util.FastMath;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.Kernels;
 
 /**
  * This class represents the gradient descent algorithm. This class includes all
@@ -15,16 +26,37 @@ import org.apache.commons.math3.util.FastMath;
  *
  * @author rbouadjenek
  */
-public final class GradientDescent {
+public final class GradientDescent implements Optimizer {
 
-    private final int maxNumEvaluations;// maximum number of iteration for the gradient descent algorithm
+    private int maxNumEvaluations;// maximum number of iteration for the gradient descent algorithm
     final double lambda; // Lambda for the regularization terms
     final int latentDimension; // Number of latent dimension
+    private final boolean singlePrecision; // true if U and V are stored as floats
     private Point nextPoint;
     private Point currentPoint;
     private BigSparseRealMatrix R;
+    private final CompressedSparseStorage storage; // Read-only storage of R scanned by the evaluations
+    private final DenseFactorMatrix gradientU; // Derivative of J with respect to U, at the next point
+    private final DenseFactorMatrix gradientV; // Derivative of J with respect to V, at the next point
+    private final DenseFactorMatrix currentGradientU; // Derivative of J with respect to U, at the current point
+    private final DenseFactorMatrix currentGradientV; // Derivative of J with respect to V, at the current point
+    private GradientEvaluator evaluator; // Single pass evaluation of J and of its gradient
+    private byte[] folds; // Fold of each non-zero element of R, null if none is held out
+    private int heldOutFold; // Fold whose non-zero elements are ignored
+    private ForkJoinPool pool; // Threads evaluating the shards of R, null when running in the calling thread
+    private final Set<Long> workers = ConcurrentHashMap.newKeySet(); // Ids of the threads started by the pool
     private int numEvaluations;
     private final double epsilone = 0.000005; // Stop creteria for the gradient descent algorithm
+    private final List<IterationListener> listeners = new CopyOnWriteArrayList<>(); // Listeners notified after each iteration
+    private long lastUpdateNanos; // Time spent by the last iteration moving U and V
+    private long lastEvaluationNanos; // Time spent by the last iteration evaluating J and its gradient
+    private Checkpoint checkpoint; // Writer of the checkpoints, null if there are none
+    private int checkpointInterval; // Number of evaluations between two checkpoints
+    private ValidationMonitor validation; // Validation set used to stop early, null if there is none
+    private int validationInterval; // Number of evaluations between two validations
+    private int patience; // Number of validations without improvement before stopping
+    private Point bestPoint; // Point with the lowest validation RMSE
+    private double bestValidationRMSE = Double.POSITIVE_INFINITY; // Lowest validation RMSE
     /**
      * Step size parameters
      */
@@ -40,7 +72,8 @@ public final class GradientDescent {
     /**
      * Create a structure that represent the problem of matrix factorization.
      *
-     * @param R The matrix to factorize.
+     * @param R The matrix to factorize, read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
      * @param latentDimension Number of latent dimensions used in the
      * factorization process.
      * @param numEvaluations Number of maximum evaluation.
@@ -48,69 +81,368 @@ public final class GradientDescent {
      * @throws Exception
      */
     public GradientDescent(BigSparseRealMatrix R, int latentDimension, int numEvaluations, double lambda) throws Exception {
+        this(R, latentDimension, numEvaluations, lambda, false);
+    }
+
+    /**
+     * Create a structure that represent the problem of matrix factorization,
+     * choosing the precision in which U and V are stored. In single
+     * precision, the latent features take half the memory, while the
+     * gradients and the objective function are still computed in double
+     * precision.
+     *
+     * @param R The matrix to factorize, read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
+     * @param latentDimension Number of latent dimensions used in the
+     * factorization process.
+     * @param numEvaluations Number of maximum evaluation.
+     * @param lambda Weight for the regularization terms.
+     * @param singlePrecision true to store the latent features as floats.
+     * @throws Exception
+     */
+    public GradientDescent(BigSparseRealMatrix R, int latentDimension, int numEvaluations, double lambda,
+            boolean singlePrecision) throws Exception {
+        this.singlePrecision = singlePrecision;
         this.maxNumEvaluations = numEvaluations;
         this.numEvaluations = 0;
         if (R.getRowDimension() == 0 || R.getColumnDimension() == 0) {
             throw new Exception("Check the rows and the columns of the matrix R.");
         }
-        this.nextPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension);
-        this.nextPoint.initialize();
-        this.currentPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension);
-        nextPoint.copy(currentPoint);
         this.lambda = lambda;
         this.latentDimension = latentDimension;
         this.R = R;
+        this.storage = R.toCompressedStorage();
+        this.evaluator = new GradientEvaluator(storage, latentDimension, lambda, null);
+        this.nextPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension, singlePrecision);
+        this.nextPoint.initialize();
+        this.gradientU = new DenseFactorMatrix(R.getRowDimension(), latentDimension);
+        this.gradientV = new DenseFactorMatrix(R.getColumnDimension(), latentDimension);
+        this.nextPoint.setJ(evaluate(nextPoint, gradientU, gradientV));
+        this.currentPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension, singlePrecision);
+        nextPoint.copy(currentPoint);
+        this.currentGradientU = gradientU.copy();
+        this.currentGradientV = gradientV.copy();
     }
 
     /**
-     * This function is the objective function. It is called by Gradient class
-     * to evaluate current point.
+     * This function evaluates a point in a single pass over the non-zero
+     * elements of R. It returns the value of the objective function J and
+     * fills gradientU and gradientV with the derivative of J, so that the
+     * residual R-U*V' is never stored.
      */
-    private double computeCostFunction(BigSparseRealMatrix U, BigSparseRealMatrix V) {
-        double J = ((double) 1 / 2) * FastMath.pow(((R.specialOperation(U.transpose(), V)).getFrobeniusNorm()), 2); // compute (R-U'*V).^2
-        J += (lambda / 2) * FastMath.pow(U.getFrobeniusNorm(), 2);// Adding the regularization term for U
-        J += (lambda / 2) * FastMath.pow(V.getFrobeniusNorm(), 2);// Adding the regularization term for V
-        return J;
+    private double evaluate(Point point, DenseFactorMatrix gradientU, DenseFactorMatrix gradientV) {
+        // rows and columns of the storage are those of the untransposed R
+        final boolean transposed = R.isTransposed();
+        final DenseFactorMatrix rows = transposed ? point.getV() : point.getU();
+        final DenseFactorMatrix columns = transposed ? point.getU() : point.getV();
+        final DenseFactorMatrix rowGradient = transposed ? gradientV : gradientU;
+        final DenseFactorMatrix columnGradient = transposed ? gradientU : gradientV;
+        return evaluator.evaluate(rows, columns, rowGradient, columnGradient);
     }
 
     /**
-     * This function is the derivative of objective function. It is called by
-     * the Gradient class to evaluate and update the current point. This method
-     * should populate the elements of the array point.gradient.
+     * Set the number of threads used to evaluate the objective function and
+     * its gradient. The rows of R are split into as many shards, and each
+     * shard keeps its own buffer for the gradient of the columns, so the
+     * memory used by the gradient of V grows with the number of threads. For
+     * a given number of threads, the results are always the same.
+     *
+     * @param parallelism Number of threads, 1 to evaluate in the calling
+     * thread.
      */
-    private void computeGradient() {
-        BigSparseRealMatrix temp = R.specialOperation(this.nextPoint.getU().transpose(), this.nextPoint.getV()).scalarMultiply(-1);// compute (U'*V-R)
-        //--------------------------------------------------------------
-        //------------ Compute the new values of U------------------------
-        //--------------------------------------------------------------
-        BigSparseRealMatrix updatedU = temp.multiply(this.nextPoint.getV().transpose());// compute (U'*V-R)*V'
-//        System.out.println(updatedU);
-        updatedU = updatedU.add(this.nextPoint.getU().transpose().scalarMultiply(lambda));// compute (U'*V-R)*V'+lambda*U'
-        updatedU = this.nextPoint.getU().subtract(updatedU.transpose().scalarMultiply(currentStepSize));// compute U=U-alpha*J'
-        //--------------------------------------------------------------
-        //------------ Compute the new values of V ----------------------
-        //--------------------------------------------------------------
-        BigSparseRealMatrix updatedV = temp.transpose().multiply(this.nextPoint.getU().transpose());// compute (U'*V-R)*U'
-//        System.out.println(updatedV);
-        updatedV = updatedV.add(this.nextPoint.getV().transpose().scalarMultiply(lambda));// compute (U'*V-R)*U'+lambda*V'
-        updatedV = this.nextPoint.getV().subtract(updatedV.transpose().scalarMultiply(currentStepSize));// compute V=V-alpha*J'
-        //--------------------------------------------
-        //------------ Simultanuously update U and V -------
-        //------------------------------------------------
-//        System.out.println("---------------");
-//        System.out.println(updatedU);
-//        System.out.println(updatedV);
-        this.nextPoint.setU(updatedU);
-        this.nextPoint.setV(updatedV);
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be positive: " + parallelism);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        workers.clear();
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism, p -> {
+            final ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            workers.add(worker.getId());
+            return worker;
+        }, null, false);
+        this.evaluator = new GradientEvaluator(storage, latentDimension, lambda, pool, folds, heldOutFold);
+    }
+
+    /**
+     * Stop the threads evaluating R, if {@link #setParallelism} started any,
+     * and the thread writing the checkpoints, once the last checkpoint is
+     * written. The descent can still be used afterwards, evaluating in the
+     * calling thread, without checkpoints.
+     */
+    public void close() {
+        setParallelism(1);
+        if (checkpoint != null) {
+            checkpoint.close();
+            checkpoint = null;
+        }
+    }
+
+    /**
+     * Ignore the non-zero elements of R of a fold, which are held out for a
+     * cross-validation, and evaluate the current point again without them.
+     * The storage of R is not modified, so the folds can share it.
+     *
+     * @param folds Fold of each non-zero element of R, in the order of the
+     * values of its compressed storage.
+     * @param fold The fold held out.
+     */
+    void holdOut(byte[] folds, int fold) {
+        if (folds.length != storage.getDataSize()) {
+            throw new IllegalArgumentException("There are " + folds.length + " folds for " + storage.getDataSize() + " non-zero elements.");
+        }
+        this.folds = folds;
+        this.heldOutFold = fold;
+        this.evaluator = new GradientEvaluator(storage, latentDimension, lambda, pool, folds, fold);
+        currentPoint.setJ(evaluate(currentPoint, currentGradientU, currentGradientV));
+        currentPoint.copy(nextPoint);
+        gradientU.setData(currentGradientU);
+        gradientV.setData(currentGradientV);
+    }
+
+    /**
+     * Set the current step size, e.g. the initial step size before
+     * {@link #findMinimum()} is called.
+     *
+     * @param stepSize The step size.
+     */
+    public void setStepSize(double stepSize) {
+        if (stepSize <= 0) {
+            throw new IllegalArgumentException("The step size must be positive: " + stepSize);
+        }
+        this.currentStepSize = stepSize;
+    }
+
+    /**
+     * Stop {@link #findMinimum()} when the RMSE on a validation set stops
+     * improving. The RMSE of the current point is computed every given
+     * number of evaluations, and the search stops after a given number of
+     * computations without a new lowest RMSE. The point with the lowest RMSE
+     * is kept, and becomes the current point when the search stops.
+     *
+     * @param monitor The validation set.
+     * @param interval Number of evaluations between two computations of the
+     * RMSE.
+     * @param patience Number of computations of the RMSE without improvement
+     * before stopping.
+     */
+    public void setEarlyStopping(ValidationMonitor monitor, int interval, int patience) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The validation interval must be positive: " + interval);
+        }
+        if (patience < 1) {
+            throw new IllegalArgumentException("The patience must be positive: " + patience);
+        }
+        this.validation = monitor;
+        this.validationInterval = interval;
+        this.patience = patience;
+        this.bestPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension, singlePrecision);
+        this.bestValidationRMSE = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * The lowest RMSE on the validation set given to
+     * {@link #setEarlyStopping}.
+     *
+     * @return The lowest validation RMSE, infinity if none was computed.
+     */
+    public double getBestValidationRMSE() {
+        return bestValidationRMSE;
+    }
+
+    /**
+     * Save the state of the algorithm every given number of evaluations, and
+     * when {@link #findMinimum()} returns. The checkpoints are written in the
+     * background from a copy of the current point; if a checkpoint is still
+     * being written when the next one is due, the next one is skipped. The
+     * previous checkpoint file, if any, is no longer written.
+     *
+     * @param file The checkpoint file, replaced by each checkpoint.
+     * @param interval Number of evaluations between two checkpoints.
+     */
+    public void setCheckpoint(String file, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval must be positive: " + interval);
+        }
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+        this.checkpoint = new Checkpoint(file, R.getRowDimension(), R.getColumnDimension(), latentDimension, singlePrecision);
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Restore the state saved in a checkpoint, so that {@link #findMinimum()}
+     * resumes from the point, the step size and the number of evaluations of
+     * the checkpoint. The gradient at the point is not saved, it is computed
+     * again by a single evaluation.
+     *
+     * @param file The checkpoint file.
+     * @throws IOException if the file cannot be read, or was not written for
+     * the dimensions of this problem.
+     */
+    public void restore(String file) throws IOException {
+        final double[] state = Checkpoint.read(file, currentPoint);
+        this.currentStepSize = state[0];
+        this.numEvaluations = (int) state[1];
+        evaluate(currentPoint, currentGradientU, currentGradientV);
+        currentPoint.copy(nextPoint);
+        gradientU.setData(currentGradientU);
+        gradientV.setData(currentGradientV);
+    }
+
+    /**
+     * Add a listener notified with the statistics of each iteration of
+     * {@link #findMinimum()}. When no listener is registered, no statistics
+     * are collected.
+     *
+     * @param listener The listener.
+     */
+    public void addIterationListener(IterationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added by {@link #addIterationListener}.
+     *
+     * @param listener The listener.
+     */
+    public void removeIterationListener(IterationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The ids of the calling thread and of the threads of the pool
+     * evaluating R.
+     */
+    private long[] measuredThreadIds() {
+        final Long[] pooled = workers.toArray(new Long[0]);
+        final long[] ids = new long[pooled.length + 1];
+        ids[0] = Thread.currentThread().getId();
+        for (int t = 0; t < pooled.length; t++) {
+            ids[t + 1] = pooled[t];
+        }
+        return ids;
+    }
+
+    /**
+     * Read the bytes allocated so far by some threads.
+     *
+     * @param ids The ids of the threads.
+     * @return The number of bytes of each thread, -1 for a thread that is no
+     * longer alive, or {@code null} if the JVM does not measure it.
+     */
+    private static long[] allocatedBytes(long[] ids) {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return threads.getThreadAllocatedBytes(ids);
+    }
+
+    /**
+     * Sum the bytes allocated by threads between two readings of
+     * {@link #allocatedBytes}. A thread started in between counts from zero,
+     * and a thread ended in between is not counted.
+     *
+     * @return The number of bytes.
+     */
+    private static long allocatedBetween(long[] idsBefore, long[] before, long[] idsAfter, long[] after) {
+        long total = 0;
+        for (int t = 0; t < idsAfter.length; t++) {
+            if (after[t] < 0) {
+                continue;
+            }
+            long start = 0;
+            for (int u = 0; u < idsBefore.length; u++) {
+                if (idsBefore[u] == idsAfter[t]) {
+                    start = Math.max(0, before[u]);
+                    break;
+                }
+            }
+            total += after[t] - start;
+        }
+        return total;
+    }
+
+    /**
+     * Set the percentage by which the step size grows after a step that
+     * decreases J.
+     *
+     * @param increasedCostPercentage The percentage, e.g. 0.10 for 10%.
+     */
+    public void setIncreasedCostPercentage(double increasedCostPercentage) {
+        if (increasedCostPercentage < 0) {
+            throw new IllegalArgumentException("The increase of the step size must not be negative: " + increasedCostPercentage);
+        }
+        this.increasedCostPercentage = increasedCostPercentage;
+    }
+
+    /**
+     * Set the factor applied to the step size after a step that increases J.
+     *
+     * @param decreasedCostPercentage The factor, between 0 and 1 excluded.
+     */
+    public void setDecreasedCostPercentage(double decreasedCostPercentage) {
+        if (decreasedCostPercentage <= 0 || decreasedCostPercentage >= 1) {
+            throw new IllegalArgumentException("The decrease of the step size must be between 0 and 1: " + decreasedCostPercentage);
+        }
+        this.decreasedCostPercentage = decreasedCostPercentage;
+    }
+
+    /**
+     * Set the maximum number of evaluations, e.g. to resume
+     * {@link #findMinimum()} for more evaluations.
+     *
+     * @param maxNumEvaluations The maximum number of evaluations.
+     */
+    public void setMaxNumEvaluations(int maxNumEvaluations) {
+        this.maxNumEvaluations = maxNumEvaluations;
+    }
+
+    /**
+     * @return The current step size.
+     */
+    public double getStepSize() {
+        return currentStepSize;
+    }
+
+    /**
+     * Move the latent features X by one step in the opposite direction of the
+     * gradient: X=X-alpha*J'.
+     */
+    private void descend(DenseFactorMatrix X, DenseFactorMatrix gradient) {
+        for (int b = 0; b < X.getNumBlocks(); b++) {
+            final double[] g = gradient.getBlock(b);
+            if (singlePrecision) {
+                Kernels.axpy(-currentStepSize, g, 0, X.getFloatBlock(b), 0, g.length);
+            } else {
+                Kernels.axpy(-currentStepSize, g, 0, X.getBlock(b), 0, g.length);
+            }
+        }
     }
 
     /**
      * This function is will execute an iteration of the gradient algorithm. *
      */
     public void nextIteration() {
-        computeGradient();
-        double J = computeCostFunction(this.nextPoint.getU(), this.nextPoint.getV());
+        //--------------------------------------------
+        //------------ Simultanuously update U and V -------
+        //------------------------------------------------
+        final long start = System.nanoTime();
+        descend(this.nextPoint.getU(), gradientU);// compute U=U-alpha*J'
+        descend(this.nextPoint.getV(), gradientV);// compute V=V-alpha*J'
+        final long updated = System.nanoTime();
+        double J = evaluate(this.nextPoint, gradientU, gradientV);
         this.nextPoint.setJ(J);
+        lastUpdateNanos = updated - start;
+        lastEvaluationNanos = System.nanoTime() - updated;
         numEvaluations++;
     }
 
@@ -128,6 +460,7 @@ public final class GradientDescent {
      *
      * @return The current point of the Algorithm.
      */
+    @Override
     public Point getCurrentPoint() {
         return currentPoint;
     }
@@ -137,6 +470,7 @@ public final class GradientDescent {
      *
      * @return The current matrix to factorize.
      */
+    @Override
     public BigSparseRealMatrix getR() {
         return R;
     }
@@ -146,10 +480,26 @@ public final class GradientDescent {
      *
      * @return The current iteration of the algorithm.
      */
+    @Override
     public int getNumEvaluations() {
         return numEvaluations;
     }
 
+    /**
+     * Create the format of the values printed while optimizing, with 2 to 4
+     * fraction digits. A new format is returned on each call, as formats are
+     * not thread-safe.
+     *
+     * @return The format.
+     */
+    static DecimalFormat createProgressFormat() {
+        final DecimalFormat df = new DecimalFormat();
+        df.setMaximumFractionDigits(4);
+        df.setMinimumFractionDigits(2);
+        df.setDecimalSeparatorAlwaysShown(true);
+        return df;
+    }
+
     /**
      * This is the main optimisation routine that uses gradient descent. This
      * class will also change the learning rate over time by observing the cost
@@ -157,22 +507,35 @@ public final class GradientDescent {
      * rate (typically by 5%). If the cost increases it will (typically) cut the
      * learning rate in half.
      */
+    @Override
     public void findMinimum() {
-        DecimalFormat df;
-        df = new DecimalFormat();
-        df.setMaximumFractionDigits(4); //arrondi à 2 chiffres apres la virgules
-        df.setMinimumFractionDigits(2);
-        df.setDecimalSeparatorAlwaysShown(true);
-        double J = computeCostFunction(this.nextPoint.getU(), this.nextPoint.getV());
-        this.currentPoint.setJ(J);
+        final DecimalFormat df = createProgressFormat();
         System.err.println("*********** Initial J ***********");
         System.err.println("J= " + currentPoint.getJ());
         System.err.println("*********************************");
+        int validationsWithoutImprovement = 0;
         while (numEvaluations < maxNumEvaluations) {
+            final double stepSize = currentStepSize;
+            final long[] idsBefore = listeners.isEmpty() ? null : measuredThreadIds();
+            final long[] allocated = idsBefore == null ? null : allocatedBytes(idsBefore);
             nextIteration();	// Computes the gradient and calculates the next point with the current step size            
-            if (nextPoint.getJ() < currentPoint.getJ()) {
+            final boolean accepted = nextPoint.getJ() < currentPoint.getJ();
+            if (!listeners.isEmpty()) {
+                final long[] idsAfter = measuredThreadIds();
+                final long[] allocatedNow = allocated == null ? null : allocatedBytes(idsAfter);
+                final IterationStatistics statistics = new IterationStatistics(numEvaluations, nextPoint.getJ(),
+                        Math.min(nextPoint.getJ(), currentPoint.getJ()), stepSize, accepted, lastUpdateNanos,
+                        lastEvaluationNanos, storage.getDataSize(),
+                        allocatedNow == null ? -1 : allocatedBetween(idsBefore, allocated, idsAfter, allocatedNow));
+                for (IterationListener listener : listeners) {
+                    listener.iterationCompleted(statistics);
+                }
+            }
+            if (accepted) {
                 double rate = (currentPoint.getJ() - nextPoint.getJ()) * 100 / currentPoint.getJ();
                 nextPoint.copy(currentPoint);
+                currentGradientU.setData(gradientU);
+                currentGradientV.setData(gradientV);
                 currentStepSize += currentStepSize * increasedCostPercentage; //increase the learning rate (typically by 5%).
                 System.err.println("+++++++++++" + currentStepSize);
                 System.err.println("J= " + df.format(nextPoint.getJ()) + " (rate: " + df.format(rate) + "%)");
@@ -184,11 +547,40 @@ public final class GradientDescent {
                 System.err.println("-----------" + currentStepSize);
                 System.err.println("Next point= " + df.format(nextPoint.getJ()) + " > current point=" + df.format(currentPoint.getJ()));
                 currentPoint.copy(nextPoint);
+                gradientU.setData(currentGradientU);
+                gradientV.setData(currentGradientV);
             }
 //            if (currentStepSize < minStepSize) {
 //                break;
 //            }
             System.err.println("******************" + numEvaluations + "******************");
+            if (checkpoint != null && numEvaluations % checkpointInterval == 0) {
+                checkpoint.submit(currentPoint, currentStepSize, numEvaluations);
+            }
+            if (validation != null && numEvaluations % validationInterval == 0) {
+                double rmse = validation.rmse(currentPoint);
+                System.err.println("Validation RMSE= " + df.format(rmse));
+                if (rmse < bestValidationRMSE) {
+                    bestValidationRMSE = rmse;
+                    currentPoint.copy(bestPoint);
+                    validationsWithoutImprovement = 0;
+                } else if (++validationsWithoutImprovement >= patience) {
+                    System.err.println("Validation RMSE did not improve for " + patience + " validations, best= " + df.format(bestValidationRMSE));
+                    break;
+                }
+            }
+        }
+        if (validation != null && bestValidationRMSE < Double.POSITIVE_INFINITY) {
+            bestPoint.copy(currentPoint);
+            bestPoint.copy(nextPoint);
+            evaluate(currentPoint, currentGradientU, currentGradientV);
+            gradientU.setData(currentGradientU);
+            gradientV.setData(currentGradientV);
+        }
+        if (checkpoint != null) {
+            checkpoint.await();
+            checkpoint.submit(currentPoint, currentStepSize, numEvaluations);
+            checkpoint.await();
         }
     }
 }
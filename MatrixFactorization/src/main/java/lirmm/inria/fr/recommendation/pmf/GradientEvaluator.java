@@ -0,0 +1,359 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.Kernels;
+
+/**
+ * This class evaluates the objective function J and its gradient in a single
+ * pass over the non-zero elements of R. The objective function can also be
+ * evaluated alone.
+ * <p>
+ * The rows of R are split into shards holding about the same number of
+ * non-zero elements. Each shard owns the gradient rows of its own rows of R,
+ * so they are written without any locking. The gradient of the columns is
+ * accumulated by each shard into a private buffer, and the buffers are summed
+ * at the end, always in the same order. The result therefore only depends on
+ * the number of shards, not on the scheduling of the threads.</p>
+ * <p>
+ * For a cross-validation, the non-zero elements of a held-out fold can be
+ * skipped, so that the folds share the storage of R.</p>
+ * <p>
+ * The features may be stored in single precision. They are then widened to
+ * doubles, and the gradients, the residuals and J are computed in double
+ * precision.</p>
+ *
+ * @author rbouadjenek
+ */
+final class GradientEvaluator {
+
+    private final CompressedSparseStorage storage; // The matrix to factorize
+    private final int latentDimension; // Number of latent dimension
+    private final double lambda; // Lambda for the regularization terms
+    private final ForkJoinPool pool; // Pool running the shards, null when there is a single shard
+    private final int[] shardRows; // Rows of R handled by each shard: [shardRows[s], shardRows[s+1])
+    private final int[] mergeColumns; // Columns of R merged by each task: [mergeColumns[s], mergeColumns[s+1])
+    private DenseFactorMatrix[] columnGradients; // Partial gradient of the columns, one buffer per shard, allocated on first use
+    private final double[] errors; // Partial sum of (R-U*V').^2, one per shard
+    private final double[] rowNorms; // Partial squared norm of the row features, one per shard
+    private final double[] columnNorms; // Partial squared norm of the column features, one per merge task
+    private final byte[] folds; // Fold of each non-zero element of the storage, null if none is held out
+    private final byte heldOutFold; // Fold whose non-zero elements are skipped
+    /**
+     * Matrices of the evaluation in progress. The gradients are in double
+     * precision, and have the same blocks as the features.
+     */
+    private DenseFactorMatrix rowData, columnData, rowGradient, columnGradient;
+
+    /**
+     * Create an evaluator for a matrix.
+     *
+     * @param storage Compressed storage of the matrix to factorize.
+     * @param latentDimension Number of latent dimensions.
+     * @param lambda Weight for the regularization terms.
+     * @param pool Pool running the shards, or {@code null} to evaluate in the
+     * calling thread.
+     */
+    GradientEvaluator(CompressedSparseStorage storage, int latentDimension, double lambda, ForkJoinPool pool) {
+        this(storage, latentDimension, lambda, pool, null, 0);
+    }
+
+    /**
+     * Create an evaluator for a matrix without the non-zero elements of a
+     * fold.
+     *
+     * @param storage Compressed storage of the matrix to factorize.
+     * @param latentDimension Number of latent dimensions.
+     * @param lambda Weight for the regularization terms.
+     * @param pool Pool running the shards, or {@code null} to evaluate in the
+     * calling thread.
+     * @param folds Fold of each non-zero element, in the order of the values
+     * of the storage, or {@code null} to use all of them.
+     * @param heldOutFold Fold whose non-zero elements are skipped.
+     */
+    GradientEvaluator(CompressedSparseStorage storage, int latentDimension, double lambda, ForkJoinPool pool,
+            byte[] folds, int heldOutFold) {
+        this.storage = storage;
+        this.folds = folds;
+        this.heldOutFold = (byte) heldOutFold;
+        this.latentDimension = latentDimension;
+        this.lambda = lambda;
+        this.pool = pool;
+        final int numShards = pool == null ? 1 : pool.getParallelism();
+        final int columns = storage.getColumnDimension();
+        shardRows = storage.partitionRows(numShards);
+        mergeColumns = new int[numShards + 1];
+        for (int s = 1; s <= numShards; s++) {
+            mergeColumns[s] = (int) ((long) s * columns / numShards);
+        }
+        errors = new double[numShards];
+        rowNorms = new double[numShards];
+        columnNorms = new double[numShards];
+    }
+
+    /**
+     * Evaluate a point. The matrices are the features and the gradients of
+     * the rows and of the columns of the storage. The features may be stored
+     * in single precision, and are then widened to doubles. The gradients are
+     * in double precision, and may both be {@code null} to only compute the
+     * objective function.
+     *
+     * @return The value of the objective function J.
+     */
+    double evaluate(DenseFactorMatrix rowData, DenseFactorMatrix columnData, DenseFactorMatrix rowGradient,
+            DenseFactorMatrix columnGradient) {
+        if ((rowGradient != null && rowGradient.getRowsPerBlock() != rowData.getRowsPerBlock())
+                || (columnGradient != null && columnGradient.getRowsPerBlock() != columnData.getRowsPerBlock())) {
+            throw new IllegalArgumentException("The gradients must have the same blocks as the features.");
+        }
+        if (columnGradient != null && columnGradients == null && errors.length > 1) {
+            columnGradients = new DenseFactorMatrix[errors.length];
+            for (int s = 0; s < errors.length; s++) {
+                columnGradients[s] = new DenseFactorMatrix(columnGradient);
+            }
+        }
+        this.rowData = rowData;
+        this.columnData = columnData;
+        this.rowGradient = rowGradient;
+        this.columnGradient = columnGradient;
+        final int numShards = errors.length;
+        if (numShards == 1) {
+            columnNorms[0] = regularizeColumns(0, columnData.getRowDimension());
+            evaluateRows(0, columnGradient);
+        } else {
+            pool.invoke(new ShardTask(0, numShards));
+            pool.invoke(new MergeTask(0, numShards));
+        }
+        double error = 0;
+        double norm = 0;
+        for (int s = 0; s < numShards; s++) {
+            error += errors[s];
+            norm += rowNorms[s] + columnNorms[s];
+        }
+        this.rowData = null;
+        this.columnData = null;
+        this.rowGradient = null;
+        this.columnGradient = null;
+        return error / 2 + (lambda / 2) * norm;
+    }
+
+    /**
+     * Initialize a range of rows of the gradient of the columns with
+     * lambda*V.
+     *
+     * @return The squared norm of the column features in the range.
+     */
+    private double regularizeColumns(int from, int to) {
+        final int k = latentDimension;
+        double norm = 0;
+        for (int j = from; j < to; j++) {
+            final int offset = columnData.getRowOffset(j);
+            final double[] gradient = columnGradient == null ? null : columnGradient.getRowData(j);
+            if (columnData.isSinglePrecision()) {
+                final float[] features = columnData.getFloatRowData(j);
+                for (int f = offset; f < offset + k; f++) {
+                    norm += (double) features[f] * features[f];
+                }
+                if (gradient != null) {
+                    for (int f = offset; f < offset + k; f++) {
+                        gradient[f] = lambda * features[f];// lambda*V
+                    }
+                }
+            } else {
+                final double[] features = columnData.getRowData(j);
+                for (int f = offset; f < offset + k; f++) {
+                    norm += features[f] * features[f];
+                }
+                if (gradient != null) {
+                    for (int f = offset; f < offset + k; f++) {
+                        gradient[f] = lambda * features[f];// lambda*V
+                    }
+                }
+            }
+        }
+        return norm;
+    }
+
+    /**
+     * Sweep the rows of a shard, computing the residual of each non-zero
+     * element and accumulating it into the gradients.
+     *
+     * @param shard Index of the shard.
+     * @param columnTarget Matrix receiving the contribution of the shard to the
+     * gradient of the columns.
+     */
+    private void evaluateRows(int shard, DenseFactorMatrix columnTarget) {
+        if (rowData.isSinglePrecision()) {
+            evaluateRowsSingle(shard, columnTarget);
+            return;
+        }
+        final DenseFactorMatrix rowData = this.rowData;
+        final DenseFactorMatrix columnData = this.columnData;
+        final int[] rowPointers = storage.getRowPointers();
+        final int[] columnIndices = storage.getColumnIndices();
+        final double[] values = storage.getValues();
+        final int k = latentDimension;
+        final boolean withGradient = rowGradient != null;
+        final byte[] folds = this.folds;
+        final byte heldOutFold = this.heldOutFold;
+        double rowNorm = 0;
+        double error = 0;
+        for (int i = shardRows[shard]; i < shardRows[shard + 1]; i++) {
+            final double[] row = rowData.getRowData(i);
+            final double[] gradient = withGradient ? rowGradient.getRowData(i) : null;
+            final int rowOffset = rowData.getRowOffset(i);
+            for (int f = rowOffset; f < rowOffset + k; f++) {
+                rowNorm += row[f] * row[f];
+            }
+            if (withGradient) {
+                for (int f = rowOffset; f < rowOffset + k; f++) {
+                    gradient[f] = lambda * row[f];// lambda*U
+                }
+            }
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                if (folds != null && folds[p] == heldOutFold) {
+                    continue;
+                }
+                final int j = columnIndices[p];
+                final double[] column = columnData.getRowData(j);
+                final int columnOffset = columnData.getRowOffset(j);
+                double dot = Kernels.dot(row, rowOffset, column, columnOffset, k);
+                final double e = values[p] - dot;// (R-U*V')_ij
+                error += e * e;
+                if (!withGradient) {
+                    continue;
+                }
+                Kernels.axpy(-e, column, columnOffset, gradient, rowOffset, k);// (U*V'-R)*V+lambda*U
+                Kernels.axpy(-e, row, rowOffset, columnTarget.getRowData(j), columnOffset, k);// (U*V'-R)'*U+lambda*V
+            }
+        }
+        errors[shard] = error;
+        rowNorms[shard] = rowNorm;
+    }
+
+    /**
+     * Same as {@link #evaluateRows}, for features in single precision.
+     */
+    private void evaluateRowsSingle(int shard, DenseFactorMatrix columnTarget) {
+        final DenseFactorMatrix rowData = this.rowData;
+        final DenseFactorMatrix columnData = this.columnData;
+        final int[] rowPointers = storage.getRowPointers();
+        final int[] columnIndices = storage.getColumnIndices();
+        final double[] values = storage.getValues();
+        final int k = latentDimension;
+        final boolean withGradient = rowGradient != null;
+        final byte[] folds = this.folds;
+        final byte heldOutFold = this.heldOutFold;
+        double rowNorm = 0;
+        double error = 0;
+        for (int i = shardRows[shard]; i < shardRows[shard + 1]; i++) {
+            final float[] row = rowData.getFloatRowData(i);
+            final double[] gradient = withGradient ? rowGradient.getRowData(i) : null;
+            final int rowOffset = rowData.getRowOffset(i);
+            for (int f = rowOffset; f < rowOffset + k; f++) {
+                rowNorm += (double) row[f] * row[f];
+            }
+            if (withGradient) {
+                for (int f = rowOffset; f < rowOffset + k; f++) {
+                    gradient[f] = lambda * row[f];// lambda*U
+                }
+            }
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                if (folds != null && folds[p] == heldOutFold) {
+                    continue;
+                }
+                final int j = columnIndices[p];
+                final float[] column = columnData.getFloatRowData(j);
+                final int columnOffset = columnData.getRowOffset(j);
+                double dot = Kernels.dot(row, rowOffset, column, columnOffset, k);
+                final double e = values[p] - dot;// (R-U*V')_ij
+                error += e * e;
+                if (!withGradient) {
+                    continue;
+                }
+                Kernels.axpy(-e, column, columnOffset, gradient, rowOffset, k);// (U*V'-R)*V+lambda*U
+                Kernels.axpy(-e, row, rowOffset, columnTarget.getRowData(j), columnOffset, k);// (U*V'-R)'*U+lambda*V
+            }
+        }
+        errors[shard] = error;
+        rowNorms[shard] = rowNorm;
+    }
+
+    /**
+     * Evaluate a range of shards, splitting it in two until a single shard is
+     * left.
+     */
+    private final class ShardTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        ShardTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final DenseFactorMatrix target = columnGradient == null ? null : columnGradients[from];
+                if (target != null) {
+                    for (int b = 0; b < target.getNumBlocks(); b++) {
+                        Arrays.fill(target.getBlock(b), 0);
+                    }
+                }
+                evaluateRows(from, target);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ShardTask(from, middle), new ShardTask(middle, to));
+            }
+        }
+    }
+
+    /**
+     * Sum the partial gradients of the columns of the shards, for a range of
+     * merge tasks.
+     */
+    private final class MergeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        MergeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final int first = mergeColumns[from];
+                final int last = mergeColumns[from + 1];
+                columnNorms[from] = regularizeColumns(first, last);
+                if (columnGradient == null) {
+                    return;
+                }
+                for (DenseFactorMatrix partial : columnGradients) {
+                    for (int j = first; j < last; j++) {
+                        final double[] sum = columnGradient.getRowData(j);
+                        final double[] part = partial.getRowData(j);
+                        final int offset = columnGradient.getRowOffset(j);
+                        for (int p = offset; p < offset + latentDimension; p++) {
+                            sum[p] += part[p];
+                        }
+                    }
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new MergeTask(from, middle), new MergeTask(middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class searches the hyperparameters of the gradient descent: the number
+ * of latent dimensions, lambda, the initial step size and the growth and
+ * decrease of the step size. The configurations are generated as a grid or at
+ * random from the values given for each hyperparameter.
+ * <p>
+ * The trials share a compressed view of the matrix R and run in parallel. They
+ * advance in rounds of a few evaluations; after each round every trial is
+ * scored by its validation RMSE, or by its RMSE on R when there is no
+ * validation set, and the losing trials are stopped: in {@link #search} those
+ * scoring worse than the best trial by a given ratio, or diverging, and in
+ * {@link #successiveHalving} all but the best 1/eta trials, the survivors
+ * being given eta times more evaluations. The trials are never scored by J,
+ * whose regularization terms depend on the lambda of each trial.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class HyperparameterSearch {
+
+    private final BigSparseRealMatrix R; // Compressed view of the matrix to factorize, shared by the trials
+    private final ValidationMonitor validation; // Validation set scoring the trials, null to score them on R
+    private int[] latentDimensions = {10};
+    private double[] lambdas = {0.1};
+    private double[] stepSizes = {0.1};
+    private double[] increasedCostPercentages = {0.10};
+    private double[] decreasedCostPercentages = {0.7};
+    private int numThreads = 1; // Number of trials trained at once
+    private int pruningInterval = 5; // Number of evaluations between two prunings of search
+    private double pruningRatio = 1.1; // Trials scoring more than this ratio times the best score are pruned by search
+
+    /**
+     * Create a search.
+     *
+     * @param R The matrix to factorize, shared by the trials through
+     * {@link BigSparseRealMatrix#compressedView()}.
+     * @param validation The validation set scoring the trials, or
+     * {@code null} to score them by their RMSE on the elements of R.
+     */
+    public HyperparameterSearch(BigSparseRealMatrix R, ValidationMonitor validation) {
+        this.R = R.compressedView();
+        this.validation = validation;
+    }
+
+    public void setLatentDimensions(int... latentDimensions) {
+        this.latentDimensions = latentDimensions.clone();
+    }
+
+    public void setLambdas(double... lambdas) {
+        this.lambdas = lambdas.clone();
+    }
+
+    public void setStepSizes(double... stepSizes) {
+        this.stepSizes = stepSizes.clone();
+    }
+
+    public void setIncreasedCostPercentages(double... increasedCostPercentages) {
+        this.increasedCostPercentages = increasedCostPercentages.clone();
+    }
+
+    public void setDecreasedCostPercentages(double... decreasedCostPercentages) {
+        this.decreasedCostPercentages = decreasedCostPercentages.clone();
+    }
+
+    /**
+     * Set the number of trials trained at once.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set how {@link #search} prunes the trials.
+     *
+     * @param interval Number of evaluations between two prunings.
+     * @param ratio A trial is pruned when its score is more than this ratio
+     * times the best score.
+     */
+    public void setPruning(int interval, double ratio) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The pruning interval must be positive: " + interval);
+        }
+        if (ratio < 1) {
+            throw new IllegalArgumentException("The pruning ratio must be at least 1: " + ratio);
+        }
+        this.pruningInterval = interval;
+        this.pruningRatio = ratio;
+    }
+
+    /**
+     * @return Every combination of the values of the hyperparameters.
+     */
+    public List<Configuration> gridConfigurations() {
+        final List<Configuration> out = new ArrayList<>();
+        for (int k : latentDimensions) {
+            for (double lambda : lambdas) {
+                for (double stepSize : stepSizes) {
+                    for (double increase : increasedCostPercentages) {
+                        for (double decrease : decreasedCostPercentages) {
+                            out.add(new Configuration(k, lambda, stepSize, increase, decrease));
+                        }
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Draw configurations at random, each hyperparameter taking one of its
+     * values with the same probability.
+     *
+     * @param numConfigurations Number of configurations.
+     * @param seed Seed of the random generator.
+     * @return The configurations.
+     */
+    public List<Configuration> randomConfigurations(int numConfigurations, long seed) {
+        final Random random = new Random(seed);
+        final List<Configuration> out = new ArrayList<>(numConfigurations);
+        for (int c = 0; c < numConfigurations; c++) {
+            out.add(new Configuration(latentDimensions[random.nextInt(latentDimensions.length)],
+                    lambdas[random.nextInt(lambdas.length)],
+                    stepSizes[random.nextInt(stepSizes.length)],
+                    increasedCostPercentages[random.nextInt(increasedCostPercentages.length)],
+                    decreasedCostPercentages[random.nextInt(decreasedCostPercentages.length)]));
+        }
+        return out;
+    }
+
+    /**
+     * Train configurations for a number of evaluations, pruning every few
+     * evaluations the trials that score clearly worse than the best one.
+     *
+     * @param configurations The configurations.
+     * @param numEvaluations Number of evaluations of the trials that are not
+     * pruned.
+     * @return The trials, the best first.
+     */
+    public List<Trial> search(List<Configuration> configurations, int numEvaluations) {
+        final List<Trial> trials = createTrials(configurations);
+        List<Trial> active = new ArrayList<>(trials);
+        int budget = Math.min(pruningInterval, numEvaluations);
+        while (true) {
+            train(active, budget);
+            if (budget == numEvaluations) {
+                break;
+            }
+            final double best = best(active);
+            final List<Trial> survivors = new ArrayList<>();
+            for (Trial trial : active) {
+                if (trial.getScore() <= best * pruningRatio) {
+                    survivors.add(trial);
+                } else {
+                    trial.prune();
+                }
+            }
+            active = survivors;
+            budget = Math.min(budget + pruningInterval, numEvaluations);
+        }
+        return sort(trials);
+    }
+
+    /**
+     * Train configurations by successive halving: all the trials get a few
+     * evaluations, then the best 1/eta of them get eta times more evaluations,
+     * and so on until one trial is left or the maximum number of evaluations
+     * is reached.
+     *
+     * @param configurations The configurations.
+     * @param minEvaluations Number of evaluations of the first round.
+     * @param maxEvaluations Maximum number of evaluations of a trial.
+     * @param eta Factor by which the trials are reduced at each round.
+     * @return The trials, the best first.
+     */
+    public List<Trial> successiveHalving(List<Configuration> configurations, int minEvaluations, int maxEvaluations, int eta) {
+        if (eta < 2) {
+            throw new IllegalArgumentException("The reduction factor must be at least 2: " + eta);
+        }
+        final List<Trial> trials = createTrials(configurations);
+        List<Trial> active = new ArrayList<>(trials);
+        int budget = Math.min(minEvaluations, maxEvaluations);
+        while (true) {
+            train(active, budget);
+            if (active.size() == 1 || budget == maxEvaluations) {
+                break;
+            }
+            active = sort(active);
+            final int kept = Math.max(1, active.size() / eta);
+            for (Trial trial : active.subList(kept, active.size())) {
+                trial.prune();
+            }
+            active = new ArrayList<>(active.subList(0, kept));
+            budget = (int) Math.min((long) budget * eta, maxEvaluations);
+        }
+        return sort(trials);
+    }
+
+    private static List<Trial> createTrials(List<Configuration> configurations) {
+        final List<Trial> trials = new ArrayList<>(configurations.size());
+        for (Configuration configuration : configurations) {
+            trials.add(new Trial(configuration));
+        }
+        return trials;
+    }
+
+    private static double best(List<Trial> trials) {
+        double best = Double.POSITIVE_INFINITY;
+        for (Trial trial : trials) {
+            best = Math.min(best, trial.getScore());
+        }
+        return best;
+    }
+
+    /**
+     * Sort trials: those still running by increasing score, then the pruned
+     * ones by increasing score.
+     */
+    private static List<Trial> sort(List<Trial> trials) {
+        final List<Trial> out = new ArrayList<>(trials);
+        out.sort(Comparator.comparing(Trial::isPruned).thenComparingDouble(Trial::getScore));
+        return out;
+    }
+
+    /**
+     * Train trials up to a number of evaluations and score them.
+     */
+    private void train(List<Trial> trials, int numEvaluations) {
+        final TrainTask task = new TrainTask(trials.toArray(new Trial[trials.size()]), 0, trials.size(), numEvaluations);
+        if (numThreads == 1 || trials.size() == 1) {
+            task.compute();
+        } else {
+            final ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Train a trial up to a number of evaluations, creating its gradient
+     * descent on the first call, and score it.
+     */
+    private void train(Trial trial, int numEvaluations) {
+        if (trial.optimizer == null) {
+            final Configuration c = trial.getConfiguration();
+            try {
+                trial.optimizer = new GradientDescent(R, c.getLatentDimension(), numEvaluations, c.getLambda());
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            trial.optimizer.setStepSize(c.getStepSize());
+            trial.optimizer.setIncreasedCostPercentage(c.getIncreasedCostPercentage());
+            trial.optimizer.setDecreasedCostPercentage(c.getDecreasedCostPercentage());
+        }
+        final GradientDescent gd = trial.optimizer;
+        gd.setMaxNumEvaluations(numEvaluations);
+        gd.findMinimum();
+        final Point point = gd.getCurrentPoint();
+        trial.setScore(validation == null ? trainingRMSE(point) : validation.rmse(point), gd.getNumEvaluations());
+    }
+
+    /**
+     * Compute the RMSE of the predictions of a point on the non-zero elements
+     * of R, without the regularization terms of J.
+     */
+    private double trainingRMSE(Point point) {
+        final CompressedSparseStorage storage = R.getCompressedStorage();
+        final int[] rowPointers = storage.getRowPointers();
+        final int[] columnIndices = storage.getColumnIndices();
+        final double[] values = storage.getValues();
+        // rows and columns of the storage are those of the untransposed R
+        final DenseFactorMatrix rows = R.isTransposed() ? point.getV() : point.getU();
+        final DenseFactorMatrix columns = R.isTransposed() ? point.getU() : point.getV();
+        double sum = 0;
+        for (int i = 0; i < storage.getRowDimension(); i++) {
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                final double error = values[p] - rows.dotProduct(i, columns, columnIndices[p]);
+                sum += error * error;
+            }
+        }
+        return FastMath.sqrt(sum / storage.getDataSize());
+    }
+
+    /**
+     * Train a range of trials, splitting it in two until a single trial is
+     * left.
+     */
+    private final class TrainTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Trial[] trials;
+        private final int from, to, numEvaluations;
+
+        TrainTask(Trial[] trials, int from, int to, int numEvaluations) {
+            this.trials = trials;
+            this.from = from;
+            this.to = to;
+            this.numEvaluations = numEvaluations;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                train(trials[from], numEvaluations);
+            } else if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new TrainTask(trials, from, middle, numEvaluations), new TrainTask(trials, middle, to, numEvaluations));
+            }
+        }
+    }
+}
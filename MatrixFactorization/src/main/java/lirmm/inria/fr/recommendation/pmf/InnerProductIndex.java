@@ -0,0 +1,473 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.Kernels;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Approximate index of the items for the maximum inner product search: given
+ * a user, it finds the items with the highest predicted ratings U(i,:)*V(j,:)'
+ * without scoring all the items.
+ * <p>
+ * Each item features x are divided by the largest norm M of the items and
+ * completed with one more dimension, sqrt(1-||x/M||^2), so that all the items
+ * have a unit norm. A query q is completed with 0. The inner product of the
+ * completed vectors is then q*x'/M, so the items closest to the query in
+ * cosine are those with the highest inner product. The completed items are
+ * clustered by a spherical k-means into lists (inverted file), and a query
+ * only scans the lists whose centroids are the closest to it. The number of
+ * lists scanned trades recall against latency, and the recall can be measured
+ * against the exact {@link TopNRecommender}.</p>
+ * <p>
+ * The lists keep the features of the items in the precision of the point, so
+ * an index of a point in single precision scores the items with the float
+ * kernel.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class InnerProductIndex {
+
+    private final DenseFactorMatrix U; // The user's latent features
+    private final DenseFactorMatrix V; // The item's latent features
+    private final int latentDimension; // Number of latent dimension
+    private final CompressedSparseStorage ratings; // Items already rated, null to recommend any item
+    private final boolean byColumn; // Indicate if the users are the columns of the storage of R
+    private final int numLists; // Number of lists (clusters) of items
+    private int numProbes; // Number of lists scanned by a query
+    private int numIterations = 10; // Number of iterations of the k-means
+    private int samplesPerList = 64; // Number of items used to train the k-means, per list
+    private int numThreads = 1; // Number of threads building the index
+    private long seed = System.nanoTime(); // Seed of the sampling of the items
+    /**
+     * Structure of the index, set by {@link #build()}.
+     */
+    private double[] centroids; // Centroid of each list, latentDimension+1 features each
+    private int[] listPointers; // Start of each list in listItems
+    private int[] listItems; // Items of each list
+    private DenseFactorMatrix listData; // Features of the items, in the order of listItems and in the precision of V
+
+    /**
+     * Create an index of the items of a point.
+     *
+     * @param point The latent features of the users and the items.
+     * @param R The ratings of the users, whose items are not recommended
+     * again, or {@code null} to recommend any item. It is read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
+     * @param numLists The number of lists of items.
+     */
+    public InnerProductIndex(Point point, BigSparseRealMatrix R, int numLists) {
+        if (numLists < 1) {
+            throw new IllegalArgumentException("The number of lists must be positive: " + numLists);
+        }
+        this.U = point.getU();
+        this.V = point.getV();
+        this.latentDimension = U.getLatentDimension();
+        this.numLists = Math.min(numLists, V.getRowDimension());
+        this.numProbes = Math.max(1, this.numLists / 16);
+        if (R == null) {
+            this.ratings = null;
+            this.byColumn = false;
+        } else {
+            if (R.getRowDimension() != U.getRowDimension() || R.getColumnDimension() != V.getRowDimension()) {
+                throw new IllegalArgumentException("R is " + R.getRowDimension() + "x" + R.getColumnDimension()
+                        + " but there are " + U.getRowDimension() + " users and " + V.getRowDimension() + " items.");
+            }
+            this.ratings = R.toCompressedStorage();
+            this.byColumn = R.isTransposed();
+        }
+    }
+
+    /**
+     * Set the number of lists scanned by a query. More lists give a better
+     * recall and a higher latency.
+     *
+     * @param numProbes The number of lists scanned.
+     */
+    public void setNumProbes(int numProbes) {
+        if (numProbes < 1) {
+            throw new IllegalArgumentException("The number of probes must be positive: " + numProbes);
+        }
+        this.numProbes = Math.min(numProbes, numLists);
+    }
+
+    /**
+     * Set the number of iterations of the k-means run by {@link #build()}.
+     *
+     * @param numIterations The number of iterations.
+     */
+    public void setNumIterations(int numIterations) {
+        this.numIterations = numIterations;
+    }
+
+    /**
+     * Set the number of items, per list, used to train the k-means.
+     *
+     * @param samplesPerList The number of items per list.
+     */
+    public void setSamplesPerList(int samplesPerList) {
+        if (samplesPerList < 1) {
+            throw new IllegalArgumentException("The number of samples must be positive: " + samplesPerList);
+        }
+        this.samplesPerList = samplesPerList;
+    }
+
+    /**
+     * Set the number of threads building the index.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the seed of the sampling of the items.
+     *
+     * @param seed The seed of the random generator.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Cluster the items and build the lists. It must be called before the
+     * index is queried, and again whenever V changes.
+     */
+    public void build() {
+        final int numItems = V.getRowDimension();
+        final int k = latentDimension;
+        final double[] x = new double[k]; // Features of an item
+        //--------------------------------------------------------------
+        // Completion of the items to a unit norm
+        //--------------------------------------------------------------
+        final double[] norms = new double[numItems];
+        double maxNorm = 0;
+        for (int j = 0; j < numItems; j++) {
+            readItem(j, x);
+            double norm = 0;
+            for (int f = 0; f < k; f++) {
+                norm += x[f] * x[f];
+            }
+            norms[j] = norm;
+            maxNorm = FastMath.max(maxNorm, norm);
+        }
+        final double scale = maxNorm == 0 ? 1 : 1 / FastMath.sqrt(maxNorm);
+        final double[] extra = new double[numItems]; // Added dimension of each item
+        for (int j = 0; j < numItems; j++) {
+            extra[j] = FastMath.sqrt(FastMath.max(0, 1 - norms[j] * scale * scale));
+        }
+        //--------------------------------------------------------------
+        // Spherical k-means on a sample of the items
+        //--------------------------------------------------------------
+        final Random random = new Random(seed);
+        final int[] sample = new int[numItems];
+        for (int j = 0; j < numItems; j++) {
+            sample[j] = j;
+        }
+        final int sampleSize = (int) Math.min(numItems, (long) numLists * samplesPerList);
+        for (int p = 0; p < sampleSize; p++) {
+            final int q = p + random.nextInt(numItems - p);
+            final int tmp = sample[p];
+            sample[p] = sample[q];
+            sample[q] = tmp;
+        }
+        final int d = k + 1;
+        centroids = new double[numLists * d];
+        for (int c = 0; c < numLists; c++) {
+            final int j = sample[c];
+            readItem(j, x);
+            for (int f = 0; f < k; f++) {
+                centroids[c * d + f] = x[f] * scale;
+            }
+            centroids[c * d + k] = extra[j];
+        }
+        final int[] assignment = new int[numItems];
+        final ForkJoinPool pool = numThreads == 1 ? null : new ForkJoinPool(numThreads);
+        try {
+            final int[] counts = new int[numLists];
+            for (int iteration = 0; iteration < numIterations; iteration++) {
+                assign(pool, sample, sampleSize, scale, extra, assignment);
+                Arrays.fill(centroids, 0);
+                Arrays.fill(counts, 0);
+                for (int p = 0; p < sampleSize; p++) {
+                    final int j = sample[p];
+                    final int c = assignment[j];
+                    readItem(j, x);
+                    for (int f = 0; f < k; f++) {
+                        centroids[c * d + f] += x[f] * scale;
+                    }
+                    centroids[c * d + k] += extra[j];
+                    counts[c]++;
+                }
+                for (int c = 0; c < numLists; c++) {
+                    if (counts[c] == 0) {
+                        // empty list, restart it from a random item
+                        final int j = sample[random.nextInt(sampleSize)];
+                        readItem(j, x);
+                        for (int f = 0; f < k; f++) {
+                            centroids[c * d + f] = x[f] * scale;
+                        }
+                        centroids[c * d + k] = extra[j];
+                        continue;
+                    }
+                    double norm = 0;
+                    for (int f = 0; f < d; f++) {
+                        norm += centroids[c * d + f] * centroids[c * d + f];
+                    }
+                    norm = norm == 0 ? 1 : 1 / FastMath.sqrt(norm);
+                    for (int f = 0; f < d; f++) {
+                        centroids[c * d + f] *= norm;
+                    }
+                }
+            }
+            //--------------------------------------------------------------
+            // Assignment of all the items, and lists
+            //--------------------------------------------------------------
+            for (int j = 0; j < numItems; j++) {
+                sample[j] = j;
+            }
+            assign(pool, sample, numItems, scale, extra, assignment);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        listPointers = new int[numLists + 1];
+        for (int j = 0; j < numItems; j++) {
+            listPointers[assignment[j] + 1]++;
+        }
+        for (int c = 1; c <= numLists; c++) {
+            listPointers[c] += listPointers[c - 1];
+        }
+        listItems = new int[numItems];
+        // the lists keep the items in the precision of V
+        listData = new DenseFactorMatrix(numItems, k, V.isSinglePrecision());
+        final int[] next = Arrays.copyOf(listPointers, numLists);
+        for (int j = 0; j < numItems; j++) {
+            final int p = next[assignment[j]]++;
+            listItems[p] = j;
+            if (V.isSinglePrecision()) {
+                System.arraycopy(V.getFloatRowData(j), V.getRowOffset(j), listData.getFloatRowData(p), listData.getRowOffset(p), k);
+            } else {
+                System.arraycopy(V.getRowData(j), V.getRowOffset(j), listData.getRowData(p), listData.getRowOffset(p), k);
+            }
+        }
+    }
+
+    /**
+     * Copy the features of an item, widened to doubles if V is in single
+     * precision.
+     */
+    private void readItem(int j, double[] x) {
+        final int k = latentDimension;
+        final int offset = V.getRowOffset(j);
+        if (V.isSinglePrecision()) {
+            final float[] v = V.getFloatRowData(j);
+            for (int f = 0; f < k; f++) {
+                x[f] = v[offset + f];
+            }
+        } else {
+            System.arraycopy(V.getRowData(j), offset, x, 0, k);
+        }
+    }
+
+    /**
+     * Assign some items to their closest centroid.
+     */
+    private void assign(ForkJoinPool pool, int[] items, int size, double scale, double[] extra, int[] assignment) {
+        if (pool == null) {
+            assignRange(items, 0, size, scale, extra, assignment);
+        } else {
+            pool.invoke(new AssignTask(0, numThreads, items, size, scale, extra, assignment));
+        }
+    }
+
+    private void assignRange(int[] items, int from, int to, double scale, double[] extra, int[] assignment) {
+        final int k = latentDimension;
+        final int d = k + 1;
+        final double[] x = new double[k];
+        for (int p = from; p < to; p++) {
+            final int j = items[p];
+            readItem(j, x);
+            int best = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < numLists; c++) {
+                double dot = Kernels.dot(centroids, c * d, x, 0, k);
+                dot = dot * scale + centroids[c * d + k] * extra[j];
+                if (dot > bestScore) {
+                    bestScore = dot;
+                    best = c;
+                }
+            }
+            assignment[j] = best;
+        }
+    }
+
+    /**
+     * Recommend items to a user.
+     *
+     * @param user The user.
+     * @param n The number of items to recommend.
+     * @return At most {@code n} items, by decreasing predicted rating.
+     */
+    public int[] recommend(int user, int n) {
+        if (U.isSinglePrecision()) {
+            final float[] u = U.getFloatRowData(user);
+            final int offset = U.getRowOffset(user);
+            final double[] query = new double[latentDimension];
+            for (int f = 0; f < latentDimension; f++) {
+                query[f] = u[offset + f];
+            }
+            return search(query, 0, user, n);
+        }
+        return search(U.getRowData(user), U.getRowOffset(user), user, n);
+    }
+
+    /**
+     * Find the items with the highest inner product with a vector.
+     *
+     * @param query The vector, of {@code latentDimension} elements, rounded
+     * to floats if the items are stored in single precision.
+     * @param n The number of items to find.
+     * @return At most {@code n} items, by decreasing inner product.
+     */
+    public int[] search(double[] query, int n) {
+        if (query.length != latentDimension) {
+            throw new IllegalArgumentException("Expected " + latentDimension + " features, got " + query.length + ".");
+        }
+        return search(query, 0, -1, n);
+    }
+
+    /**
+     * Scan the lists closest to a query.
+     *
+     * @param query Array holding the query.
+     * @param offset Start of the query in the array.
+     * @param user The user whose rated items are skipped, or -1.
+     * @param n The number of items to find.
+     */
+    private int[] search(double[] query, int offset, int user, int n) {
+        if (centroids == null) {
+            throw new IllegalStateException("The index is not built.");
+        }
+        if (n < 1) {
+            throw new IllegalArgumentException("The number of items must be positive: " + n);
+        }
+        final int k = latentDimension;
+        final int d = k + 1;
+        final ScoreHeap probes = new ScoreHeap(numProbes);
+        for (int c = 0; c < numLists; c++) {
+            double dot = Kernels.dot(centroids, c * d, query, offset, k);
+            probes.offer(dot, c);
+        }
+        final ScoreHeap heap = new ScoreHeap(Math.min(n, listItems.length));
+        final boolean skipRated = ratings != null && user >= 0;
+        float[] floatQuery = null; // The query rounded to floats, to score the items in single precision
+        if (listData.isSinglePrecision()) {
+            floatQuery = new float[k];
+            for (int f = 0; f < k; f++) {
+                floatQuery[f] = (float) query[offset + f];
+            }
+        }
+        for (int c : probes.drain()) {
+            for (int p = listPointers[c]; p < listPointers[c + 1]; p++) {
+                final int j = listItems[p];
+                if (skipRated && (byColumn ? ratings.find(j, user) : ratings.find(user, j)) >= 0) {
+                    continue;
+                }
+                double dot = floatQuery != null ? Kernels.dot(listData.getFloatRowData(p), listData.getRowOffset(p), floatQuery, 0, k)
+                        : Kernels.dot(listData.getRowData(p), listData.getRowOffset(p), query, offset, k);
+                heap.offer(dot, j);
+            }
+        }
+        return heap.drain();
+    }
+
+    /**
+     * Measure the recall of the index: the share of the items recommended by
+     * an exact recommender that are also recommended by the index.
+     *
+     * @param exact The exact recommender, built on the same point and the same
+     * ratings.
+     * @param users The users whose recommendations are compared.
+     * @param n The number of items recommended to each user.
+     * @return The recall, between 0 and 1.
+     */
+    public double measureRecall(TopNRecommender exact, int[] users, int n) {
+        final int[][] truth = exact.recommend(users, n);
+        long found = 0;
+        long total = 0;
+        final boolean[] relevant = new boolean[V.getRowDimension()];
+        for (int u = 0; u < users.length; u++) {
+            for (int j : truth[u]) {
+                relevant[j] = true;
+            }
+            for (int j : recommend(users[u], n)) {
+                if (relevant[j]) {
+                    found++;
+                }
+            }
+            for (int j : truth[u]) {
+                relevant[j] = false;
+            }
+            total += truth[u].length;
+        }
+        return total == 0 ? 1 : (double) found / total;
+    }
+
+    /**
+     * @return The number of lists of items.
+     */
+    public int getNumLists() {
+        return numLists;
+    }
+
+    /**
+     * Assign the items of a range of threads, each thread handling a
+     * contiguous slice of the items.
+     */
+    private final class AssignTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final int[] items;
+        private final int size;
+        private final double scale;
+        private final double[] extra;
+        private final int[] assignment;
+
+        AssignTask(int from, int to, int[] items, int size, double scale, double[] extra, int[] assignment) {
+            this.from = from;
+            this.to = to;
+            this.items = items;
+            this.size = size;
+            this.scale = scale;
+            this.extra = extra;
+            this.assignment = assignment;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                assignRange(items, (int) ((long) from * size / numThreads), (int) ((long) to * size / numThreads), scale, extra, assignment);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new AssignTask(from, middle, items, size, scale, extra, assignment),
+                        new AssignTask(middle, to, items, size, scale, extra, assignment));
+            }
+        }
+    }
+}
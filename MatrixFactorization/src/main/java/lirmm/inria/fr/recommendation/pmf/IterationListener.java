@@ -0,0 +1,22 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * Receive the statistics of each iteration of an algorithm, e.g. to monitor a
+ * long training job.
+ *
+ * @author rbouadjenek
+ */
+public interface IterationListener {
+
+    /**
+     * Called after each iteration, in the thread running the algorithm. It
+     * should return quickly, since the algorithm waits for it.
+     *
+     * @param statistics The statistics of the iteration.
+     */
+    void iterationCompleted(IterationStatistics statistics);
+}
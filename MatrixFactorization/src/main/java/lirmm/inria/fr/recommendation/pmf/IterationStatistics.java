@@ -0,0 +1,121 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * Statistics of an iteration of the gradient descent: the value of the
+ * objective function, the step size, whether the step was accepted, and the
+ * time and the memory spent.
+ *
+ * @author rbouadjenek
+ */
+public final class IterationStatistics {
+
+    private final int iteration; // Number of the iteration, from 1
+    private final double J; // Value of the objective function at the point of the iteration
+    private final double bestJ; // Value of the objective function at the best point after the iteration
+    private final double stepSize; // Step size used by the iteration
+    private final boolean accepted; // Indicate if the step was accepted
+    private final long updateNanos; // Time spent moving U and V along the gradient
+    private final long evaluationNanos; // Time spent evaluating J and its gradient
+    private final long nonZeros; // Number of non-zero elements of R visited by the evaluation
+    private final long allocatedBytes; // Bytes allocated during the iteration, -1 if unknown
+
+    public IterationStatistics(int iteration, double J, double bestJ, double stepSize, boolean accepted,
+            long updateNanos, long evaluationNanos, long nonZeros, long allocatedBytes) {
+        this.iteration = iteration;
+        this.J = J;
+        this.bestJ = bestJ;
+        this.stepSize = stepSize;
+        this.accepted = accepted;
+        this.updateNanos = updateNanos;
+        this.evaluationNanos = evaluationNanos;
+        this.nonZeros = nonZeros;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * @return The number of the iteration, from 1.
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * @return The value of the objective function at the point computed by
+     * the iteration.
+     */
+    public double getJ() {
+        return J;
+    }
+
+    /**
+     * @return The value of the objective function at the best point found so
+     * far.
+     */
+    public double getBestJ() {
+        return bestJ;
+    }
+
+    /**
+     * @return The step size used by the iteration.
+     */
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    /**
+     * @return true if the step decreased J and was kept.
+     */
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return The time spent moving U and V along the gradient, in
+     * nanoseconds.
+     */
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    /**
+     * @return The time spent evaluating J and its gradient, which are computed
+     * together in a single pass over R, in nanoseconds.
+     */
+    public long getEvaluationNanos() {
+        return evaluationNanos;
+    }
+
+    /**
+     * @return The number of non-zero elements of R visited by the evaluation.
+     */
+    public long getNonZeros() {
+        return nonZeros;
+    }
+
+    /**
+     * @return The number of non-zero elements of R evaluated per second.
+     */
+    public double getNonZerosPerSecond() {
+        return evaluationNanos == 0 ? 0 : nonZeros * 1e9 / evaluationNanos;
+    }
+
+    /**
+     * @return The number of bytes allocated during the iteration by the
+     * thread running the descent and by the threads evaluating R, or -1 if the
+     * JVM does not measure it.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "iteration=" + iteration + ", J=" + J + ", bestJ=" + bestJ + ", stepSize=" + stepSize
+                + ", accepted=" + accepted + ", updateNanos=" + updateNanos + ", evaluationNanos=" + evaluationNanos
+                + ", nonZerosPerSecond=" + getNonZerosPerSecond() + ", allocatedBytes=" + allocatedBytes;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+
+/**
+ * An algorithm that factorizes a matrix R into the latent features U and V.
+ * The {@link Solver} class can run any of them.
+ *
+ * @author rbouadjenek
+ */
+public interface Optimizer {
+
+    /**
+     * Run the algorithm until it converges or exhausts its budget.
+     */
+    void findMinimum();
+
+    /**
+     * This method return the best point found by the algorithm.
+     *
+     * @return The current point of the Algorithm.
+     */
+    Point getCurrentPoint();
+
+    /**
+     * This is the main matrix to factorize.
+     *
+     * @return The current matrix to factorize.
+     */
+    BigSparseRealMatrix getR();
+
+    /**
+     * The number of the current iteration of the algorithm.
+     *
+     * @return The current iteration of the algorithm.
+     */
+    int getNumEvaluations();
+}
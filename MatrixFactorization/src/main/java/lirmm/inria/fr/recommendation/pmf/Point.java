@@ -4,7 +4,7 @@
  */
 package lirmm.inria.fr.recommendation.pmf;
 
-import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
 
 /**
  * Structure to represent a point. A point represents the two matrices U and V
@@ -15,8 +15,9 @@ import lirmm.inria.fr.math.BigSparseRealMatrix;
 public class Point {
 
     private final int latentDimension; // number of latent dimension
-    private BigSparseRealMatrix U; // The user's latent features
-    private BigSparseRealMatrix V; // The item's latent features
+    private final boolean singlePrecision; // true if U and V are stored as floats
+    private DenseFactorMatrix U; // The user's latent features, one row per user
+    private DenseFactorMatrix V; // The item's latent features, one row per item
     private double J; // Value of the cost function J
 
     /**
@@ -28,24 +29,56 @@ public class Point {
      * @param latentDimension The number of latent dimensions
      */
     public Point(int numUsers, int numItems, int latentDimension) {
+        this(numUsers, numItems, latentDimension, false);
+    }
+
+    /**
+     * Initializes a newly created Point object so that it represents U and V
+     * matrices, stored in single or in double precision.
+     *
+     * @param numUsers The number of Users
+     * @param numItems The number of Items
+     * @param latentDimension The number of latent dimensions
+     * @param singlePrecision true to store U and V as floats
+     */
+    public Point(int numUsers, int numItems, int latentDimension, boolean singlePrecision) {
         this.latentDimension = latentDimension;
+        this.singlePrecision = singlePrecision;
         if (numUsers == 0 || numItems == 0) {
             return;
         }
-        U = new BigSparseRealMatrix(latentDimension, numUsers);
-        V = new BigSparseRealMatrix(latentDimension, numItems);
+        U = new DenseFactorMatrix(numUsers, latentDimension, singlePrecision);
+        V = new DenseFactorMatrix(numItems, latentDimension, singlePrecision);
         J = Double.MAX_VALUE;
     }
 
     /**
-     * Copy this point to the point given in parameter.
+     * Tell whether U and V are stored as floats.
+     *
+     * @return true if the point is stored in single precision.
+     */
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Copy this point to the point given in parameter. The elements are
+     * rounded if the point given is in single precision and not this one.
      *
      * @param to a point to be copied
      */
     public void copy(Point to) {
-        to.U = U.copy();
+        if (to.U == null || to.U == U) {
+            to.U = U.copy();
+        } else {
+            to.U.setData(U);
+        }
         //---------------------------
-        to.V = V.copy();
+        if (to.V == null || to.V == V) {
+            to.V = V.copy();
+        } else {
+            to.V.setData(V);
+        }
         to.J = J;
     }
 
@@ -54,7 +87,7 @@ public class Point {
      *
      * @return The matrix containing the User features.
      */
-    public BigSparseRealMatrix getU() {
+    public DenseFactorMatrix getU() {
         return U;
     }
 
@@ -63,7 +96,7 @@ public class Point {
      *
      * @return The matrix containing the Item features.
      */
-    public BigSparseRealMatrix getV() {
+    public DenseFactorMatrix getV() {
         return V;
     }
 
@@ -93,10 +126,9 @@ public class Point {
      * with smal random values.
      */
     public void initialize() {
-        U = BigSparseRealMatrix.randomGenerateMatrix(latentDimension, U.getColumnDimension());
-        U = U.scalarMultiply(0.1);
-        V = BigSparseRealMatrix.randomGenerateMatrix(latentDimension, V.getColumnDimension());
-        V = V.scalarMultiply(0.1);
+        // filled in place, so that no other copy of U or V is allocated
+        U.randomFill(0.1);
+        V.randomFill(0.1);
 
 //        System.out.println("U=");
 //        System.out.println(U);
@@ -113,11 +145,11 @@ public class Point {
 //        V = new BigSparseRealMatrix(vData);
     }
 
-    public void setU(BigSparseRealMatrix U) {
+    public void setU(DenseFactorMatrix U) {
         this.U = U;
     }
 
-    public void setV(BigSparseRealMatrix V) {
+    public void setV(DenseFactorMatrix V) {
         this.V = V;
     }
 
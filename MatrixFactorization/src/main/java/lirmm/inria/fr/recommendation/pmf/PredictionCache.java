@@ -0,0 +1,479 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+
+/**
+ * Size-bounded cache of the predicted ratings and of the top-N
+ * recommendations of a model, safe for concurrent use.
+ * <p>
+ * Entries are keyed by primitive longs ((user, item) for a rating, (user, N)
+ * for a recommendation) and stored in open-addressing tables, so a lookup does
+ * not create any object. The cache is split into segments, each guarded by
+ * its own lock, to limit contention between threads. When a segment is full,
+ * its least recently used entry is evicted. With {@link Eviction#TINY_LFU},
+ * a new entry is only admitted if it has been requested more often than the
+ * entry it would evict, the frequencies being estimated by a count-min sketch
+ * that is periodically halved; this keeps the popular entries in the cache
+ * when many entries are requested only once.</p>
+ * <p>
+ * Installing a new model with {@link #install(Point, BigSparseRealMatrix)}
+ * empties the cache. Each segment records the generation of the model its
+ * entries come from, so a lookup made with the new model never returns a
+ * value of the previous one, and the values computed concurrently from the
+ * previous model are not stored.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class PredictionCache {
+
+    /**
+     * Eviction policies of the cache.
+     */
+    public enum Eviction {
+
+        /**
+         * Evict the least recently used entry.
+         */
+        LRU,
+        /**
+         * Evict the least recently used entry, but only admit a new entry if
+         * it is requested more often than the evicted one.
+         */
+        TINY_LFU
+    }
+
+    private final Segment[] predictions; // Segments of the predicted ratings
+    private final Segment[] recommendations; // Segments of the top-N recommendations
+    private final int segmentMask; // Number of segments - 1
+    private volatile Model model; // The model currently installed
+    /**
+     * Statistics
+     */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create an empty cache. A model must be installed before the cache is
+     * queried.
+     *
+     * @param maximumSize The maximum number of ratings cached, which is also
+     * the maximum number of recommendations cached.
+     * @param eviction The eviction policy.
+     */
+    public PredictionCache(int maximumSize, Eviction eviction) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be positive: " + maximumSize);
+        }
+        int numSegments = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4));
+        while (numSegments > 1 && maximumSize / numSegments < 16) {
+            numSegments >>= 1;
+        }
+        this.segmentMask = numSegments - 1;
+        final int capacity = (maximumSize + numSegments - 1) / numSegments;
+        final boolean admission = eviction == Eviction.TINY_LFU;
+        this.predictions = new Segment[numSegments];
+        this.recommendations = new Segment[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            predictions[s] = new Segment(capacity, admission, false);
+            recommendations[s] = new Segment(capacity, admission, true);
+        }
+    }
+
+    /**
+     * Install a new model, and empty the cache.
+     *
+     * @param point The latent features of the users and the items.
+     * @param R The ratings of the users, whose items are not recommended
+     * again, or {@code null} to recommend any item.
+     */
+    public synchronized void install(Point point, BigSparseRealMatrix R) {
+        final Model m = new Model(point, new TopNRecommender(point, R), model == null ? 1 : model.generation + 1);
+        model = m;
+        // the segments not reached yet are emptied by the first lookup of the new model
+        for (int s = 0; s <= segmentMask; s++) {
+            synchronized (predictions[s]) {
+                predictions[s].use(m.generation);
+            }
+            synchronized (recommendations[s]) {
+                recommendations[s].use(m.generation);
+            }
+        }
+    }
+
+    /**
+     * Predict the rating of a user for an item.
+     *
+     * @param user The user.
+     * @param item The item.
+     * @return The predicted rating U(user,:)*V(item,:)'.
+     */
+    public double predict(int user, int item) {
+        final Model m = currentModel();
+        final long key = (long) user * m.numItems + item;
+        final long hash = mix(key);
+        final Segment segment = predictions[(int) (hash >>> 32) & segmentMask];
+        synchronized (segment) {
+            final int e = segment.use(m.generation) ? segment.get(key, hash) : -1;
+            if (e >= 0) {
+                hits.increment();
+                return segment.values[e];
+            }
+        }
+        misses.increment();
+        final double value = m.point.getU().dotProduct(user, m.point.getV(), item);
+        synchronized (segment) {
+            if (segment.use(m.generation)) {
+                final int e = segment.put(key, hash);
+                if (e >= 0) {
+                    segment.values[e] = value;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Recommend items to a user.
+     *
+     * @param user The user.
+     * @param n The number of items to recommend.
+     * @return At most {@code n} items, by decreasing predicted rating. The
+     * array is shared with the cache and must not be modified.
+     */
+    public int[] recommend(int user, int n) {
+        final Model m = currentModel();
+        final long key = ((long) user << 32) | n;
+        final long hash = mix(key);
+        final Segment segment = recommendations[(int) (hash >>> 32) & segmentMask];
+        synchronized (segment) {
+            final int e = segment.use(m.generation) ? segment.get(key, hash) : -1;
+            if (e >= 0) {
+                hits.increment();
+                return (int[]) segment.references[e];
+            }
+        }
+        misses.increment();
+        final int[] items = m.recommender.recommend(user, n);
+        synchronized (segment) {
+            if (segment.use(m.generation)) {
+                final int e = segment.put(key, hash);
+                if (e >= 0) {
+                    segment.references[e] = items;
+                }
+            }
+        }
+        return items;
+    }
+
+    private Model currentModel() {
+        final Model m = model;
+        if (m == null) {
+            throw new IllegalStateException("No model is installed.");
+        }
+        return m;
+    }
+
+    /**
+     * Spread the bits of a key (finalizer of MurmurHash3).
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups computed from the model.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries evicted to make room for new ones.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The share of the lookups answered from the cache, or 0 if there
+     * was no lookup.
+     */
+    public double getHitRate() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Reset the statistics.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * A model and the recommender built on it.
+     */
+    private static final class Model {
+
+        private final Point point;
+        private final TopNRecommender recommender;
+        private final long numItems;
+        private final long generation; // Number of models installed up to this one
+
+        Model(Point point, TopNRecommender recommender, long generation) {
+            this.point = point;
+            this.recommender = recommender;
+            this.numItems = point.getV().getRowDimension();
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A part of the cache: a linear probing table of the entries, and a
+     * doubly linked list of the entries from the most to the least recently
+     * used. All the methods must be called while holding the lock of the
+     * segment.
+     */
+    private final class Segment {
+
+        private final int capacity; // Maximum number of entries
+        private final long[] keys; // Key of each entry
+        private final double[] values; // Value of each entry, for the ratings
+        private final Object[] references; // Value of each entry, for the recommendations
+        private final int[] previous, next; // Links of the recency list, -1 at both ends
+        private final int[] table; // Entry + 1 stored in each slot, 0 for a free slot
+        private final int mask; // Number of slots - 1
+        private final FrequencySketch sketch; // Frequencies of the keys, null without admission policy
+        private int size, head = -1, tail = -1;
+        private long generation; // Generation of the model the entries come from
+
+        Segment(int capacity, boolean admission, boolean withReferences) {
+            this.capacity = capacity;
+            this.keys = new long[capacity];
+            this.values = withReferences ? null : new double[capacity];
+            this.references = withReferences ? new Object[capacity] : null;
+            this.previous = new int[capacity];
+            this.next = new int[capacity];
+            this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+            this.mask = table.length - 1;
+            this.sketch = admission ? new FrequencySketch(capacity) : null;
+        }
+
+        /**
+         * Find an entry and mark it as the most recently used.
+         *
+         * @return The entry, or -1 if the key is not cached.
+         */
+        int get(long key, long hash) {
+            if (sketch != null) {
+                sketch.increment(hash);
+            }
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                final int e = table[slot] - 1;
+                if (e < 0) {
+                    return -1;
+                }
+                if (keys[e] == key) {
+                    unlink(e);
+                    linkFirst(e);
+                    return e;
+                }
+            }
+        }
+
+        /**
+         * Find or add an entry, and mark it as the most recently used.
+         *
+         * @return The entry whose value must be set, or -1 if the key is not
+         * admitted in the cache.
+         */
+        int put(long key, long hash) {
+            int slot = (int) hash & mask;
+            for (;; slot = (slot + 1) & mask) {
+                final int e = table[slot] - 1;
+                if (e < 0) {
+                    break;
+                }
+                if (keys[e] == key) {
+                    unlink(e);
+                    linkFirst(e);
+                    return e;
+                }
+            }
+            final int e;
+            if (size < capacity) {
+                e = size++;
+            } else {
+                e = tail;
+                if (sketch != null && sketch.frequency(hash) <= sketch.frequency(mix(keys[e]))) {
+                    return -1;
+                }
+                evictions.increment();
+                unlink(e);
+                removeSlot(keys[e]);
+                // the slot of the new key may have moved during the removal
+                slot = (int) hash & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            keys[e] = key;
+            table[slot] = e + 1;
+            linkFirst(e);
+            return e;
+        }
+
+        /**
+         * Free the slot of a key, shifting back the following entries of its
+         * cluster.
+         */
+        private void removeSlot(long key) {
+            int hole = (int) mix(key) & mask;
+            while (keys[table[hole] - 1] != key) {
+                hole = (hole + 1) & mask;
+            }
+            for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                final int home = (int) mix(keys[table[slot] - 1]) & mask;
+                // move the entry unless its home slot is strictly after the hole
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    table[hole] = table[slot];
+                    hole = slot;
+                }
+            }
+            table[hole] = 0;
+        }
+
+        private void unlink(int e) {
+            if (previous[e] >= 0) {
+                next[previous[e]] = next[e];
+            } else {
+                head = next[e];
+            }
+            if (next[e] >= 0) {
+                previous[next[e]] = previous[e];
+            } else {
+                tail = previous[e];
+            }
+        }
+
+        private void linkFirst(int e) {
+            previous[e] = -1;
+            next[e] = head;
+            if (head >= 0) {
+                previous[head] = e;
+            } else {
+                tail = e;
+            }
+            head = e;
+        }
+
+        /**
+         * Make sure the entries come from a model, emptying the segment if
+         * they come from an older one.
+         *
+         * @return false if the entries come from a newer model, in which case
+         * the segment must not be used for this one.
+         */
+        boolean use(long generation) {
+            if (generation > this.generation) {
+                clear();
+                this.generation = generation;
+            }
+            return generation == this.generation;
+        }
+
+        private void clear() {
+            Arrays.fill(table, 0);
+            if (references != null) {
+                Arrays.fill(references, null);
+            }
+            size = 0;
+            head = -1;
+            tail = -1;
+            if (sketch != null) {
+                sketch.clear();
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, estimating how often the keys were
+     * requested recently. All the counters are halved once the number of
+     * increments reaches ten times the capacity of the segment, so that old
+     * requests are forgotten.
+     */
+    private static final class FrequencySketch {
+
+        private final long[] counters; // 16 counters of 4 bits per long
+        private final int mask; // Number of counters - 1
+        private final int resetPeriod; // Number of increments between two halvings
+        private int increments;
+
+        FrequencySketch(int capacity) {
+            final int numCounters = Math.max(64, Integer.highestOneBit(Math.max(1, capacity) * 4 - 1) << 1);
+            this.counters = new long[numCounters / 16];
+            this.mask = numCounters - 1;
+            this.resetPeriod = 10 * Math.max(1, capacity);
+        }
+
+        /**
+         * Index of the counter of a key in row {@code d} of the sketch.
+         */
+        private int index(long hash, int d) {
+            final long h = (hash + d) * (0x9E3779B97F4A7C15L + 2 * d);
+            return (int) (h >>> 32) & mask;
+        }
+
+        void increment(long hash) {
+            for (int d = 0; d < 4; d++) {
+                final int i = index(hash, d);
+                final int shift = (i & 15) << 2;
+                if (((counters[i >>> 4] >>> shift) & 15) < 15) {
+                    counters[i >>> 4] += 1L << shift;
+                }
+            }
+            if (++increments >= resetPeriod) {
+                for (int p = 0; p < counters.length; p++) {
+                    counters[p] = (counters[p] >>> 1) & 0x7777777777777777L;
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(long hash) {
+            int min = 15;
+            for (int d = 0; d < 4; d++) {
+                final int i = index(hash, d);
+                min = Math.min(min, (int) (counters[i >>> 4] >>> ((i & 15) << 2)) & 15);
+            }
+            return min;
+        }
+
+        void clear() {
+            Arrays.fill(counters, 0);
+            increments = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * Bounded min-heap keeping the items with the highest scores. For equal
+ * scores the lowest item wins, so the items kept do not depend on the order
+ * in which they are offered.
+ *
+ * @author rbouadjenek
+ */
+final class ScoreHeap {
+
+    private final double[] scores; // Score of each element of the heap
+    private final int[] items; // Item of each element of the heap
+    private int size; // Number of elements in the heap
+
+    /**
+     * Create an empty heap.
+     *
+     * @param capacity Maximum number of items kept.
+     */
+    ScoreHeap(int capacity) {
+        this.scores = new double[capacity];
+        this.items = new int[capacity];
+    }
+
+    /**
+     * Offer an item to the heap. It is kept if the heap is not full, or if it
+     * is better than the worst item of the heap, which is then dropped.
+     *
+     * @param score The score of the item.
+     * @param item The item.
+     */
+    void offer(double score, int item) {
+        if (size < scores.length) {
+            siftUp(size++, score, item);
+        } else if (size > 0 && isLower(scores[0], items[0], score, item)) {
+            siftDown(score, item);
+        }
+    }
+
+    /**
+     * Empty the heap.
+     *
+     * @return The items of the heap, by decreasing score.
+     */
+    int[] drain() {
+        final int[] best = new int[size];
+        while (size > 0) {
+            best[size - 1] = items[0];
+            size--;
+            siftDown(scores[size], items[size]);
+        }
+        return best;
+    }
+
+    private void siftUp(int p, double score, int item) {
+        while (p > 0) {
+            final int parent = (p - 1) >>> 1;
+            if (!isLower(score, item, scores[parent], items[parent])) {
+                break;
+            }
+            scores[p] = scores[parent];
+            items[p] = items[parent];
+            p = parent;
+        }
+        scores[p] = score;
+        items[p] = item;
+    }
+
+    /**
+     * Replace the root of the heap.
+     */
+    private void siftDown(double score, int item) {
+        int p = 0;
+        while (true) {
+            int child = 2 * p + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isLower(scores[child + 1], items[child + 1], scores[child], items[child])) {
+                child++;
+            }
+            if (!isLower(scores[child], items[child], score, item)) {
+                break;
+            }
+            scores[p] = scores[child];
+            items[p] = items[child];
+            p = child;
+        }
+        if (size > 0) {
+            scores[p] = score;
+            items[p] = item;
+        }
+    }
+
+    /**
+     * Order of the heap: the lowest score first, and for equal scores the
+     * highest item first, so that ties are kept in favour of the lowest item.
+     */
+    private static boolean isLower(double score, int item, double otherScore, int otherItem) {
+        return score < otherScore || (score == otherScore && item > otherItem);
+    }
+}
@@ -12,6 +12,7 @@ import lirmm.inria.fr.data.DataMatrix;
 import lirmm.inria.fr.evaluation.Metrics;
 import lirmm.inria.fr.main.Functions;
 import lirmm.inria.fr.math.BigSparseRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
 
 /**
  * This is the main class that solves a problem of matrix
@@ -23,10 +24,12 @@ import lirmm.inria.fr.math.BigSparseRealMatrix;
 public class Solver {
 
     private final boolean debug;
-    private GradientDescent problem;
+    private Optimizer problem;
 
     /**
      * Create a structure that aims at solve a matrix factorization problem.
+     * The matrix is compressed, so that it is stored once, and can no longer
+     * be modified.
      *
      * @param r A matrix to factorize.
      * @param latentDimension Number of latent dimensions.
@@ -36,7 +39,29 @@ public class Solver {
      * @param debug debug or not?
      */
     public Solver(BigSparseRealMatrix r, int latentDimension, int numEvaluations, double lambda, boolean debug) {
+        this(r, latentDimension, numEvaluations, lambda, debug, true);
+    }
+
+    /**
+     * Create a structure that aims at solve a matrix factorization problem.
+     *
+     * @param r A matrix to factorize.
+     * @param latentDimension Number of latent dimensions.
+     * @param numEvaluations Maximum number of iterations in the gradient
+     * algorithm.
+     * @param lambda Weight of the social regularization terms.
+     * @param debug debug or not?
+     * @param compress true to compress the matrix first, so that the
+     * gradient descent shares its storage; false to keep the matrix
+     * modifiable, the descent then keeping a compressed copy of its elements
+     * (see {@link BigSparseRealMatrix#toCompressedStorage()}).
+     */
+    public Solver(BigSparseRealMatrix r, int latentDimension, int numEvaluations, double lambda, boolean debug,
+            boolean compress) {
         this.debug = debug;
+        if (compress) {
+            r.compress();
+        }
         try {
             problem = new GradientDescent(r, latentDimension, numEvaluations, lambda);
         } catch (Exception ex) {
@@ -44,6 +69,19 @@ public class Solver {
         }
     }
 
+    /**
+     * Create a structure that solves a matrix factorization problem with a
+     * given algorithm, e.g. {@link StochasticGradientDescent} instead of the
+     * default {@link GradientDescent}.
+     *
+     * @param problem The algorithm that factorizes the matrix.
+     * @param debug debug or not?
+     */
+    public Solver(Optimizer problem, boolean debug) {
+        this.debug = debug;
+        this.problem = problem;
+    }
+
     /**
      * This method solve a factorization problem. The latent items and users
      * features and availble in problem.getNextPoint(). We can predict missing
@@ -57,7 +95,7 @@ public class Solver {
         System.err.println("Best point= " + problem.getCurrentPoint().getJ());
         System.err.println("Evaluations = " + problem.getNumEvaluations());
         if (debug) {
-            BigSparseRealMatrix prod = this.problem.getCurrentPoint().getU().transpose().multiply(this.problem.getCurrentPoint().getV());
+            RealMatrix prod = this.problem.getCurrentPoint().getU().multiply(this.problem.getCurrentPoint().getV().transpose());
 //            System.out.println("Best point= " + problem.getNextPoint().getJ());
 //            System.out.println("Evaluations = " + problem.getNumEvaluations());
             System.out.println();
@@ -73,6 +111,16 @@ public class Solver {
         }
     }
 
+    /**
+     * Create a recommender of the items not yet rated in R, from the best
+     * point found by {@link #solve()}.
+     *
+     * @return A top-N recommender.
+     */
+    public TopNRecommender createRecommender() {
+        return new TopNRecommender(problem.getCurrentPoint(), problem.getR());
+    }
+
     /**
      *
      */
@@ -87,8 +135,8 @@ public class Solver {
         for (int i = 0; i < problem.getR().getRowDimension(); i++) {
             for (int j = 0; j < problem.getR().getColumnDimension(); j++) {
                 if (problem.getR().getEntry(i, j) != 0) {
-                    System.out.println(df.format(problem.getR().getEntry(i, j)) + " <-> " + df.format(this.problem.getCurrentPoint().getU().transpose().getRowVector(i).dotProduct(this.problem.getCurrentPoint().getV().getColumnVector(j))));
-//                    z += FastMath.pow(problem.getR().getEntry(i, j) - this.problem.getCurrentPoint().getU().transpose().getRowVector(i).dotProduct(this.problem.getCurrentPoint().getV().getColumnVector(j)), 2);
+                    System.out.println(df.format(problem.getR().getEntry(i, j)) + " <-> " + df.format(this.problem.getCurrentPoint().getU().dotProduct(i, this.problem.getCurrentPoint().getV(), j)));
+//                    z += FastMath.pow(problem.getR().getEntry(i, j) - this.problem.getCurrentPoint().getU().dotProduct(i, this.problem.getCurrentPoint().getV(), j), 2);
                 }
             }
         }
@@ -0,0 +1,292 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.Kernels;
+
+/**
+ * This class represents the stochastic gradient descent algorithm. At each
+ * epoch, the non-zero elements of R are visited in a random order, and the
+ * latent features of the user and of the item of each rating are moved in the
+ * opposite direction of the gradient of this single rating.
+ * <p>
+ * The ratings are split between several threads that update the shared
+ * matrices U and V without any locking (Hogwild!). As R is sparse, two
+ * threads rarely update the same row at the same time, and the few lost
+ * updates do not prevent the convergence. Hence, the results are not
+ * reproducible when more than one thread is used.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class StochasticGradientDescent implements Optimizer {
+
+    private final int maxNumEpochs;// maximum number of passes over the ratings
+    final double lambda; // Lambda for the regularization terms
+    final int latentDimension; // Number of latent dimension
+    private final Point currentPoint;
+    private final BigSparseRealMatrix R;
+    private final CompressedSparseStorage storage; // Read-only storage of R scanned by the updates
+    private final int[] rowOfEntry; // Row of each non-zero element of R, in CSR order
+    private final int[] order; // Order in which the non-zero elements are visited
+    private final double[] rowWeights; // Share of the regularization of a row applied at each of its ratings
+    private final double[] columnWeights; // Share of the regularization of a column applied at each of its ratings
+    private int numEvaluations;
+    private final double epsilone = 0.000005; // Stop creteria for the algorithm
+    /**
+     * Step size parameters
+     */
+    private double learningRate = 0.01;// The learning rate of the current epoch.
+    private double decayRate = 0.95;// The learning rate is multiplied by this value after each epoch.
+    private int numThreads = 1;// The number of threads updating U and V.
+    private long seed = System.nanoTime();// Seed of the shuffling of the ratings.
+
+    /**
+     * Create a structure that represent the problem of matrix factorization.
+     *
+     * @param R The matrix to factorize, read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
+     * @param latentDimension Number of latent dimensions used in the
+     * factorization process.
+     * @param numEpochs Maximum number of passes over the ratings.
+     * @param lambda Weight for the regularization terms.
+     * @throws Exception
+     */
+    public StochasticGradientDescent(BigSparseRealMatrix R, int latentDimension, int numEpochs, double lambda) throws Exception {
+        if (R.getRowDimension() == 0 || R.getColumnDimension() == 0) {
+            throw new Exception("Check the rows and the columns of the matrix R.");
+        }
+        this.maxNumEpochs = numEpochs;
+        this.numEvaluations = 0;
+        this.lambda = lambda;
+        this.latentDimension = latentDimension;
+        this.R = R;
+        this.storage = R.toCompressedStorage();
+        this.currentPoint = new Point(R.getRowDimension(), R.getColumnDimension(), latentDimension);
+        this.currentPoint.initialize();
+        final int[] rowPointers = storage.getRowPointers();
+        final int[] columnPointers = storage.getColumnPointers();
+        this.rowOfEntry = new int[storage.getDataSize()];
+        this.order = new int[storage.getDataSize()];
+        this.rowWeights = new double[storage.getRowDimension()];
+        this.columnWeights = new double[storage.getColumnDimension()];
+        for (int i = 0; i < storage.getRowDimension(); i++) {
+            for (int p = rowPointers[i]; p < rowPointers[i + 1]; p++) {
+                rowOfEntry[p] = i;
+                order[p] = p;
+            }
+            if (rowPointers[i + 1] > rowPointers[i]) {
+                rowWeights[i] = lambda / (rowPointers[i + 1] - rowPointers[i]);
+            }
+        }
+        for (int j = 0; j < storage.getColumnDimension(); j++) {
+            if (columnPointers[j + 1] > columnPointers[j]) {
+                columnWeights[j] = lambda / (columnPointers[j + 1] - columnPointers[j]);
+            }
+        }
+    }
+
+    /**
+     * Set the learning rate of the first epoch.
+     *
+     * @param learningRate The initial learning rate.
+     */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * Set the factor applied to the learning rate after each epoch.
+     *
+     * @param decayRate The decay of the learning rate, 1 to keep it constant.
+     */
+    public void setDecayRate(double decayRate) {
+        this.decayRate = decayRate;
+    }
+
+    /**
+     * Set the number of threads updating U and V.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the seed of the shuffling of the ratings.
+     *
+     * @param seed The seed of the random generator.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Shuffle the visiting order of the ratings (Fisher-Yates).
+     */
+    private void shuffle(Random random) {
+        for (int p = order.length - 1; p > 0; p--) {
+            final int q = random.nextInt(p + 1);
+            final int tmp = order[p];
+            order[p] = order[q];
+            order[q] = tmp;
+        }
+    }
+
+    /**
+     * Visit a range of the shuffled ratings and update the latent features of
+     * their users and items. The regularization of a row is spread over its
+     * ratings, so that one epoch follows the gradient of the same objective
+     * function J as {@link GradientDescent}.
+     */
+    private void updateRange(int from, int to, double rate, DenseFactorMatrix rowData, DenseFactorMatrix columnData) {
+        final int[] columnIndices = storage.getColumnIndices();
+        final double[] values = storage.getValues();
+        final int k = latentDimension;
+        for (int n = from; n < to; n++) {
+            final int p = order[n];
+            final int i = rowOfEntry[p];
+            final int j = columnIndices[p];
+            final double[] row = rowData.getRowData(i);
+            final double[] column = columnData.getRowData(j);
+            final int rowOffset = rowData.getRowOffset(i);
+            final int columnOffset = columnData.getRowOffset(j);
+            final double rowWeight = rowWeights[i];
+            final double columnWeight = columnWeights[j];
+            double dot = Kernels.dot(row, rowOffset, column, columnOffset, k);
+            final double e = values[p] - dot;// (R-U*V')_ij
+            for (int f = 0; f < k; f++) {
+                final double u = row[rowOffset + f];
+                final double v = column[columnOffset + f];
+                row[rowOffset + f] += rate * (e * v - rowWeight * u);
+                column[columnOffset + f] += rate * (e * u - columnWeight * v);
+            }
+        }
+    }
+
+    /**
+     * This is the main optimisation routine. Each epoch shuffles the ratings,
+     * visits all of them once, and then evaluates the objective function. The
+     * algorithm stops after the maximum number of epochs, or when the
+     * objective function no longer decreases significantly.
+     */
+    @Override
+    public void findMinimum() {
+        final DecimalFormat df = GradientDescent.createProgressFormat();
+        // rows and columns of the storage are those of the untransposed R
+        final DenseFactorMatrix rowData, columnData;
+        if (R.isTransposed()) {
+            rowData = currentPoint.getV();
+            columnData = currentPoint.getU();
+        } else {
+            rowData = currentPoint.getU();
+            columnData = currentPoint.getV();
+        }
+        final ForkJoinPool pool = numThreads == 1 ? null : new ForkJoinPool(numThreads);
+        final GradientEvaluator evaluator = new GradientEvaluator(storage, latentDimension, lambda, pool);
+        final Random random = new Random(seed);
+        try {
+            currentPoint.setJ(evaluator.evaluate(rowData, columnData, null, null));
+            System.err.println("*********** Initial J ***********");
+            System.err.println("J= " + currentPoint.getJ());
+            System.err.println("*********************************");
+            while (numEvaluations < maxNumEpochs) {
+                shuffle(random);
+                final double rate = learningRate;
+                if (pool == null) {
+                    updateRange(0, order.length, rate, rowData, columnData);
+                } else {
+                    pool.invoke(new EpochTask(0, numThreads, rate, rowData, columnData));
+                }
+                numEvaluations++;
+                learningRate *= decayRate;
+                final double previousJ = currentPoint.getJ();
+                currentPoint.setJ(evaluator.evaluate(rowData, columnData, null, null));
+                double decrease = (previousJ - currentPoint.getJ()) * 100 / previousJ;
+                System.err.println("J= " + df.format(currentPoint.getJ()) + " (rate: " + df.format(decrease) + "%, learning rate: " + rate + ")");
+                System.err.println("******************" + numEvaluations + "******************");
+                if (decrease >= 0 && decrease < epsilone) {
+                    break;
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Run one epoch on a range of threads, each thread visiting a contiguous
+     * slice of the shuffled ratings.
+     */
+    private final class EpochTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final double rate;
+        private final DenseFactorMatrix rowData, columnData;
+
+        EpochTask(int from, int to, double rate, DenseFactorMatrix rowData, DenseFactorMatrix columnData) {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+            this.rowData = rowData;
+            this.columnData = columnData;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final long size = order.length;
+                updateRange((int) (from * size / numThreads), (int) (to * size / numThreads), rate, rowData, columnData);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new EpochTask(from, middle, rate, rowData, columnData),
+                        new EpochTask(middle, to, rate, rowData, columnData));
+            }
+        }
+    }
+
+    /**
+     * This method return the current point of the Algorithm.
+     *
+     * @return The current point of the Algorithm.
+     */
+    @Override
+    public Point getCurrentPoint() {
+        return currentPoint;
+    }
+
+    /**
+     * This is the main matrix to factorize.
+     *
+     * @return The current matrix to factorize.
+     */
+    @Override
+    public BigSparseRealMatrix getR() {
+        return R;
+    }
+
+    /**
+     * The number of epochs run so far.
+     *
+     * @return The current epoch of the algorithm.
+     */
+    @Override
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
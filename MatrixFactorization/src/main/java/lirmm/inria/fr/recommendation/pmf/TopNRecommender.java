@@ -0,0 +1,268 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.CompressedSparseStorage;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.Kernels;
+
+/**
+ * This class recommends to users the N items with the highest predicted
+ * ratings U(i,:)*V(j,:)', among the items they have not rated yet.
+ * <p>
+ * The full users x items matrix U*V' is never built. Users are processed by
+ * blocks, and each block of users is scored against V one block of items at a
+ * time, the item block being small enough to stay in the processor cache
+ * while all the users of the block are scored. The best N items of each user
+ * are kept in a bounded min-heap. The items already rated by a user are read
+ * from the compressed storage of R, in increasing order, while the items are
+ * scanned. Blocks of users are processed in parallel.</p>
+ *
+ * @author rbouadjenek
+ */
+public final class TopNRecommender {
+
+    private final DenseFactorMatrix U; // The user's latent features
+    private final DenseFactorMatrix V; // The item's latent features
+    private final int latentDimension; // Number of latent dimension
+    private final CompressedSparseStorage ratings; // Items already rated, null to recommend any item
+    private final boolean byColumn; // Indicate if the users are the columns of the storage of R
+    private int userBlockSize = 64; // Number of users scored together
+    private int itemBlockSize; // Number of items scored together
+    private ForkJoinPool pool; // Threads scoring the blocks of users, null when scoring in the calling thread
+
+    /**
+     * Create a recommender for the latent features of a point.
+     *
+     * @param point The latent features of the users and the items.
+     * @param R The ratings of the users, whose items are not recommended
+     * again, or {@code null} to recommend any item. It is read through
+     * {@link BigSparseRealMatrix#toCompressedStorage()}.
+     */
+    public TopNRecommender(Point point, BigSparseRealMatrix R) {
+        this.U = point.getU();
+        this.V = point.getV();
+        this.latentDimension = U.getLatentDimension();
+        if (R == null) {
+            this.ratings = null;
+            this.byColumn = false;
+        } else {
+            if (R.getRowDimension() != U.getRowDimension() || R.getColumnDimension() != V.getRowDimension()) {
+                throw new IllegalArgumentException("R is " + R.getRowDimension() + "x" + R.getColumnDimension()
+                        + " but there are " + U.getRowDimension() + " users and " + V.getRowDimension() + " items.");
+            }
+            this.ratings = R.toCompressedStorage();
+            this.byColumn = R.isTransposed();
+        }
+        // 256 KB of item features per block
+        this.itemBlockSize = Math.max(16, (1 << 15) / latentDimension);
+    }
+
+    /**
+     * Set the number of threads scoring the blocks of users. The threads are
+     * started once and reused by every call of {@link #recommend(int[], int)},
+     * until {@link #close} is called.
+     *
+     * @param numThreads The number of threads, 1 to score in the calling
+     * thread.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + numThreads);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = numThreads == 1 ? null : new ForkJoinPool(numThreads);
+    }
+
+    /**
+     * Stop the threads scoring the blocks of users, if {@link #setNumThreads}
+     * started any. The recommender can still be used afterwards, scoring in
+     * the calling thread.
+     */
+    public void close() {
+        setNumThreads(1);
+    }
+
+    /**
+     * Set the number of users and of items scored together.
+     *
+     * @param userBlockSize The number of users of a block.
+     * @param itemBlockSize The number of items of a block.
+     */
+    public void setBlockSizes(int userBlockSize, int itemBlockSize) {
+        if (userBlockSize < 1 || itemBlockSize < 1) {
+            throw new IllegalArgumentException("The block sizes must be positive: " + userBlockSize + ", " + itemBlockSize);
+        }
+        this.userBlockSize = userBlockSize;
+        this.itemBlockSize = itemBlockSize;
+    }
+
+    /**
+     * Predict the rating of a user for an item.
+     *
+     * @param user The user.
+     * @param item The item.
+     * @return The predicted rating U(user,:)*V(item,:)'.
+     */
+    public double score(int user, int item) {
+        return U.dotProduct(user, V, item);
+    }
+
+    /**
+     * Recommend items to a user.
+     *
+     * @param user The user.
+     * @param n The number of items to recommend.
+     * @return At most {@code n} items, by decreasing predicted rating.
+     */
+    public int[] recommend(int user, int n) {
+        return recommend(new int[]{user}, n)[0];
+    }
+
+    /**
+     * Recommend items to several users.
+     *
+     * @param users The users.
+     * @param n The number of items to recommend to each user.
+     * @return For each user, at most {@code n} items by decreasing predicted
+     * rating.
+     */
+    public int[][] recommend(int[] users, int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("The number of items must be positive: " + n);
+        }
+        final int[][] out = new int[users.length][];
+        final int numBlocks = (users.length + userBlockSize - 1) / userBlockSize;
+        final ForkJoinPool pool = this.pool;
+        if (pool == null || numBlocks <= 1) {
+            for (int b = 0; b < numBlocks; b++) {
+                recommendBlock(users, b * userBlockSize, Math.min(users.length, (b + 1) * userBlockSize), n, out);
+            }
+        } else {
+            pool.invoke(new BlockTask(users, 0, numBlocks, n, out));
+        }
+        return out;
+    }
+
+    /**
+     * Recommend items to every user.
+     *
+     * @param n The number of items to recommend to each user.
+     * @return For each user, at most {@code n} items by decreasing predicted
+     * rating.
+     */
+    public int[][] recommendAll(int n) {
+        final int[] users = new int[U.getRowDimension()];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = i;
+        }
+        return recommend(users, n);
+    }
+
+    /**
+     * Score a block of users against all the items, block by block.
+     *
+     * @param users The users.
+     * @param from First user of the block.
+     * @param to Last user of the block (excluded).
+     * @param n The number of items to recommend to each user.
+     * @param out Receive the items recommended to each user.
+     */
+    private void recommendBlock(int[] users, int from, int to, int n, int[][] out) {
+        // single precision features are scored by the float kernel, mixed ones by dotProduct
+        final boolean doubles = !U.isSinglePrecision() && !V.isSinglePrecision();
+        final boolean floats = U.isSinglePrecision() && V.isSinglePrecision();
+        final int k = latentDimension;
+        final int numItems = V.getRowDimension();
+        final int count = to - from;
+        final int capacity = Math.min(n, numItems);
+        final ScoreHeap[] heaps = new ScoreHeap[count];
+        for (int b = 0; b < count; b++) {
+            heaps[b] = new ScoreHeap(capacity);
+        }
+        //--------------------------------------------------------------
+        // Rated items of each user, consumed in increasing order
+        //--------------------------------------------------------------
+        final int[] ratedIndices;
+        final int[] ratedNext = new int[count];
+        final int[] ratedEnd = new int[count];
+        if (ratings == null) {
+            ratedIndices = null;
+        } else {
+            final int[] pointers = byColumn ? ratings.getColumnPointers() : ratings.getRowPointers();
+            ratedIndices = byColumn ? ratings.getRowIndices() : ratings.getColumnIndices();
+            for (int b = 0; b < count; b++) {
+                ratedNext[b] = pointers[users[from + b]];
+                ratedEnd[b] = pointers[users[from + b] + 1];
+            }
+        }
+        for (int firstItem = 0; firstItem < numItems; firstItem += itemBlockSize) {
+            final int lastItem = Math.min(numItems, firstItem + itemBlockSize);
+            for (int b = 0; b < count; b++) {
+                final int user = users[from + b];
+                final double[] u = doubles ? U.getRowData(user) : null;
+                final float[] uFloats = floats ? U.getFloatRowData(user) : null;
+                final int userOffset = U.getRowOffset(user);
+                final ScoreHeap heap = heaps[b];
+                int next = ratedNext[b];
+                for (int j = firstItem; j < lastItem; j++) {
+                    if (ratedIndices != null && next < ratedEnd[b] && ratedIndices[next] == j) {
+                        next++;
+                        continue;
+                    }
+                    final int itemOffset = V.getRowOffset(j);
+                    final double dot;
+                    if (doubles) {
+                        dot = Kernels.dot(u, userOffset, V.getRowData(j), itemOffset, k);
+                    } else if (floats) {
+                        dot = Kernels.dot(uFloats, userOffset, V.getFloatRowData(j), itemOffset, k);
+                    } else {
+                        dot = U.dotProduct(user, V, j);
+                    }
+                    heap.offer(dot, j);
+                }
+                ratedNext[b] = next;
+            }
+        }
+        for (int b = 0; b < count; b++) {
+            out[from + b] = heaps[b].drain();
+        }
+    }
+
+    /**
+     * Score a range of blocks of users, splitting it in two until a single
+     * block is left.
+     */
+    private final class BlockTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int[] users;
+        private final int from, to, n;
+        private final int[][] out;
+
+        BlockTask(int[] users, int from, int to, int n, int[][] out) {
+            this.users = users;
+            this.from = from;
+            this.to = to;
+            this.n = n;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                recommendBlock(users, from * userBlockSize, Math.min(users.length, to * userBlockSize), n, out);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new BlockTask(users, from, middle, n, out), new BlockTask(users, middle, to, n, out));
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Listener keeping the statistics of the last iteration of a training job,
+ * and totals over the job, for JMX clients such as jconsole.
+ *
+ * @author rbouadjenek
+ */
+public final class TrainingMonitor implements IterationListener, TrainingMonitorMBean {
+
+    private volatile IterationStatistics last; // Statistics of the last iteration
+    private volatile long acceptedSteps;
+    private volatile long rejectedSteps;
+    private volatile long totalAllocatedBytes;
+    private volatile long totalNanos;
+    private ObjectName name; // Name of the MBean, null if it is not registered
+
+    @Override
+    public void iterationCompleted(IterationStatistics statistics) {
+        if (statistics.isAccepted()) {
+            acceptedSteps++;
+        } else {
+            rejectedSteps++;
+        }
+        if (statistics.getAllocatedBytes() > 0) {
+            totalAllocatedBytes += statistics.getAllocatedBytes();
+        }
+        totalNanos += statistics.getUpdateNanos() + statistics.getEvaluationNanos();
+        last = statistics;
+    }
+
+    /**
+     * Register this monitor in the platform MBean server, under the name
+     * {@code lirmm.inria.fr:type=TrainingMonitor,name=<name>}.
+     *
+     * @param name The name of the training job.
+     * @throws JMException if the monitor cannot be registered.
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        this.name = new ObjectName("lirmm.inria.fr:type=TrainingMonitor,name=" + ObjectName.quote(name));
+        server.registerMBean(this, this.name);
+    }
+
+    /**
+     * Remove this monitor from the platform MBean server.
+     *
+     * @throws JMException if the monitor cannot be unregistered.
+     */
+    public void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    @Override
+    public int getIteration() {
+        final IterationStatistics s = last;
+        return s == null ? 0 : s.getIteration();
+    }
+
+    @Override
+    public double getJ() {
+        final IterationStatistics s = last;
+        return s == null ? Double.NaN : s.getJ();
+    }
+
+    @Override
+    public double getBestJ() {
+        final IterationStatistics s = last;
+        return s == null ? Double.NaN : s.getBestJ();
+    }
+
+    @Override
+    public double getStepSize() {
+        final IterationStatistics s = last;
+        return s == null ? Double.NaN : s.getStepSize();
+    }
+
+    @Override
+    public long getAcceptedSteps() {
+        return acceptedSteps;
+    }
+
+    @Override
+    public long getRejectedSteps() {
+        return rejectedSteps;
+    }
+
+    @Override
+    public double getLastUpdateMillis() {
+        final IterationStatistics s = last;
+        return s == null ? 0 : s.getUpdateNanos() / 1e6;
+    }
+
+    @Override
+    public double getLastEvaluationMillis() {
+        final IterationStatistics s = last;
+        return s == null ? 0 : s.getEvaluationNanos() / 1e6;
+    }
+
+    @Override
+    public double getNonZerosPerSecond() {
+        final IterationStatistics s = last;
+        return s == null ? 0 : s.getNonZerosPerSecond();
+    }
+
+    @Override
+    public long getLastAllocatedBytes() {
+        final IterationStatistics s = last;
+        return s == null ? -1 : s.getAllocatedBytes();
+    }
+
+    @Override
+    public long getTotalAllocatedBytes() {
+        return totalAllocatedBytes;
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * JMX view of a training job, see {@link TrainingMonitor}.
+ *
+ * @author rbouadjenek
+ */
+public interface TrainingMonitorMBean {
+
+    int getIteration();
+
+    double getJ();
+
+    double getBestJ();
+
+    double getStepSize();
+
+    long getAcceptedSteps();
+
+    long getRejectedSteps();
+
+    double getLastUpdateMillis();
+
+    double getLastEvaluationMillis();
+
+    double getNonZerosPerSecond();
+
+    long getLastAllocatedBytes();
+
+    long getTotalAllocatedBytes();
+
+    double getTotalMillis();
+}
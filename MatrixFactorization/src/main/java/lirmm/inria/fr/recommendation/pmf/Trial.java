@@ -0,0 +1,74 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+/**
+ * A configuration tried by a {@link HyperparameterSearch}, with its score:
+ * the validation RMSE, or the RMSE on R when there is no validation set.
+ *
+ * @author rbouadjenek
+ */
+public final class Trial {
+
+    private final Configuration configuration;
+    GradientDescent optimizer; // The training of the configuration, null once it is pruned
+    private double score = Double.POSITIVE_INFINITY; // Score at the last evaluation, lower is better
+    private int numEvaluations; // Number of evaluations done
+    private boolean pruned; // Indicate if the trial was stopped before the end of the search
+
+    Trial(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return The validation RMSE, or the RMSE on R when there is no
+     * validation set, at the last evaluation of the trial; infinity if it
+     * diverged.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+
+    /**
+     * @return true if the trial was stopped early because it was losing.
+     */
+    public boolean isPruned() {
+        return pruned;
+    }
+
+    /**
+     * @return The point reached by the trial, or {@code null} if it was
+     * pruned.
+     */
+    public Point getPoint() {
+        return optimizer == null ? null : optimizer.getCurrentPoint();
+    }
+
+    void setScore(double score, int numEvaluations) {
+        this.score = Double.isNaN(score) ? Double.POSITIVE_INFINITY : score;
+        this.numEvaluations = numEvaluations;
+    }
+
+    void prune() {
+        this.pruned = true;
+        if (optimizer != null) {
+            optimizer.close();
+        }
+        this.optimizer = null;
+    }
+
+    @Override
+    public String toString() {
+        return configuration + ": score=" + score + ", evaluations=" + numEvaluations + (pruned ? " (pruned)" : "");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class computes the RMSE of a point on a validation set, e.g. the one
+ * set aside by {@link lirmm.inria.fr.data.DataMatrix#cutDataSet}. The entries
+ * are copied once into flat arrays, so that each evaluation is a single scan
+ * with no hashing.
+ *
+ * @author rbouadjenek
+ */
+public final class ValidationMonitor {
+
+    private final int[] rows; // Row of U of each validation entry
+    private final int[] columns; // Row of V of each validation entry
+    private final double[] values; // Value of each validation entry
+
+    /**
+     * Create a monitor of the validation entries of a matrix.
+     *
+     * @param R The matrix whose validation entries are given, whose keys are
+     * those of its storage.
+     * @param entries The validation entries.
+     */
+    public ValidationMonitor(BigSparseRealMatrix R, OpenLongToDoubleHashMap entries) {
+        final int size = entries.size();
+        this.rows = new int[size];
+        this.columns = new int[size];
+        this.values = new double[size];
+        int p = 0;
+        for (OpenLongToDoubleHashMap.Iterator iterator = entries.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            final long key = iterator.key();
+            if (R.isTransposed()) {
+                columns[p] = (int) (key / R.getRowDimension());
+                rows[p] = (int) (key % R.getRowDimension());
+            } else {
+                rows[p] = (int) (key / R.getColumnDimension());
+                columns[p] = (int) (key % R.getColumnDimension());
+            }
+            values[p] = iterator.value();
+            p++;
+        }
+    }
+
+    /**
+     * @return The number of validation entries.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Compute the RMSE of the predictions of a point.
+     *
+     * @param point The point to evaluate.
+     * @return The RMSE on the validation entries, NaN if there are none.
+     */
+    public double rmse(Point point) {
+        final DenseFactorMatrix U = point.getU();
+        final DenseFactorMatrix V = point.getV();
+        double sum = 0;
+        for (int p = 0; p < values.length; p++) {
+            double estimation = U.dotProduct(rows[p], V, columns[p]);
+            final double error = values[p] - estimation;
+            sum += error * error;
+        }
+        return FastMath.sqrt(sum / values.length);
+    }
+}
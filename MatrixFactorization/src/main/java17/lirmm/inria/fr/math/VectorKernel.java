@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the Vector API, processing as many doubles at once as
+ * the SIMD registers of the processor hold. Floats are loaded by half
+ * registers and widened, so that they are computed in double precision. This
+ * class is compiled for JDK 17 and loaded by reflection by {@link Kernels}.
+ *
+ * @author rbouadjenek
+ */
+final class VectorKernel implements Kernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class,
+            VectorShape.forBitSize(SPECIES.vectorBitSize() / 2)); // As many floats as SPECIES holds doubles
+
+    VectorKernel() {
+        if (SPECIES.length() < 4) {
+            throw new IllegalStateException("The processor has no SIMD registers of at least 256 bits.");
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        final int bound = SPECIES.loopBound(length);
+        int f = 0;
+        double dot = 0;
+        if (bound > 0) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (; f < bound; f += SPECIES.length()) {
+                sum = DoubleVector.fromArray(SPECIES, a, offsetA + f)
+                        .fma(DoubleVector.fromArray(SPECIES, b, offsetB + f), sum);
+            }
+            dot = sum.reduceLanes(VectorOperators.ADD);
+        }
+        for (; f < length; f++) {
+            dot += a[offsetA + f] * b[offsetB + f];
+        }
+        return dot;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int offsetX, double[] y, int offsetY, int length) {
+        final int bound = SPECIES.loopBound(length);
+        final DoubleVector a = DoubleVector.broadcast(SPECIES, alpha);
+        int f = 0;
+        for (; f < bound; f += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, offsetX + f)
+                    .fma(a, DoubleVector.fromArray(SPECIES, y, offsetY + f))
+                    .intoArray(y, offsetY + f);
+        }
+        for (; f < length; f++) {
+            y[offsetY + f] += alpha * x[offsetX + f];
+        }
+    }
+
+    @Override
+    public double dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        final int bound = SPECIES.loopBound(length);
+        int f = 0;
+        double dot = 0;
+        if (bound > 0) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (; f < bound; f += SPECIES.length()) {
+                sum = widen(a, offsetA + f).fma(widen(b, offsetB + f), sum);
+            }
+            dot = sum.reduceLanes(VectorOperators.ADD);
+        }
+        for (; f < length; f++) {
+            dot += (double) a[offsetA + f] * b[offsetB + f];
+        }
+        return dot;
+    }
+
+    @Override
+    public void axpy(double alpha, float[] x, int offsetX, double[] y, int offsetY, int length) {
+        final int bound = SPECIES.loopBound(length);
+        final DoubleVector a = DoubleVector.broadcast(SPECIES, alpha);
+        int f = 0;
+        for (; f < bound; f += SPECIES.length()) {
+            widen(x, offsetX + f)
+                    .fma(a, DoubleVector.fromArray(SPECIES, y, offsetY + f))
+                    .intoArray(y, offsetY + f);
+        }
+        for (; f < length; f++) {
+            y[offsetY + f] += alpha * x[offsetX + f];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int offsetX, float[] y, int offsetY, int length) {
+        final int bound = SPECIES.loopBound(length);
+        final DoubleVector a = DoubleVector.broadcast(SPECIES, alpha);
+        int f = 0;
+        for (; f < bound; f += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, offsetX + f)
+                    .fma(a, widen(y, offsetY + f))
+                    .convertShape(VectorOperators.D2F, FLOATS, 0)
+                    .reinterpretAsFloats()
+                    .intoArray(y, offsetY + f);
+        }
+        for (; f < length; f++) {
+            y[offsetY + f] = (float) (y[offsetY + f] + alpha * x[offsetX + f]);
+        }
+    }
+
+    /**
+     * Load floats and widen them to doubles.
+     */
+    private static DoubleVector widen(float[] a, int offset) {
+        return (DoubleVector) FloatVector.fromArray(FLOATS, a, offset).convertShape(VectorOperators.F2D, SPECIES, 0);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check that latent features split into many blocks of rows give the same
+ * results as features stored in a single block. The blocks are made small
+ * with the system property {@code lirmm.inria.fr.blockSize}.
+ *
+ * @author rbouadjenek
+ */
+public class FactorBlocksTest {
+
+    private static final int NUM_USERS = 300;
+    private static final int NUM_ITEMS = 200;
+    private static final int LATENT_DIMENSION = 6;
+    private static final int NUM_EVALUATIONS = 20;
+    private static final double LAMBDA = 0.05;
+
+    private BigSparseRealMatrix R; // Ratings
+    private Path start; // Checkpoint of the point the descents start from
+
+    @Before
+    public void setUp() throws Exception {
+        final Random random = new Random(7);
+        R = new BigSparseRealMatrix(NUM_USERS, NUM_ITEMS);
+        for (int i = 0; i < NUM_USERS; i++) {
+            for (int j = 0; j < NUM_ITEMS; j++) {
+                if (random.nextDouble() < 0.05) {
+                    R.setEntry(i, j, 1 + random.nextInt(5));
+                }
+            }
+        }
+        R.compress();
+        final Point point = new Point(NUM_USERS, NUM_ITEMS, LATENT_DIMENSION);
+        for (DenseFactorMatrix m : new DenseFactorMatrix[]{point.getU(), point.getV()}) {
+            for (int i = 0; i < m.getRowDimension(); i++) {
+                for (int f = 0; f < LATENT_DIMENSION; f++) {
+                    m.setEntry(i, f, 0.1 * random.nextDouble());
+                }
+            }
+        }
+        start = File.createTempFile("blocks", ".pmfc").toPath();
+        Checkpoint.write(start, point, 0.1, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty("lirmm.inria.fr.blockSize");
+        Files.deleteIfExists(start);
+    }
+
+    private GradientDescent train(boolean singlePrecision) throws Exception {
+        final GradientDescent descent = new GradientDescent(R, LATENT_DIMENSION, NUM_EVALUATIONS, LAMBDA, singlePrecision);
+        descent.setParallelism(3);
+        descent.restore(start.toString());
+        descent.findMinimum();
+        descent.close();
+        return descent;
+    }
+
+    private void checkBlocks(boolean singlePrecision) throws Exception {
+        final Point single = train(singlePrecision).getCurrentPoint();
+        // 4 rows per block
+        System.setProperty("lirmm.inria.fr.blockSize", String.valueOf(4 * LATENT_DIMENSION));
+        final Point blocked = train(singlePrecision).getCurrentPoint();
+        assertEquals(1, single.getU().getNumBlocks());
+        assertTrue(blocked.getU().getNumBlocks() > 1);
+        assertEquals(single.getJ(), blocked.getJ(), 0);
+        for (int i = 0; i < NUM_USERS; i++) {
+            for (int f = 0; f < LATENT_DIMENSION; f++) {
+                assertEquals(single.getU().getEntry(i, f), blocked.getU().getEntry(i, f), 0);
+            }
+        }
+        final int[] users = {0, 17, NUM_USERS - 1};
+        assertArrayEquals(new TopNRecommender(single, R).recommend(users, 10),
+                new TopNRecommender(blocked, R).recommend(users, 10));
+        assertEquals(R.multiply(single.getV()).getFrobeniusNorm(), R.multiply(blocked.getV()).getFrobeniusNorm(), 0);
+    }
+
+    @Test
+    public void blocksInDoublePrecision() throws Exception {
+        checkBlocks(false);
+    }
+
+    @Test
+    public void blocksInSinglePrecision() throws Exception {
+        checkBlocks(true);
+    }
+}
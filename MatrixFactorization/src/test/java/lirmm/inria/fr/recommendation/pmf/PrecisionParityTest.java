@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.recommendation.pmf;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check that a {@link GradientDescent} storing U and V in single precision
+ * reaches the accuracy of the same descent in double precision, on seeded
+ * synthetic ratings. Both descents start from the same point, and their
+ * objective functions and their RMSE on held-out ratings are compared at the
+ * end.
+ *
+ * @author rbouadjenek
+ */
+public class PrecisionParityTest {
+
+    private static final int NUM_USERS = 400;
+    private static final int NUM_ITEMS = 300;
+    private static final int LATENT_DIMENSION = 8;
+    private static final int NUM_EVALUATIONS = 100;
+    private static final double LAMBDA = 0.01;
+    private static final double TOLERANCE = 1e-3;
+
+    private BigSparseRealMatrix R; // Training ratings
+    private OpenLongToDoubleHashMap validation; // Held-out ratings, with the keys of R
+    private Point start; // Point both descents start from
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(42);
+        //--------------------------------------------------------------
+        // Ratings of a low-rank model, with noise, one in ten held out
+        //--------------------------------------------------------------
+        final DenseFactorMatrix users = new DenseFactorMatrix(NUM_USERS, LATENT_DIMENSION);
+        final DenseFactorMatrix items = new DenseFactorMatrix(NUM_ITEMS, LATENT_DIMENSION);
+        fill(users, random, 1);
+        fill(items, random, 1);
+        R = new BigSparseRealMatrix(NUM_USERS, NUM_ITEMS);
+        validation = new OpenLongToDoubleHashMap(0.0);
+        for (int i = 0; i < NUM_USERS; i++) {
+            for (int j = 0; j < NUM_ITEMS; j++) {
+                if (random.nextDouble() < 0.1) {
+                    final double rating = users.dotProduct(i, items, j) / LATENT_DIMENSION + 0.05 * random.nextGaussian();
+                    if (random.nextInt(10) == 0) {
+                        validation.put((long) i * NUM_ITEMS + j, rating);
+                    } else {
+                        R.setEntry(i, j, rating);
+                    }
+                }
+            }
+        }
+        R.compress();
+        start = new Point(NUM_USERS, NUM_ITEMS, LATENT_DIMENSION, true);
+        fill(start.getU(), random, 0.1);
+        fill(start.getV(), random, 0.1);
+    }
+
+    private static void fill(DenseFactorMatrix m, Random random, double scale) {
+        for (int i = 0; i < m.getRowDimension(); i++) {
+            for (int f = 0; f < m.getColumnDimension(); f++) {
+                m.setEntry(i, f, random.nextDouble() * scale);
+            }
+        }
+    }
+
+    @Test
+    public void singlePrecisionMatchesDoublePrecision() throws Exception {
+        final GradientDescent single = new GradientDescent(R, LATENT_DIMENSION, NUM_EVALUATIONS, LAMBDA, true);
+        final GradientDescent dual = new GradientDescent(R, LATENT_DIMENSION, NUM_EVALUATIONS, LAMBDA, false);
+        // the point is already in single precision, so both descents restore it exactly
+        final Path file = File.createTempFile("parity", ".pmfc").toPath();
+        try {
+            Checkpoint.write(file, start, 0.1, 0);
+            single.restore(file.toString());
+            dual.restore(file.toString());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        assertEquals(dual.getCurrentPoint().getJ(), single.getCurrentPoint().getJ(), 0);
+        single.findMinimum();
+        dual.findMinimum();
+        single.close();
+        dual.close();
+        final ValidationMonitor monitor = new ValidationMonitor(R, validation);
+        final double singleJ = single.getCurrentPoint().getJ();
+        final double doubleJ = dual.getCurrentPoint().getJ();
+        assertEquals("relative difference of J", 0, Math.abs(singleJ - doubleJ) / Math.abs(doubleJ), TOLERANCE);
+        assertEquals("difference of the validation RMSE", monitor.rmse(dual.getCurrentPoint()),
+                monitor.rmse(single.getCurrentPoint()), TOLERANCE);
+    }
+}
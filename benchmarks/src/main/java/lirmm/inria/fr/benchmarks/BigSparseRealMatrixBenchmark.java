@@ -0,0 +1,123 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the operations on the matrix of ratings R (users x items),
+ * with U (users x k) and V (items x k).
+ *
+ * @author rbouadjenek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BigSparseRealMatrixBenchmark {
+
+    @Param({"2000", "20000"})
+    public int users;
+
+    @Param({"1000", "5000"})
+    public int items;
+
+    @Param({"0.1", "1"})
+    public double density; // Percentage of non-zero elements of R
+
+    @Param({"10", "50"})
+    public int latentDimension;
+
+    private BigSparseRealMatrix hashR; // R stored in a hash map
+    private BigSparseRealMatrix compressedR; // R stored in CSR/CSC arrays
+    private BigSparseRealMatrix residual; // Buffer of R-U*V' sharing the structure of compressedR
+    private DenseFactorMatrix U, V;
+    private BigSparseRealMatrix sparseU, sparseV, sparseVt;
+
+    @Setup
+    public void setUp() {
+        hashR = SyntheticData.ratings(users, items, density);
+        compressedR = hashR.copy();
+        compressedR.compress();
+        residual = compressedR.createResidualBuffer();
+        U = SyntheticData.factors(users, latentDimension, 1);
+        V = SyntheticData.factors(items, latentDimension, 2);
+        sparseU = SyntheticData.toSparse(U);
+        sparseV = SyntheticData.toSparse(V);
+        sparseVt = sparseV.transpose();
+    }
+
+    /**
+     * R*V with V stored as a sparse matrix.
+     */
+    @Benchmark
+    public BigSparseRealMatrix multiplySparse() {
+        return compressedR.multiply(sparseV);
+    }
+
+    /**
+     * R*V with V stored as a dense factor matrix.
+     */
+    @Benchmark
+    public DenseFactorMatrix multiplyDense() {
+        return compressedR.multiply(V);
+    }
+
+    /**
+     * R-U*V' on the non-zero elements of R, with U and V' sparse.
+     */
+    @Benchmark
+    public BigSparseRealMatrix specialOperationSparse() {
+        return compressedR.specialOperation(sparseU, sparseVt);
+    }
+
+    /**
+     * R-U*V' on the non-zero elements of R, into a new matrix.
+     */
+    @Benchmark
+    public BigSparseRealMatrix specialOperationDense() {
+        return compressedR.specialOperation(U, V);
+    }
+
+    /**
+     * R-U*V' on the non-zero elements of R, into a reused buffer.
+     */
+    @Benchmark
+    public BigSparseRealMatrix specialOperationInPlace() {
+        compressedR.specialOperation(U, V, residual);
+        return residual;
+    }
+
+    @Benchmark
+    public BigSparseRealMatrix transpose() {
+        return hashR.transpose();
+    }
+
+    @Benchmark
+    public double frobeniusNormHash() {
+        return hashR.getFrobeniusNorm();
+    }
+
+    @Benchmark
+    public double frobeniusNormCompressed() {
+        return compressedR.getFrobeniusNorm();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.recommendation.pmf.GradientDescent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of one iteration of the gradient descent: a step along the
+ * gradient, then the evaluation of J and of the gradient at the new point.
+ * The steps are never rejected, so a small step size is used to keep the
+ * point finite, and the algorithm is restarted before each measurement
+ * iteration. The cost of an iteration does not depend on the step size.
+ *
+ * @author rbouadjenek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GradientDescentBenchmark {
+
+    @Param({"2000", "20000"})
+    public int users;
+
+    @Param({"1000", "5000"})
+    public int items;
+
+    @Param({"0.1", "1"})
+    public double density; // Percentage of non-zero elements of R
+
+    @Param({"10", "50"})
+    public int latentDimension;
+
+    @Param({"1"})
+    public int parallelism;
+
+    private BigSparseRealMatrix R;
+    private GradientDescent gradientDescent;
+
+    @Setup
+    public void setUp() {
+        R = SyntheticData.ratings(users, items, density);
+        R.compress();// the descents of all the iterations share its storage
+    }
+
+    @Setup(Level.Iteration)
+    public void restart() throws Exception {
+        gradientDescent = new GradientDescent(R, latentDimension, Integer.MAX_VALUE, 0.02);
+        gradientDescent.setParallelism(parallelism);
+        gradientDescent.setStepSize(0.001);
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdown() {
+        gradientDescent.close();
+    }
+
+    @Benchmark
+    public GradientDescent nextIteration() {
+        gradientDescent.nextIteration();
+        return gradientDescent;
+    }
+}
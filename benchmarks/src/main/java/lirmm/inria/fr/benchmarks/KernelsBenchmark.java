@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import lirmm.inria.fr.math.Kernels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the kernels of {@link Kernels} over the rows of two factor
+ * matrices, with the Vector API implementation and with the plain loops. Each
+ * implementation runs in its own JVM, since the implementation is chosen when
+ * the JVM loads {@link Kernels}.
+ *
+ * @author rbouadjenek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KernelsBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"16", "64", "128", "256"})
+    public int latentDimension;
+
+    private double[] u, v;
+
+    @Setup
+    public void setUp() {
+        // the rows fit in a single block
+        u = SyntheticData.factors(ROWS, latentDimension, 1).getBlock(0);
+        v = SyntheticData.factors(ROWS, latentDimension, 2).getBlock(0);
+    }
+
+    private double dot() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            sum += Kernels.dot(u, i * latentDimension, v, i * latentDimension, latentDimension);
+        }
+        return sum;
+    }
+
+    private double[] axpy() {
+        for (int i = 0; i < ROWS; i++) {
+            Kernels.axpy(1e-9, u, i * latentDimension, v, i * latentDimension, latentDimension);
+        }
+        return v;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+    public double dotVector() {
+        return dot();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Dlirmm.inria.fr.kernels=scalar"})
+    public double dotScalar() {
+        return dot();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+    public double[] axpyVector() {
+        return axpy();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Dlirmm.inria.fr.kernels=scalar"})
+    public double[] axpyScalar() {
+        return axpy();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import lirmm.inria.fr.data.DataMatrix;
+import lirmm.inria.fr.evaluation.EvaluationResult;
+import lirmm.inria.fr.evaluation.Metrics;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the evaluation of a factorization on a test set holding 20% of
+ * the ratings, with and without printing the report. The printed report is
+ * discarded.
+ *
+ * @author rbouadjenek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"2000", "20000"})
+    public int users;
+
+    @Param({"5000"})
+    public int items;
+
+    @Param({"1"})
+    public double density; // Percentage of non-zero elements of R
+
+    @Param({"10", "50"})
+    public int latentDimension;
+
+    private DataMatrix R;
+    private DenseFactorMatrix U, V;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        BigSparseRealMatrix ratings = SyntheticData.ratings(users, items, density);
+        File file = File.createTempFile("ratings", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            for (OpenLongToDoubleHashMap.Iterator iterator = ratings.getEntries().iterator(); iterator.hasNext();) {
+                iterator.advance();
+                writer.println("u" + iterator.key() / items + " i" + iterator.key() % items + " " + iterator.value());
+            }
+        }
+        R = DataMatrix.createDataMatrix(file.getPath(), 1);
+        R.cutDataSet(20, 0);
+        U = SyntheticData.factors(R.getRowDimension(), latentDimension, 1);
+        V = SyntheticData.factors(R.getColumnDimension(), latentDimension, 2);
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public DataMatrix evaluate() {
+        Metrics.evaluate(R, U, V);
+        return R;
+    }
+
+    @Benchmark
+    public EvaluationResult evaluateSingleThread() {
+        return Metrics.evaluate(R, U, V, 1, SyntheticData.SEED);
+    }
+}
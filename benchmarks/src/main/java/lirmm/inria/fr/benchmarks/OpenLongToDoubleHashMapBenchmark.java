@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import lirmm.inria.fr.math.OpenLongToDoubleHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hash storage of the sparse matrices. Keys are spread as
+ * the keys of a matrix of 10^6 x 10^6 elements.
+ *
+ * @author rbouadjenek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenLongToDoubleHashMapBenchmark {
+
+    private static final int OPERATIONS = 1024;
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private long[] keys; // Keys stored in the map
+    private long[] missingKeys; // Keys not stored in the map
+    private OpenLongToDoubleHashMap map;
+
+    @Setup
+    public void setUp() {
+        Random r = new Random(SyntheticData.SEED);
+        keys = new long[size];
+        missingKeys = new long[OPERATIONS];
+        map = new OpenLongToDoubleHashMap(0.0);
+        for (int p = 0; p < size; p++) {
+            keys[p] = (long) r.nextInt(1000000) * 1000000 + r.nextInt(1000000);
+            map.put(keys[p], r.nextDouble());
+        }
+        for (int p = 0; p < OPERATIONS; p++) {
+            long key;
+            do {
+                key = (long) r.nextInt(1000000) * 1000000 + r.nextInt(1000000);
+            } while (map.containsKey(key));
+            missingKeys[p] = key;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public double getPresent() {
+        double sum = 0;
+        for (int p = 0; p < OPERATIONS; p++) {
+            sum += map.get(keys[(int) ((long) p * size / OPERATIONS)]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public double getMissing() {
+        double sum = 0;
+        for (int p = 0; p < OPERATIONS; p++) {
+            sum += map.get(missingKeys[p]);
+        }
+        return sum;
+    }
+
+    /**
+     * Overwrite existing keys, which does not resize the map.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public OpenLongToDoubleHashMap putExisting() {
+        for (int p = 0; p < OPERATIONS; p++) {
+            map.put(keys[(int) ((long) p * size / OPERATIONS)], p);
+        }
+        return map;
+    }
+
+    /**
+     * Fill a new map, including its resizes.
+     */
+    @Benchmark
+    public OpenLongToDoubleHashMap fill() {
+        OpenLongToDoubleHashMap m = new OpenLongToDoubleHashMap(0.0);
+        for (int p = 0; p < size; p++) {
+            m.put(keys[p], p);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public double iterate() {
+        double sum = 0;
+        for (OpenLongToDoubleHashMap.Iterator iterator = map.iterator(); iterator.hasNext();) {
+            iterator.advance();
+            sum += iterator.value();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import lirmm.inria.fr.data.DataMatrix;
+import lirmm.inria.fr.recommendation.pmf.GradientDescent;
+import lirmm.inria.fr.recommendation.pmf.ValidationMonitor;
+
+/**
+ * Check that a {@link GradientDescent} storing U and V in single precision
+ * reaches the accuracy of the same descent in double precision. Both start
+ * from the same point, and their objective functions and their RMSE on a
+ * validation set are compared at the end. The program exits with the status
+ * 1 if they differ by more than the tolerance.
+ * <p>
+ * Usage: {@code PrecisionParity ratingsFile [latentDimension]
+ * [numEvaluations] [lambda] [tolerance]}</p>
+ *
+ * @author rbouadjenek
+ */
+public final class PrecisionParity {
+
+    private PrecisionParity() {
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PrecisionParity ratingsFile [latentDimension] [numEvaluations] [lambda] [tolerance]");
+            System.exit(2);
+        }
+        final int latentDimension = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int numEvaluations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        final double lambda = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        final double tolerance = args.length > 4 ? Double.parseDouble(args[4]) : 1e-3;
+        DataMatrix R = DataMatrix.createDataMatrix(args[0], Runtime.getRuntime().availableProcessors());
+        R.cutDataSet(0, 10, 42);
+        //--------------------------------------------------------------
+        // Both descents restore the same random point, rounded to floats,
+        // from the checkpoint of a descent stopped before any evaluation
+        //--------------------------------------------------------------
+        R.compress();// the three descents share its storage
+        GradientDescent single = new GradientDescent(R, latentDimension, numEvaluations, lambda, true);
+        GradientDescent dual = new GradientDescent(R, latentDimension, numEvaluations, lambda, false);
+        Path start = File.createTempFile("parity", ".pmfc").toPath();
+        try {
+            GradientDescent initial = new GradientDescent(R, latentDimension, 0, lambda, true);
+            initial.setCheckpoint(start.toString(), 1);
+            initial.findMinimum();
+            initial.close();
+            single.restore(start.toString());
+            dual.restore(start.toString());
+        } finally {
+            Files.deleteIfExists(start);
+        }
+        ValidationMonitor validation = new ValidationMonitor(R, R.getValidationDataEntries());
+        single.findMinimum();
+        dual.findMinimum();
+        //--------------------------------------------------------------
+        final double singleJ = single.getCurrentPoint().getJ();
+        final double doubleJ = dual.getCurrentPoint().getJ();
+        final double singleRMSE = validation.rmse(single.getCurrentPoint());
+        final double doubleRMSE = validation.rmse(dual.getCurrentPoint());
+        final double errorJ = Math.abs(singleJ - doubleJ) / Math.abs(doubleJ);
+        final double errorRMSE = Math.abs(singleRMSE - doubleRMSE);
+        System.out.println("precision\tevaluations\tJ\tvalidation RMSE");
+        System.out.println("double\t" + dual.getNumEvaluations() + "\t" + doubleJ + "\t" + doubleRMSE);
+        System.out.println("single\t" + single.getNumEvaluations() + "\t" + singleJ + "\t" + singleRMSE);
+        System.out.println("relative difference of J= " + errorJ + ", difference of RMSE= " + errorRMSE);
+        if (!(errorJ <= tolerance && errorRMSE <= tolerance)) {
+            System.out.println("The single precision differs by more than " + tolerance + ".");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package lirmm.inria.fr.benchmarks;
+
+import java.util.Random;
+import lirmm.inria.fr.math.BigSparseRealMatrix;
+import lirmm.inria.fr.math.DenseFactorMatrix;
+
+/**
+ * Seeded generators of the inputs of the benchmarks, so that every run of a
+ * benchmark measures the same matrices.
+ *
+ * @author rbouadjenek
+ */
+final class SyntheticData {
+
+    static final long SEED = 42;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Generate a sparse matrix of ratings between 1 and 5.
+     *
+     * @param rowDimension Number of rows of the matrix.
+     * @param columnDimension Number of columns of the matrix.
+     * @param density Percentage of non-zero elements.
+     * @return A sparse matrix.
+     */
+    static BigSparseRealMatrix ratings(int rowDimension, int columnDimension, double density) {
+        BigSparseRealMatrix m = new BigSparseRealMatrix(rowDimension, columnDimension);
+        Random r = new Random(SEED);
+        long total = (long) ((long) rowDimension * columnDimension * density / 100);
+        for (long n = 0; n < total; n++) {
+            int row = r.nextInt(rowDimension);
+            int col = r.nextInt(columnDimension);
+            while (m.getEntry(row, col) != 0) {
+                row = r.nextInt(rowDimension);
+                col = r.nextInt(columnDimension);
+            }
+            m.setEntry(row, col, 1 + r.nextInt(5));
+        }
+        return m;
+    }
+
+    /**
+     * Generate a matrix of latent features with small random values.
+     *
+     * @param rowDimension Number of users or items.
+     * @param latentDimension Number of latent dimensions.
+     * @param seed Seed of the random generator.
+     * @return A factor matrix.
+     */
+    static DenseFactorMatrix factors(int rowDimension, int latentDimension, long seed) {
+        DenseFactorMatrix m = new DenseFactorMatrix(rowDimension, latentDimension);
+        Random r = new Random(seed);
+        for (int b = 0; b < m.getNumBlocks(); b++) {
+            double[] data = m.getBlock(b);
+            for (int p = 0; p < data.length; p++) {
+                data[p] = 0.1 * r.nextDouble();
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Copy factor features into a sparse matrix, as U and V were stored
+     * before {@link DenseFactorMatrix} existed.
+     *
+     * @param m The factor matrix.
+     * @return A sparse matrix holding the same elements.
+     */
+    static BigSparseRealMatrix toSparse(DenseFactorMatrix m) {
+        BigSparseRealMatrix out = new BigSparseRealMatrix(m.getRowDimension(), m.getColumnDimension());
+        for (int i = 0; i < m.getRowDimension(); i++) {
+            for (int f = 0; f < m.getColumnDimension(); f++) {
+                out.setEntry(i, f, m.getEntry(i, f));
+            }
+        }
+        return out;
+    }
+}